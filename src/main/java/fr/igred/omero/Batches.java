@@ -0,0 +1,76 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Splits the objects sent to OMERO in batches, to save many objects in a few requests
+ * without sending messages larger than the server accepts.
+ */
+public class Batches {
+
+    ///Default number of objects per request
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * Split a collection in consecutive batches.
+     *
+     * @param elements Elements to split
+     * @param size     Maximum number of elements per batch
+     * @param <T>      Type of the elements
+     *
+     * @return List of batches, each one containing at most size elements
+     *
+     * @throws IllegalArgumentException The size is lower than 1
+     */
+    public static <T> List<List<T>> partition(Collection<? extends T> elements,
+                                              int                     size)
+    {
+        if(size < 1)
+            throw new IllegalArgumentException("Batch size must be strictly positive: " + size);
+
+        List<List<T>> batches = new ArrayList<List<T>>((elements.size() + size - 1) / size);
+        List<T>       batch   = new ArrayList<T>(Math.min(size, elements.size()));
+
+        for(T element : elements) {
+            batch.add(element);
+            if(batch.size() == size) {
+                batches.add(batch);
+                batch = new ArrayList<T>(size);
+            }
+        }
+
+        if(!batch.isEmpty())
+            batches.add(batch);
+
+        return batches;
+    }
+
+
+
+
+    /**
+     * Private constructor: the class only has static methods.
+     */
+    private Batches()
+    {
+    }
+}
@@ -17,24 +17,57 @@
 
 package fr.igred.omero;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import fr.igred.omero.metadata.ROIContainer;
 import fr.igred.omero.metadata.TableContainer;
+import fr.igred.omero.metadata.annotation.AnnotationQuery;
 import fr.igred.omero.metadata.annotation.TagAnnotationContainer;
 import fr.igred.omero.repository.DatasetContainer;
+import fr.igred.omero.repository.HierarchySnapshot;
 import fr.igred.omero.repository.ProjectContainer;
 import fr.igred.omero.sort.SortImageContainer;
 import fr.igred.omero.sort.SortTagAnnotationContainer;
 import ome.formats.importer.ImportConfig;
 import omero.LockTimeout;
+import omero.RLong;
+import omero.RString;
+import omero.RType;
 import omero.ServerError;
+import omero.api.IAdminPrx;
 import omero.api.IQueryPrx;
+import omero.api.IRoiPrx;
+import omero.api.IUpdatePrx;
+import omero.api.RawFileStorePrx;
+import omero.cmd.Chgrp2;
+import omero.cmd.Chown2;
+import omero.cmd.CmdCallbackI;
+import omero.cmd.Duplicate;
+import omero.cmd.Request;
+import omero.cmd.Response;
 import omero.gateway.Gateway;
 import omero.gateway.LoginCredentials;
 import omero.gateway.SecurityContext;
@@ -50,44 +83,117 @@ import omero.gateway.facility.TablesFacility;
 import omero.gateway.model.DatasetData;
 import omero.gateway.model.ExperimenterData;
 import omero.gateway.model.ProjectData;
+import omero.gateway.model.ROIData;
 import omero.gateway.model.TagAnnotationData;
 import omero.gateway.model.ImageData;
 import omero.log.SimpleLogger;
+import omero.model.Annotation;
+import omero.model.Dataset;
+import omero.model.DatasetAnnotationLink;
+import omero.model.DatasetAnnotationLinkI;
 import omero.model.DatasetI;
+import omero.model.DatasetImageLink;
+import omero.model.DatasetImageLinkI;
+import omero.model.Experimenter;
 import omero.model.FileAnnotationI;
 import omero.model.IObject;
+import omero.model.Image;
+import omero.model.ImageAnnotationLink;
+import omero.model.ImageAnnotationLinkI;
 import omero.model.ImageI;
+import omero.model.MapAnnotation;
+import omero.model.MapAnnotationI;
 import omero.model.NamedValue;
+import omero.model.Project;
+import omero.model.ProjectAnnotationLink;
+import omero.model.ProjectAnnotationLinkI;
+import omero.model.ProjectDatasetLink;
+import omero.model.ProjectDatasetLinkI;
 import omero.model.ProjectI;
+import omero.model.Roi;
 import omero.model.RoiI;
 import omero.model.TagAnnotation;
 import omero.model.TagAnnotationI;
+import omero.sys.ParametersI;
+import omero.sys.Roles;
 
 
 /**
  * Basic class, contain the gateway, the security context, and multiple facility.
  * 
  * Allow the connexion of user to connect to OMERO and browse through all the data accessible to the user.
+ * 
+ * A connected Client can be shared between threads: facilities and stateless services (query, update) are 
+ * created once and safely published to all threads. Stateful services, such as the raw file store, 
+ * are created for each use with {@link #createRawFileStore()} and must be closed by the caller.
+ * Connecting and disconnecting must not run concurrently with other calls.
  */
 public class Client {
     //User
-    private ExperimenterData    user;
+    private volatile ExperimenterData    user;
 
     //Gateway linking the code to OMERO, only linked to one group.
-    private Gateway             gateway;
+    private volatile Gateway             gateway;
 
     //Security context of the user, contains the permissions of the user in this group.
-    private SecurityContext     ctx;
-
-    private BrowseFacility      browse;
-    private DataManagerFacility dm;
-    private MetadataFacility    metadata;
-    private ImportConfig        config;
-    private ROIFacility         roifac;
-    private TablesFacility      fac;
-    private AdminFacility       admin;
-    private RawDataFacility     rdf;
-    private IQueryPrx           qs;
+    private volatile SecurityContext     ctx;
+
+    //Facilities and stateless services, lazily created and shared between threads.
+    private volatile BrowseFacility      browse;
+    private volatile DataManagerFacility dm;
+    private volatile MetadataFacility    metadata;
+    private volatile ImportConfig        config;
+    private volatile ROIFacility         roifac;
+    private volatile TablesFacility      fac;
+    private volatile AdminFacility       admin;
+    private volatile RawDataFacility     rdf;
+    private volatile IQueryPrx           qs;
+    private volatile IUpdatePrx          us;
+    private volatile IRoiPrx             rs;
+
+    //Cache of the metadata retrieved, shared with the clients created by SudoGetUser.
+    private volatile MetadataCache cache = new MetadataCache();
+
+    //Credentials used to connect, kept to reconnect when the session is lost.
+    private volatile LoginCredentials         cred;
+    //True if the credentials are the key of a joined session, which cannot be used to reconnect.
+    private volatile boolean                  joined = false;
+    //True if the session was joined from or stored in a SessionCache, to keep it open on disconnect.
+    private volatile boolean                  cached = false;
+    //SessionCache of the session and group of its entry, kept to store the key of a new session on reconnection.
+    private volatile SessionCache             sessions;
+    private volatile Long                     sessionGroup;
+    //Number of the current session, incremented at each reconnection.
+    private volatile long                     session = 0;
+    //Scheduler keeping the session alive.
+    private volatile ScheduledExecutorService keepAlive;
+
+    //Reconnection policy: number of attempts and delays in milliseconds, doubled after each failure.
+    private volatile int  reconnectAttempts = 6;
+    private volatile long reconnectDelay    = 500;
+    private volatile long reconnectMaxDelay = 30000;
+
+    //Sudo clients created by this client, by username and by id.
+    private final ConcurrentHashMap<String, Client> sudoByName = new ConcurrentHashMap<String, Client>();
+    private final ConcurrentHashMap<Long, Client>   sudoById   = new ConcurrentHashMap<Long, Client>();
+
+    //Clients created by sudo or inGroup on the session of this client, whose services are reset on reconnection.
+    private final Map<Client, Boolean> derived = Collections.synchronizedMap(new WeakHashMap<Client, Boolean>());
+
+    //Ids of the tags found or created by name, by group, and lock serializing their creation.
+    private final ConcurrentHashMap<String, Long> tagIds  = new ConcurrentHashMap<String, Long>();
+    private final Object                          tagLock = new Object();
+
+    //Write batch open on each thread, if any.
+    private final ThreadLocal<WriteBatch> batch = new ThreadLocal<WriteBatch>();
+
+    //Maximum number of groups queried in parallel by the cross-group methods.
+    private volatile int groupParallelism = 4;
+
+    //Reconnection metrics.
+    private final AtomicLong reconnectCount   = new AtomicLong();
+    private final AtomicLong reconnectLatency = new AtomicLong();
+
     /**
      * Return the security context of the user.
      * Contains the permissions of the user in the group.
@@ -99,6 +205,17 @@ public class Client {
         return ctx;
     }
 
+    /**
+     * Return the metadata cache of the client.
+     * The cache is disabled until a time to live is set.
+     * 
+     * @return cache
+     */
+    public MetadataCache getCache()
+    {
+        return cache;
+    }
+
     /**
      * Return the BrowseFacility linked to the gateway.
      * The BrowseFacility is used to access the data from OMERO.
@@ -122,8 +239,12 @@ public class Client {
         throws
             ExecutionException
     {
-        if(dm == null)
-            dm = gateway.getFacility(DataManagerFacility.class);
+        if(dm == null) {
+            synchronized(this) {
+                if(dm == null)
+                    dm = gateway.getFacility(DataManagerFacility.class);
+            }
+        }
         return dm;
     }
 
@@ -139,8 +260,12 @@ public class Client {
         throws
             ExecutionException
     {
-        if(metadata == null)
-            metadata = gateway.getFacility(MetadataFacility.class);
+        if(metadata == null) {
+            synchronized(this) {
+                if(metadata == null)
+                    metadata = gateway.getFacility(MetadataFacility.class);
+            }
+        }
 
         return metadata;
     }
@@ -157,8 +282,12 @@ public class Client {
         throws
             ExecutionException
     {
-        if(roifac == null)
-            roifac = gateway.getFacility(ROIFacility.class);
+        if(roifac == null) {
+            synchronized(this) {
+                if(roifac == null)
+                    roifac = gateway.getFacility(ROIFacility.class);
+            }
+        }
 
         return roifac;
     }
@@ -175,8 +304,12 @@ public class Client {
         throws
             ExecutionException
     {
-        if(fac == null)
-            fac = gateway.getFacility(TablesFacility.class);
+        if(fac == null) {
+            synchronized(this) {
+                if(fac == null)
+                    fac = gateway.getFacility(TablesFacility.class);
+            }
+        }
 
         return fac;
     }
@@ -193,8 +326,12 @@ public class Client {
         throws
             ExecutionException
     {
-        if(admin == null)
-            admin = gateway.getFacility(AdminFacility.class);
+        if(admin == null) {
+            synchronized(this) {
+                if(admin == null)
+                    admin = gateway.getFacility(AdminFacility.class);
+            }
+        }
 
         return admin;
     }
@@ -211,28 +348,112 @@ public class Client {
         throws
             ExecutionException
     {
-        if(rdf == null)
-            rdf = gateway.getFacility(RawDataFacility.class);
+        if(rdf == null) {
+            synchronized(this) {
+                if(rdf == null)
+                    rdf = gateway.getFacility(RawDataFacility.class);
+            }
+        }
         
         return rdf;
     }
 
+    /**
+     * Return the query service of the user.
+     * The service is stateless and shared between threads.
+     * 
+     * @return qs
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
     public IQueryPrx getQueryService()
-        throws DSOutOfServiceException
+        throws 
+            DSOutOfServiceException
     {
-        if(qs == null)
-            qs = gateway.getQueryService(ctx);
+        if(qs == null) {
+            synchronized(this) {
+                if(qs == null)
+                    qs = gateway.getQueryService(ctx);
+            }
+        }
 
         return qs;
     }
 
+    /**
+     * Return the update service of the user.
+     * The service is stateless and shared between threads.
+     * 
+     * @return us
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public IUpdatePrx getUpdateService()
+        throws 
+            DSOutOfServiceException
+    {
+        if(us == null) {
+            synchronized(this) {
+                if(us == null)
+                    us = gateway.getUpdateService(ctx);
+            }
+        }
+
+        return us;
+    }
+
+    /**
+     * Return the ROI service of the user.
+     * The service is stateless and shared between threads.
+     * 
+     * @return rs
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public IRoiPrx getRoiService()
+        throws 
+            DSOutOfServiceException
+    {
+        if(rs == null) {
+            synchronized(this) {
+                if(rs == null)
+                    rs = gateway.getROIService(ctx);
+            }
+        }
+
+        return rs;
+    }
+
+    /**
+     * Create a new raw file store for the user.
+     * The store is stateful: it must not be shared between threads, and must be closed after use.
+     * 
+     * @return rawFileStore
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public RawFileStorePrx createRawFileStore()
+        throws 
+            DSOutOfServiceException
+    {
+        return gateway.getRawFileService(ctx);
+    }
+
     /**
      * Return the importation config for the user.
+     * The config is created on first use.
      * 
      * @return config
      */
     public ImportConfig getConfig()
     {
+        if(config == null) {
+            synchronized(this) {
+                if(config == null)
+                    createConfig();
+            }
+        }
+
         return config;
     }
 
@@ -287,8 +508,6 @@ public class Client {
 
         cred.setGroupID(groupID);
 
-        createConfig(hostname, port, username, password);
-
         connect(cred);
     }
 
@@ -316,8 +535,6 @@ public class Client {
     {
         LoginCredentials cred = createCred(hostname, port, username, password);
 
-        createConfig(hostname, port, username, password);
-
         connect(cred);
     }
 
@@ -345,19 +562,14 @@ public class Client {
     }
 
     /**
-     * Create the importation config linked to the user.
-     * 
-     * @param hostname name of the host
-     * @param port     port used by OMERO
-     * @param username username of the user
-     * @param password password of the user
+     * Create the importation config linked to the user, from the credentials used to connect.
      */
-    private void createConfig(String hostname, 
-                              int    port, 
-                              String username, 
-                              String password)
+    private void createConfig()
     {
-        config = new ome.formats.importer.ImportConfig();
+        if(cred == null)
+            return;
+
+        ImportConfig config = new ome.formats.importer.ImportConfig();
 
         config.email.set("");
         config.sendFiles.set(true);
@@ -365,10 +577,12 @@ public class Client {
         config.contOnError.set(false);
         config.debug.set(false);
 
-        config.hostname.set(hostname);
-        config.port.set(port);
-        config.username.set(username);
-        config.password.set(password);
+        config.hostname.set(cred.getServer().getHost());
+        config.port.set(cred.getServer().getPort());
+        config.username.set(cred.getUser().getUsername());
+        config.password.set(cred.getUser().getPassword());
+
+        this.config = config;
     }
 
     /**
@@ -385,579 +599,2497 @@ public class Client {
             DSOutOfServiceException,
             ExecutionException
     {
-        this.user = gateway.connect(cred);
+        this.user   = gateway.connect(cred);
+        this.cred   = cred;
+        this.joined = false;
+        this.cached = false;
+        this.sessions = null;
+        this.sessionGroup = null;
 
         this.ctx = new SecurityContext(user.getGroupId());
         this.browse = gateway.getFacility(BrowseFacility.class);
     }
     
     /**
-     * Disconnect the user
+     * Connect the user to OMERO by joining an existing session.
+     * The client cannot reconnect if the session is lost, as the key of a closed session is no longer valid.
+     * 
+     * @param hostname   name of the host
+     * @param port       port used by OMERO
+     * @param sessionKey key of the session to join
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO, or the session has expired
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
      */
-    public void disconnect()
+    public void joinSession(String hostname, 
+                            int    port, 
+                            String sessionKey)
+        throws 
+            DSOutOfServiceException,
+            ExecutionException
     {
-        gateway.disconnect();
+        connect(createCred(hostname, port, sessionKey, sessionKey));
+        joined = true;
     }
 
-
-
-
     /**
-     * Get the project with the specified id from OMERO.
-     * 
-     * @param id Id of the project 
+     * Connect the user to OMERO, joining the session stored in the cache if it is still valid, 
+     * and logging in with the password otherwise. The key of the new session is then stored in the cache.
      * 
-     * @return ProjectContainer containing the project
+     * @param hostname name of the host
+     * @param port     port used by OMERO
+     * @param username username of the user
+     * @param password password of the user
+     * @param groupID  id of the group to connect, null for the default group
+     * @param sessions cache of the session keys
      * 
      * @throws DSOutOfServiceException Cannot connect to OMERO
-     * @throws DSAccessException       Cannot access data
-     * @throws NoSuchElementException  No element with such id
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
      */
-    public ProjectContainer getProject(Long id)
+    public void connect(String       hostname, 
+                        int          port, 
+                        String       username, 
+                        String       password, 
+                        Long         groupID, 
+                        SessionCache sessions)
         throws 
             DSOutOfServiceException,
-            DSAccessException,
-            NoSuchElementException
+            ExecutionException
     {
-        Collection<ProjectData> projects = browse.getProjects(ctx);
-
-        for(ProjectData project : projects)
-        {
-            if (project.getId() == id)
-            {
-                return new ProjectContainer(project);
+        try {
+            String sessionKey = sessions.get(hostname, port, username, groupID);
+            if(sessionKey != null) {
+                try {
+                    joinSession(hostname, port, sessionKey);
+
+                    //Keep the password to be able to reconnect if the session is lost
+                    LoginCredentials login = createCred(hostname, port, username, password);
+                    if(groupID != null)
+                        login.setGroupID(groupID);
+                    this.cred         = login;
+                    this.joined       = false;
+                    this.cached       = true;
+                    this.sessions     = sessions;
+                    this.sessionGroup = groupID;
+                    return;
+                }
+                catch(DSOutOfServiceException e) {
+                    sessions.remove(hostname, port, username, groupID);
+                }
             }
         }
-        throw new NoSuchElementException("Project " + id + " doesn't exist in this context");
+        catch(IOException e) {
+            //The cache is unusable: log in with the password
+        }
+
+        if(groupID == null)
+            connect(hostname, port, username, password);
+        else
+            connect(hostname, port, username, password, groupID);
+
+        try {
+            sessions.put(hostname, port, username, groupID, getSessionKey());
+            this.cached       = true;
+            this.sessions     = sessions;
+            this.sessionGroup = groupID;
+        }
+        catch(IOException e) {
+            //The session is still usable without the cache
+        }
     }
 
     /**
-     * Get all projects available from OMERO.
+     * Return the key of the current session, which can be used to join the session from another process.
      * 
-     * @return Collection of ProjectContainer
+     * @return the session key
      * 
      * @throws DSOutOfServiceException Cannot connect to OMERO
-     * @throws DSAccessException       Cannot access data
      */
-    public Collection<ProjectContainer> getProjects()
+    public String getSessionKey()
         throws 
-            DSOutOfServiceException,
-            DSAccessException
+            DSOutOfServiceException
     {
-        Collection<ProjectData> projects =  browse.getProjects(ctx);
-        
-        Collection<ProjectContainer> projectsContainer = new ArrayList<ProjectContainer>(projects.size());
+        return gateway.getSessionId(user);
+    }
 
-        for(ProjectData project : projects)
-        {
-            projectsContainer.add(new ProjectContainer(project));
-        }
-        return projectsContainer;
+    /**
+     * Disconnect the user.
+     * The session is kept open if it was joined from or stored in a {@link SessionCache}, 
+     * so that the next connection can join it. Otherwise, the reference of this client on the session is released.
+     */
+    public void disconnect()
+    {
+        disconnect(cached);
     }
 
     /**
-     * Get all projects with a certain name from OMERO.
-     * 
-     * @param name Name searched
+     * Disconnect the user.
      * 
-     * @return Collection of ProjectContainer.
-     * 
-     * @throws DSOutOfServiceException Cannot connect to OMERO
-     * @throws DSAccessException       Cannot access data
+     * @param keepSession Keep the session open until it times out, so its key can still be used to join it.
+     *                    If false, the reference of this client is released: the session is closed 
+     *                    unless other clients still hold it.
      */
-    public Collection<ProjectContainer> getProjects(String name)
-        throws 
-            DSOutOfServiceException,
-            DSAccessException
+    public void disconnect(boolean keepSession)
     {
-        Collection<ProjectData> projects =  browse.getProjects(ctx, name);
-        
-        Collection<ProjectContainer> projectsContainer = new ArrayList<ProjectContainer>(projects.size());
+        stopKeepAlive();
 
-        for (ProjectData project : projects) 
-        { 
-            projectsContainer.add(new ProjectContainer(project));
+        if(keepSession) {
+            try {
+                detachSession();
+            }
+            catch(Exception e) {
+                //The session is closed with the gateway
+            }
         }
-        
-        return projectsContainer;
+
+        gateway.disconnect();
     }
 
+    /**
+     * Take a reference on the session which is not released when its connection ends, 
+     * so that the session survives the disconnection of the gateway.
+     * 
+     * @throws Exception Cannot join the session
+     */
+    private void detachSession()
+        throws 
+            Exception
+    {
+        omero.client client = new omero.client(cred.getServer().getHost(), cred.getServer().getPort());
+        try {
+            client.joinSession(getSessionKey()).detachOnDestroy();
+        }
+        finally {
+            client.__del__();
+        }
+    }
 
 
 
 
     /**
-     * Get the dataset with the specified id from OMERO.
+     * Check that the session is still alive.
      * 
-     * @param id Id of the Dataset
-     * 
-     * @return ProjectContainer containing the project
+     * @return true if the server answered
+     */
+    public boolean ping()
+    {
+        try {
+            gateway.getAdminService(ctx).getEventContext();
+            return true;
+        }
+        catch(Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Ping the session periodically in the background, and reconnect when it is lost.
      * 
-     * @throws DSOutOfServiceException Cannot connect to OMERO
-     * @throws DSAccessException       Cannot access data
-     * @throws NoSuchElementException  No element with such id
+     * @param interval Time between two pings
+     * @param unit     Unit of the interval
      */
-    public DatasetContainer getDataset(Long id)
-        throws 
-            DSOutOfServiceException,
-            DSAccessException,
-            NoSuchElementException
+    public synchronized void startKeepAlive(long     interval, 
+                                            TimeUnit unit)
     {
-        Collection<DatasetData> datasets = browse.getDatasets(ctx);
+        stopKeepAlive();
 
-        for(DatasetData dataset : datasets)
-        {
-            if (dataset.getId() == id)
+        keepAlive = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
             {
-                return new DatasetContainer(dataset);
+                Thread thread = new Thread(r, "omero-keepalive");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        keepAlive.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                long current = session;
+                if(!ping()) {
+                    try {
+                        reconnect(current);
+                    }
+                    catch(Exception e) {
+                        //Retried at the next ping
+                    }
+                }
             }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Stop the background keepalive.
+     */
+    public synchronized void stopKeepAlive()
+    {
+        if(keepAlive != null) {
+            keepAlive.shutdownNow();
+            keepAlive = null;
         }
-        throw new NoSuchElementException("Dataset " + id + " doesn't exist in this context");
     }
 
     /**
-     * Get all the datasets available from OMERO.
+     * Set the reconnection policy.
+     * The delay between attempts starts at the initial delay and doubles after each failure, up to the maximum delay.
      * 
-     * @return Collection of DatasetContainer.
+     * @param attempts     Maximum number of attempts
+     * @param initialDelay Delay before the second attempt, in milliseconds
+     * @param maxDelay     Maximum delay between two attempts, in milliseconds
+     */
+    public void setReconnectPolicy(int  attempts, 
+                                   long initialDelay, 
+                                   long maxDelay)
+    {
+        this.reconnectAttempts = attempts;
+        this.reconnectDelay    = initialDelay;
+        this.reconnectMaxDelay = maxDelay;
+    }
+
+    /**
+     * @return the number of successful reconnections
+     */
+    public long getReconnectCount()
+    {
+        return reconnectCount.get();
+    }
+
+    /**
+     * @return the total time spent reconnecting, in milliseconds
+     */
+    public long getReconnectLatency()
+    {
+        return reconnectLatency.get();
+    }
+
+    /**
+     * Log in again with the credentials used to connect, on the same gateway.
      * 
-     * @throws DSOutOfServiceException Cannot connect to OMERO
-     * @throws DSAccessException       Cannot access data
+     * @throws DSOutOfServiceException Cannot connect to OMERO after all the attempts
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     * @throws InterruptedException    The thread was interrupted while waiting between attempts
      */
-    public Collection<DatasetContainer> getDatasets()
+    public void reconnect()
         throws 
             DSOutOfServiceException,
-            DSAccessException
+            ExecutionException,
+            InterruptedException
     {
-        Collection<DatasetData> datasets =  browse.getDatasets(ctx);
-        
-        Collection<DatasetContainer> datasetContainer = new ArrayList<DatasetContainer>(datasets.size());
-
-        for(DatasetData dataset : datasets)
-        {
-            datasetContainer.add(new DatasetContainer(dataset));
-        }
-        return datasetContainer;
+        reconnect(session);
     }
 
     /**
-     * Get all datasets with a certain name from OMERO.
+     * Log in again with the credentials used to connect, unless another thread already reconnected 
+     * since the session specified was lost.
+     * Each attempt holds the lock of the client, but the waits between attempts do not, 
+     * so the other threads fail fast instead of waiting for the whole backoff.
+     * The client stays in its current group, and the key of the new session replaces the lost one 
+     * in the {@link SessionCache} the session came from, if any.
      * 
-     * @param name Name searched
-     * 
-     * @return Collection of DatasetContainer.
+     * @param lost Number of the session lost
      * 
-     * @throws DSOutOfServiceException Cannot connect to OMERO
-     * @throws DSAccessException       Cannot access data
+     * @throws DSOutOfServiceException Cannot connect to OMERO after all the attempts, 
+     *                                 or the client joined a session which cannot be reopened
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     * @throws InterruptedException    The thread was interrupted while waiting between attempts
      */
-    public Collection<DatasetContainer> getDatasets(String name)
+    private void reconnect(long lost)
         throws 
             DSOutOfServiceException,
-            DSAccessException
+            ExecutionException,
+            InterruptedException
     {
-        Collection<DatasetData> datasets =  browse.getDatasets(ctx, name);
-        
-        Collection<DatasetContainer> datasetContainer = new ArrayList<DatasetContainer>(datasets.size());
+        if(session != lost)
+            return;
 
-        for (DatasetData dataset : datasets) 
-        { 
-            datasetContainer.add(new DatasetContainer(dataset));
-        }
-        
-        return datasetContainer;
-    }
+        if(cred == null)
+            throw new DSOutOfServiceException("Client was never connected");
 
+        if(joined)
+            throw new DSOutOfServiceException("The joined session was lost: log in with a password to reconnect");
 
+        long start = System.currentTimeMillis();
+        long delay = reconnectDelay;
 
+        DSOutOfServiceException failure = null;
+        for(int attempt = 0; attempt < reconnectAttempts; attempt++) {
+            if(attempt > 0) {
+                Thread.sleep(delay);
+                delay = Math.min(delay * 2, reconnectMaxDelay);
+            }
 
-    /**
-     * Transform a collection of ImageData in a list of ImageContainer sorted by the ImageData id.
-     * 
-     * @param images ImageData Collection 
-     * 
-     * @return ImageContainer list sorted
+            synchronized(this) {
+                if(session != lost)
+                    return;
+
+                try {
+                    gateway.disconnect();
+                }
+                catch(Exception e) {
+                    //The session is already lost
+                }
+
+                long         group        = ctx.getGroupID();
+                boolean      keepSession  = cached;
+                SessionCache sessionCache = sessions;
+                Long         cacheGroup   = sessionGroup;
+                try {
+                    resetServices();
+                    connect(cred);
+
+                    this.ctx          = new SecurityContext(group);
+                    this.cached       = keepSession;
+                    this.sessions     = sessionCache;
+                    this.sessionGroup = cacheGroup;
+                    if(sessionCache != null)
+                        updateSessionCache();
+
+                    session++;
+                    reconnectCount.incrementAndGet();
+                    reconnectLatency.addAndGet(System.currentTimeMillis() - start);
+                    return;
+                }
+                catch(DSOutOfServiceException e) {
+                    failure = e;
+                }
+            }
+        }
+
+        throw failure;
+    }
+
+    /**
+     * Forget the services of this client and of the clients derived from it, which belong to the lost session.
+     * They are created again on the new session when they are next used.
      */
-    private List<ImageContainer> toImagesContainer(Collection<ImageData> images)
+    private void resetServices()
     {
-        List<ImageContainer> imagesContainer = new ArrayList<ImageContainer>(images.size());
+        synchronized(this) {
+            qs = null;
+            us = null;
+            rs = null;
+        }
 
-        for(ImageData image : images)
-        {
-            imagesContainer.add(new ImageContainer(image));
+        List<Client> clients;
+        synchronized(derived) {
+            clients = new ArrayList<Client>(derived.keySet());
         }
+        for(Client c : clients)
+            c.resetServices();
+    }
 
-        Collections.sort(imagesContainer, new SortImageContainer());
+    /**
+     * Store the key of the current session in the SessionCache of the client, in place of the lost one.
+     */
+    private void updateSessionCache()
+    {
+        try {
+            sessions.put(cred.getServer().getHost(), cred.getServer().getPort(), cred.getUser().getUsername(),
+                         sessionGroup, getSessionKey());
+        }
+        catch(IOException e) {
+            //The session is still usable without the cache
+        }
+        catch(DSOutOfServiceException e) {
+            //The key of the new session cannot be stored: the next connection logs in with the password
+        }
+    }
 
-        return imagesContainer;
+    /**
+     * Run a task with this client, and run it again once after reconnecting if the session was lost.
+     * Only idempotent tasks, such as reads, should be replayed.
+     * 
+     * @param task Task to run
+     * @param <T>  Type of the result
+     * 
+     * @return the result of the task
+     * 
+     * @throws Exception The task failed, or the client could not reconnect
+     */
+    public <T> T withReconnect(ClientPool.Task<T> task)
+        throws 
+            Exception
+    {
+        long current = session;
+        try {
+            return task.run(this);
+        }
+        catch(Exception e) {
+            if(!isConnectionLost(e))
+                throw e;
+        }
+
+        reconnect(current);
+        return task.run(this);
     }
 
     /**
-     * Return an ImageContainer that contains the image with the specified id from OMERO.
+     * Check if an exception was caused by the loss of the session or connection.
      * 
-     * @param imageId Id of the image
+     * @param e Exception thrown
      * 
-     * @return ImageContainer containing the image
+     * @return true if the session or connection was lost
+     */
+    private static boolean isConnectionLost(Throwable e)
+    {
+        for(Throwable t = e; t != null; t = t.getCause()) {
+            if(t instanceof DSOutOfServiceException ||
+               t instanceof omero.SessionException  ||
+               t instanceof Ice.ConnectionLostException ||
+               t instanceof Ice.ConnectionRefusedException ||
+               t instanceof Ice.CommunicatorDestroyedException ||
+               t instanceof Ice.ObjectNotExistException)
+                return true;
+        }
+        return false;
+    }
+
+
+
+
+    /**
+     * Retrieve the projects from the cache, or from OMERO if they are not cached.
+     * 
+     * @param name Name searched, null for all projects
+     * 
+     * @return Collection of ProjectData
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     */
+    private Collection<ProjectData> loadProjects(String name)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException
+    {
+        String key = name == null ? "all" : "name:" + name;
+
+        Collection<ProjectData> projects = cache.get(this, MetadataCache.Type.PROJECT, key);
+        if(projects == null) {
+            projects = name == null ? browse.getProjects(ctx) : browse.getProjects(ctx, name);
+            cache.put(this, MetadataCache.Type.PROJECT, key, projects);
+        }
+
+        return projects;
+    }
+
+    /**
+     * Get the project with the specified id from OMERO.
+     * 
+     * @param id Id of the project 
+     * 
+     * @return ProjectContainer containing the project
      * 
      * @throws DSOutOfServiceException Cannot connect to OMERO
      * @throws DSAccessException       Cannot access data
      * @throws NoSuchElementException  No element with such id
      */
-    public ImageContainer getImage(Long imageId)
+    public ProjectContainer getProject(Long id)
         throws 
             DSOutOfServiceException,
             DSAccessException,
             NoSuchElementException
     {
-        ImageContainer image = new ImageContainer(browse.getImage(ctx, imageId));
+        Collection<ProjectData> projects = loadProjects(null);
 
-        return image;
+        for(ProjectData project : projects)
+        {
+            if (project.getId() == id)
+            {
+                return new ProjectContainer(project);
+            }
+        }
+        throw new NoSuchElementException("Project " + id + " doesn't exist in this context");
     }
 
     /**
-     * Get all images available from OMERO.
+     * Get all projects available from OMERO.
      * 
-     * @return ImageContainer list
+     * @return Collection of ProjectContainer
      * 
      * @throws DSOutOfServiceException Cannot connect to OMERO
      * @throws DSAccessException       Cannot access data
      */
-    public List<ImageContainer> getImages()
+    public Collection<ProjectContainer> getProjects()
         throws 
             DSOutOfServiceException,
             DSAccessException
     {
-        Collection<ImageData> images = browse.getUserImages(ctx);
+        Collection<ProjectData> projects = loadProjects(null);
+        
+        Collection<ProjectContainer> projectsContainer = new ArrayList<ProjectContainer>(projects.size());
 
-        return toImagesContainer(images);
+        for(ProjectData project : projects)
+        {
+            projectsContainer.add(new ProjectContainer(project));
+        }
+        return projectsContainer;
     }
 
     /**
-     * Get all images with a certain from OMERO.
+     * Get all projects with a certain name from OMERO.
      * 
      * @param name Name searched
      * 
-     * @return ImageContainer list
+     * @return Collection of ProjectContainer.
      * 
      * @throws DSOutOfServiceException Cannot connect to OMERO
      * @throws DSAccessException       Cannot access data
      */
-    public List<ImageContainer> getImages(String name)
+    public Collection<ProjectContainer> getProjects(String name)
         throws 
             DSOutOfServiceException,
             DSAccessException
     {
-        Collection<ImageData> images = browse.getImages(ctx, name);
+        Collection<ProjectData> projects = loadProjects(name);
+        
+        Collection<ProjectContainer> projectsContainer = new ArrayList<ProjectContainer>(projects.size());
 
-        Collection<ImageData> selected = new ArrayList<ImageData>(images.size());
+        for (ProjectData project : projects) 
+        { 
+            projectsContainer.add(new ProjectContainer(project));
+        }
+        
+        return projectsContainer;
+    }
 
-        for(ImageData image : images) {
-            if(image.getName().equals(name)) {
-                selected.add(image);
+
+
+
+
+    /**
+     * Retrieve the datasets from the cache, or from OMERO if they are not cached.
+     * 
+     * @param name Name searched, null for all datasets
+     * 
+     * @return Collection of DatasetData
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     */
+    private Collection<DatasetData> loadDatasets(String name)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException
+    {
+        String key = name == null ? "all" : "name:" + name;
+
+        Collection<DatasetData> datasets = cache.get(this, MetadataCache.Type.DATASET, key);
+        if(datasets == null) {
+            datasets = name == null ? browse.getDatasets(ctx) : browse.getDatasets(ctx, name);
+            cache.put(this, MetadataCache.Type.DATASET, key, datasets);
+        }
+
+        return datasets;
+    }
+
+    /**
+     * Get the dataset with the specified id from OMERO.
+     * 
+     * @param id Id of the Dataset
+     * 
+     * @return ProjectContainer containing the project
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     * @throws NoSuchElementException  No element with such id
+     */
+    public DatasetContainer getDataset(Long id)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException,
+            NoSuchElementException
+    {
+        Collection<DatasetData> datasets = loadDatasets(null);
+
+        for(DatasetData dataset : datasets)
+        {
+            if (dataset.getId() == id)
+            {
+                return new DatasetContainer(dataset);
             }
         }
+        throw new NoSuchElementException("Dataset " + id + " doesn't exist in this context");
+    }
+
+    /**
+     * Get a snapshot of the project/dataset/image hierarchy available from OMERO.
+     * The snapshot answers lookups by id, name and parent locally, and can be refreshed incrementally.
+     * 
+     * @return HierarchySnapshot of the hierarchy
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public HierarchySnapshot getHierarchySnapshot()
+        throws 
+            ServerError,
+            DSOutOfServiceException
+    {
+        return new HierarchySnapshot(this);
+    }
+
+    /**
+     * Get all the datasets available from OMERO.
+     * 
+     * @return Collection of DatasetContainer.
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     */
+    public Collection<DatasetContainer> getDatasets()
+        throws 
+            DSOutOfServiceException,
+            DSAccessException
+    {
+        Collection<DatasetData> datasets = loadDatasets(null);
+        
+        Collection<DatasetContainer> datasetContainer = new ArrayList<DatasetContainer>(datasets.size());
+
+        for(DatasetData dataset : datasets)
+        {
+            datasetContainer.add(new DatasetContainer(dataset));
+        }
+        return datasetContainer;
+    }
+
+    /**
+     * Get all datasets with a certain name from OMERO.
+     * 
+     * @param name Name searched
+     * 
+     * @return Collection of DatasetContainer.
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     */
+    public Collection<DatasetContainer> getDatasets(String name)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException
+    {
+        Collection<DatasetData> datasets = loadDatasets(name);
+        
+        Collection<DatasetContainer> datasetContainer = new ArrayList<DatasetContainer>(datasets.size());
+
+        for (DatasetData dataset : datasets) 
+        { 
+            datasetContainer.add(new DatasetContainer(dataset));
+        }
+        
+        return datasetContainer;
+    }
+
+
+
+
+    /**
+     * Transform a collection of ImageData in a list of ImageContainer sorted by the ImageData id.
+     * 
+     * @param images ImageData Collection 
+     * 
+     * @return ImageContainer list sorted
+     */
+    private List<ImageContainer> toImagesContainer(Collection<ImageData> images)
+    {
+        List<ImageContainer> imagesContainer = new ArrayList<ImageContainer>(images.size());
+
+        for(ImageData image : images)
+        {
+            imagesContainer.add(new ImageContainer(image));
+        }
+
+        Collections.sort(imagesContainer, new SortImageContainer());
+
+        return imagesContainer;
+    }
+
+    /**
+     * Return an ImageContainer that contains the image with the specified id from OMERO.
+     * 
+     * @param imageId Id of the image
+     * 
+     * @return ImageContainer containing the image
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     * @throws NoSuchElementException  No element with such id
+     */
+    public ImageContainer getImage(Long imageId)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException,
+            NoSuchElementException
+    {
+        ImageContainer image = new ImageContainer(browse.getImage(ctx, imageId));
+
+        return image;
+    }
+
+    /**
+     * Get all images available from OMERO.
+     * 
+     * @return ImageContainer list
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     */
+    public List<ImageContainer> getImages()
+        throws 
+            DSOutOfServiceException,
+            DSAccessException
+    {
+        Collection<ImageData> images = browse.getUserImages(ctx);
+
+        return toImagesContainer(images);
+    }
+
+    /**
+     * Get all images available from OMERO, page by page.
+     * The images are sorted by id and only the current and next pages are held in memory.
+     * 
+     * @param pageSize Number of images retrieved per page
+     * 
+     * @return ImagePager iterating over the images
+     */
+    public ImagePager getImagesPaged(int pageSize)
+    {
+        ParametersI param = new ParametersI();
+        param.addLong("owner", getId());
+
+        return new ImagePager(this, " and i.details.owner.id = :owner", param, pageSize);
+    }
+
+    /**
+     * Get all images available from OMERO, page by page, with the default page size.
+     * 
+     * @return ImagePager iterating over the images
+     */
+    public ImagePager getImagesPaged()
+    {
+        return getImagesPaged(ImagePager.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Get the summaries of all images available from OMERO.
+     * Only the id, name, acquisition date, dataset and dimensions are retrieved.
+     * 
+     * @return ImageSummary list sorted by image id
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public List<ImageSummary> getImageSummaries()
+        throws 
+            ServerError,
+            DSOutOfServiceException
+    {
+        ParametersI param = new ParametersI();
+        param.addLong("owner", getId());
+
+        return ImageSummary.load(this, "i.details.owner.id = :owner", param);
+    }
+
+    /**
+     * Get all images with a certain from OMERO.
+     * 
+     * @param name Name searched
+     * 
+     * @return ImageContainer list
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     */
+    public List<ImageContainer> getImages(String name)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException
+    {
+        Collection<ImageData> images = browse.getImages(ctx, name);
+
+        Collection<ImageData> selected = new ArrayList<ImageData>(images.size());
+
+        for(ImageData image : images) {
+            if(image.getName().equals(name)) {
+                selected.add(image);
+            }
+        }
+
+        return toImagesContainer(selected);
+    }
+
+    /**
+     * Get all images with a certain motif in their name from OMERO.
+     * 
+     * @param motif Motif searched in an Image name
+     * 
+     * @return ImageContainer list
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     */
+    public List<ImageContainer> getImagesLike(String motif)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException
+    {
+        Collection<ImageData> images = browse.getUserImages(ctx);
+
+        motif = ".*" + motif + ".*";
+
+        Collection<ImageData> selected = new ArrayList<ImageData>(images.size());
+
+        for(ImageData image : images) {
+            if(image.getName().matches(motif)) {
+                selected.add(image); 
+            }
+        }
+        return toImagesContainer(selected);
+    }
+
+    /**
+     * Get all images tagged with a specified tag from OMERO.
+     * 
+     * @param tag TagAnnotationContainer containing the tag researched
+     * 
+     * @return ImageContainer list
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     */
+    public List<ImageContainer> getImagesTagged(TagAnnotationContainer tag)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException,
+            ExecutionException,
+            ServerError
+    {
+        List<IObject> os = getQueryService().findAllByQuery("select link.parent " +
+                                                            "from ImageAnnotationLink link " + 
+                                                            "where link.child = " + 
+                                                            tag.getId(), null);
+
+        Collection<ImageData> selected = new ArrayList<ImageData>();
+
+        for(IObject o : os) {
+            ImageData image = browse.getImage(ctx, o.getId().getValue());
+            selected.add(image);
+        }
+        return toImagesContainer(selected);
+    }
+
+    /**
+     * Get all images tagged with a specified tag from OMERO.
+     * 
+     * @param tagId Id of the tag researched
+     * 
+     * @return ImageContainer list
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     */
+    public List<ImageContainer> getImagesTagged(Long tagId)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException,
+            ExecutionException,
+            ServerError
+    {
+        List<IObject> os = getQueryService().findAllByQuery("select link.parent " +
+                                                            "from ImageAnnotationLink link " + 
+                                                            "where link.child = " + 
+                                                            tagId, null);
+
+        Collection<ImageData> selected = new ArrayList<ImageData>();
+
+        for(IObject o : os) {
+            ImageData image = browse.getImage(ctx, o.getId().getValue());
+            selected.add(image);
+        }
+        return toImagesContainer(selected);
+    }
+
+    /**
+     * Get all images with a certain key
+     * 
+     * @param key Name of the key researched
+     * 
+     * @return ImageContainer list
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     */
+    public List<ImageContainer> getImagesKey(String key)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException,
+            ExecutionException
+    {
+        Collection<ImageData> images = browse.getUserImages(ctx);
+
+        Collection<ImageData> selected = new ArrayList<ImageData>(images.size());
+
+        for(ImageData image : images)
+        {
+            ImageContainer imageContainer = new ImageContainer(image);
+            
+            Collection<NamedValue> pairsKeyValue = imageContainer.getKeyValuePairs(this);
+
+            for(NamedValue pairKeyValue : pairsKeyValue)
+            {
+                if(pairKeyValue.name.equals(key))
+                {
+                    selected.add(image);
+                    break;
+                }
+            }
+        }
+
+        return toImagesContainer(selected);
+    }
+
+    /**
+     * Get all images with a certain key value pair from OMERO
+     * 
+     * @param key   Name of the key researched
+     * @param value Value associated with the key
+     * 
+     * @return ImageContainer list
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     */
+    public List<ImageContainer> getImagesPairKeyValue(String key, 
+                                                      String value)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException,
+            ExecutionException
+    {
+        Collection<ImageData> images = browse.getUserImages(ctx);
+
+        Collection<ImageData> selected = new ArrayList<ImageData>(images.size());
+
+        for(ImageData image : images)
+        {
+            ImageContainer imageContainer = new ImageContainer(image);
+            
+            Collection<NamedValue> pairsKeyValue = imageContainer.getKeyValuePairs(this);
+
+            for(NamedValue pairKeyValue : pairsKeyValue)
+            {
+                if(pairKeyValue.name.equals(key) && pairKeyValue.value.equals(value))
+                {
+                    selected.add(image);
+                    break;
+                }
+            }
+        }
+
+        return toImagesContainer(selected);
+    }
+
+
+
+
+
+    /**
+     * Get the client associated with the username in the parameters.
+     * The user calling this function needs to have administrator rights.
+     * All action realized with the client returned will be considered as his.
+     * The client is cached: later calls for the same user return it without querying OMERO.
+     * 
+     * @param username Username of user
+     * 
+     * @return The client corresponding to the new user
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     */
+    public Client SudoGetUser(String username)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException,
+            ExecutionException
+    {
+        Client c = sudoByName.get(username);
+
+        if(c == null) {
+            ExperimenterData sudoUser = getAdminFacility().lookupExperimenter(ctx, username);
+            c = sudo(sudoUser);
+        }
+
+        return c;
+    }
+
+    /**
+     * Get the client associated with the user id in the parameters.
+     * The user calling this function needs to have administrator rights.
+     * All action realized with the client returned will be considered as his.
+     * The client is cached: later calls for the same user return it without querying OMERO.
+     * 
+     * @param userId Id of the user
+     * 
+     * @return The client corresponding to the new user
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public Client SudoGetUser(Long userId)
+        throws 
+            ServerError,
+            DSOutOfServiceException
+    {
+        Client c = sudoById.get(userId);
+
+        if(c == null) {
+            Experimenter experimenter = gateway.getAdminService(ctx).getExperimenter(userId);
+            c = sudo(new ExperimenterData(experimenter));
+        }
+
+        return c;
+    }
+
+    /**
+     * Retrieve all the users in one call and create their sudo clients, 
+     * so that later calls to SudoGetUser do not query OMERO.
+     * The user calling this function needs to have administrator rights.
+     * 
+     * @return the number of sudo clients available
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public int prefetchSudoUsers()
+        throws 
+            ServerError,
+            DSOutOfServiceException
+    {
+        List<Experimenter> experimenters = gateway.getAdminService(ctx).lookupExperimenters();
+
+        for(Experimenter experimenter : experimenters) {
+            if(!sudoById.containsKey(experimenter.getId().getValue()))
+                sudo(new ExperimenterData(experimenter));
+        }
+
+        return sudoById.size();
+    }
+
+    /**
+     * Remove all the sudo clients from the cache.
+     */
+    public void clearSudoUsers()
+    {
+        sudoByName.clear();
+        sudoById.clear();
+    }
+
+    /**
+     * Create the sudo client of a user and add it to the cache.
+     * The client shares the gateway, the facilities and the metadata cache of this client, 
+     * and its services are reset when this client reconnects.
+     * If another thread already created the client of this user, that client is returned.
+     * 
+     * @param sudoUser The user
+     * 
+     * @return The client corresponding to the user
+     */
+    private Client sudo(ExperimenterData sudoUser)
+    {
+        SecurityContext sudoCtx = new SecurityContext(sudoUser.getGroupId());
+        sudoCtx.setExperimenter(sudoUser);
+        sudoCtx.sudo();
+
+        Client c = new Client(gateway);
+
+        c.ctx      = sudoCtx;
+        c.user     = sudoUser;
+        c.browse   = this.browse;
+        c.dm       = this.dm;
+        c.metadata = this.metadata;
+        c.roifac   = this.roifac;
+        c.fac      = this.fac;
+        c.admin    = this.admin;
+        c.rdf      = this.rdf;
+        c.cache    = this.cache;
+
+        Client previous = sudoById.putIfAbsent(sudoUser.getId(), c);
+        if(previous != null)
+            c = previous;
+        else
+            derived.put(c, Boolean.TRUE);
+
+        sudoByName.putIfAbsent(sudoUser.getUserName(), c);
+
+        return c;
+    }
+
+
+
+
+    /**
+     * Retrieve the tags from the cache, or from OMERO if they are not cached.
+     * The cached list is never modified: the tags returned are copies, which can be changed by the caller.
+     * 
+     * @return List of TagAnnotation
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    private List<IObject> loadTags()
+        throws 
+            ServerError,
+            DSOutOfServiceException
+    {
+        List<IObject> os = cache.get(this, MetadataCache.Type.TAG, "all");
+        if(os == null) {
+            IQueryPrx qs = gateway.getQueryService(ctx);
+            os = Collections.unmodifiableList(qs.findAll(TagAnnotation.class.getSimpleName(), null));
+            cache.put(this, MetadataCache.Type.TAG, "all", os);
+        }
+
+        List<IObject> copies = new ArrayList<IObject>(os.size());
+        for(IObject o : os)
+            copies.add((IObject) o.clone());
+
+        return copies;
+    }
+
+    /**
+     * Get the list of TagAnnotationContainer available to the user
+     * 
+     * @return list of TagAnnotationContainer
+     * 
+     * @throws ServerError
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public List<TagAnnotationContainer> getTags()
+        throws 
+            ServerError,
+            DSOutOfServiceException
+    {
+        List<IObject> os = loadTags();
+        List<TagAnnotationContainer> tags = new ArrayList<TagAnnotationContainer>(os.size());
+
+        for(IObject o : os) {
+            TagAnnotationData tag = new TagAnnotationData((TagAnnotation) o);
+            tags.add(new TagAnnotationContainer(tag));
+        }
+        
+        Collections.sort(tags, new SortTagAnnotationContainer());
+        return tags;
+    }
+
+    /**
+     * Get the list of TagAnnotationContainer with the specified name available to the user
+     * 
+     * @param name Name of the tag searched
+     * 
+     * @return list of TagAnnotationContainer
+     * 
+     * @throws ServerError Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public List<TagAnnotationContainer> getTags(String name)
+        throws 
+            ServerError,
+            DSOutOfServiceException
+    {
+        List<IObject> os = loadTags();
+        List<TagAnnotationContainer> tags = new ArrayList<TagAnnotationContainer>(os.size());
+
+        for(IObject o : os) {
+            TagAnnotationData tag = new TagAnnotationData((TagAnnotation) o);
+
+            if(name.equals(tag.getContentAsString())) {
+                tag.setNameSpace(tag.getContentAsString());
+                tags.add(new TagAnnotationContainer(tag));
+            }
+        }
+
+        Collections.sort(tags, new SortTagAnnotationContainer());
+        return tags;
+    }
+
+    /**
+     * Get a specific tag from the OMERO database
+     * 
+     * @param id Id of the tag 
+     * 
+     * @return TagAnnotationContainer containng the specified tag
+     * 
+     * @throws ServerError
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public TagAnnotationContainer getTag(Long id)
+        throws 
+            ServerError,
+            DSOutOfServiceException
+    {
+        IObject o = cache.get(this, MetadataCache.Type.TAG, id);
+        if(o == null) {
+            IQueryPrx qs = gateway.getQueryService(ctx);
+            o = qs.find(TagAnnotation.class.getSimpleName(), id);
+            cache.put(this, MetadataCache.Type.TAG, id, o);
+        }
+
+        TagAnnotationData tag = new TagAnnotationData((TagAnnotation) o.clone());
+        tag.setNameSpace(tag.getContentAsString());
+
+        return new TagAnnotationContainer(tag);
+    }
+
+
+
+
+    /**
+     * Listing done in one group by {@link #fanOut(GroupTask)}.
+     * 
+     * @param <T> Type of the results
+     */
+    private interface GroupTask<T> {
+        /**
+         * Run the listing.
+         * 
+         * @param client The user, connected to the group
+         * 
+         * @return the results in this group
+         * 
+         * @throws Exception The listing failed
+         */
+        Collection<T> run(Client client) throws Exception;
+    }
+
+    /**
+     * Set the maximum number of groups queried in parallel by the cross-group methods.
+     * 
+     * @param parallelism Number of groups queried at the same time
+     */
+    public void setGroupParallelism(int parallelism)
+    {
+        this.groupParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Get the ids of the groups the user is a member of, without the system, user and guest groups.
+     * 
+     * @return sorted list of group ids
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public List<Long> getUserGroupIds()
+        throws 
+            ServerError,
+            DSOutOfServiceException
+    {
+        IAdminPrx adminService = gateway.getAdminService(ctx);
+        Roles     roles        = adminService.getSecurityRoles();
+
+        List<Long> groupIds = new ArrayList<Long>(adminService.getMemberOfGroupIds(user.asExperimenter()));
+        groupIds.remove(roles.systemGroupId);
+        groupIds.remove(roles.userGroupId);
+        groupIds.remove(roles.guestGroupId);
+
+        Collections.sort(groupIds);
+        return groupIds;
+    }
+
+    /**
+     * Get a client for the same user and session, working in another group.
+     * The client shares the gateway, the facilities and the cache of this client, 
+     * and its services are reset when this client reconnects.
+     * 
+     * @param groupId Id of the group
+     * 
+     * @return The client working in the group
+     */
+    public Client inGroup(Long groupId)
+    {
+        Client c = new Client(gateway);
+
+        c.user     = this.user;
+        c.cred     = this.cred;
+        c.ctx      = new SecurityContext(groupId);
+        c.browse   = this.browse;
+        c.dm       = this.dm;
+        c.metadata = this.metadata;
+        c.roifac   = this.roifac;
+        c.fac      = this.fac;
+        c.admin    = this.admin;
+        c.rdf      = this.rdf;
+        c.cache    = this.cache;
+
+        derived.put(c, Boolean.TRUE);
+
+        return c;
+    }
+
+    /**
+     * Run a listing in each group of the user, in parallel, and merge the results.
+     * 
+     * @param task Listing to run in each group
+     * @param <T>  Type of the results
+     * 
+     * @return List of the results of all the groups
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ExecutionException      The listing failed in a group
+     * @throws InterruptedException    The thread was interrupted while waiting for the results
+     */
+    private <T> List<T> fanOut(final GroupTask<T> task)
+        throws 
+            ServerError,
+            DSOutOfServiceException,
+            ExecutionException,
+            InterruptedException
+    {
+        List<Long> groupIds = getUserGroupIds();
+        List<T>    results  = new ArrayList<T>();
+
+        if(groupIds.isEmpty())
+            return results;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(groupParallelism, groupIds.size()));
+        try {
+            List<Future<Collection<T>>> futures = new ArrayList<Future<Collection<T>>>(groupIds.size());
+
+            for(final Long groupId : groupIds) {
+                futures.add(pool.submit(new Callable<Collection<T>>() {
+                    public Collection<T> call()
+                        throws Exception
+                    {
+                        return task.run(inGroup(groupId));
+                    }
+                }));
+            }
+
+            for(Future<Collection<T>> future : futures)
+                results.addAll(future.get());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        return results;
+    }
+
+    /**
+     * Get all the images owned by the user in all of his groups.
+     * The group of each image is available from {@link ImageContainer#getGroupId()}.
+     * 
+     * @return ImageContainer list sorted by id
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ExecutionException      The listing failed in a group
+     * @throws InterruptedException    The thread was interrupted while waiting for the results
+     */
+    public List<ImageContainer> getImagesAllGroups()
+        throws 
+            ServerError,
+            DSOutOfServiceException,
+            ExecutionException,
+            InterruptedException
+    {
+        List<ImageContainer> images = fanOut(new GroupTask<ImageContainer>() {
+            public Collection<ImageContainer> run(Client client)
+                throws Exception
+            {
+                return client.getImages();
+            }
+        });
+
+        Collections.sort(images, new SortImageContainer());
+        return images;
+    }
+
+    /**
+     * Get the images with a certain name in all the groups of the user.
+     * 
+     * @param name Name searched
+     * 
+     * @return ImageContainer list sorted by id
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ExecutionException      The listing failed in a group
+     * @throws InterruptedException    The thread was interrupted while waiting for the results
+     */
+    public List<ImageContainer> getImagesAllGroups(final String name)
+        throws 
+            ServerError,
+            DSOutOfServiceException,
+            ExecutionException,
+            InterruptedException
+    {
+        List<ImageContainer> images = fanOut(new GroupTask<ImageContainer>() {
+            public Collection<ImageContainer> run(Client client)
+                throws Exception
+            {
+                return client.getImages(name);
+            }
+        });
+
+        Collections.sort(images, new SortImageContainer());
+        return images;
+    }
+
+    /**
+     * Get the projects in all the groups of the user.
+     * 
+     * @return List of ProjectContainer
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ExecutionException      The listing failed in a group
+     * @throws InterruptedException    The thread was interrupted while waiting for the results
+     */
+    public List<ProjectContainer> getProjectsAllGroups()
+        throws 
+            ServerError,
+            DSOutOfServiceException,
+            ExecutionException,
+            InterruptedException
+    {
+        return fanOut(new GroupTask<ProjectContainer>() {
+            public Collection<ProjectContainer> run(Client client)
+                throws Exception
+            {
+                return client.getProjects();
+            }
+        });
+    }
+
+    /**
+     * Get the datasets in all the groups of the user.
+     * 
+     * @return List of DatasetContainer
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ExecutionException      The listing failed in a group
+     * @throws InterruptedException    The thread was interrupted while waiting for the results
+     */
+    public List<DatasetContainer> getDatasetsAllGroups()
+        throws 
+            ServerError,
+            DSOutOfServiceException,
+            ExecutionException,
+            InterruptedException
+    {
+        return fanOut(new GroupTask<DatasetContainer>() {
+            public Collection<DatasetContainer> run(Client client)
+                throws Exception
+            {
+                return client.getDatasets();
+            }
+        });
+    }
+
+    /**
+     * Get the tags in all the groups of the user.
+     * 
+     * @return list of TagAnnotationContainer sorted by id
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ExecutionException      The listing failed in a group
+     * @throws InterruptedException    The thread was interrupted while waiting for the results
+     */
+    public List<TagAnnotationContainer> getTagsAllGroups()
+        throws 
+            ServerError,
+            DSOutOfServiceException,
+            ExecutionException,
+            InterruptedException
+    {
+        List<TagAnnotationContainer> tags = fanOut(new GroupTask<TagAnnotationContainer>() {
+            public Collection<TagAnnotationContainer> run(Client client)
+                throws Exception
+            {
+                return client.getTags();
+            }
+        });
+
+        Collections.sort(tags, new SortTagAnnotationContainer());
+        return tags;
+    }
+
+    
+
+
+    /**
+     * Open a write batch on the current thread.
+     * Until the batch is closed, the links added and the ROIs updated through the containers with this client,
+     * on this thread, are queued and sent in batches.
+     * <p>
+     * Use it in a try-with-resources statement, then check {@link WriteBatch#getFailures()}.
+     * 
+     * @param batchSize Maximum number of objects per request
+     * @param maxDelay  Maximum time an object stays in the queue, in milliseconds, 0 or less to disable
+     * 
+     * @return the batch
+     * 
+     * @throws IllegalStateException A batch is already open on this thread
+     */
+    public WriteBatch batch(int  batchSize, 
+                            long maxDelay)
+    {
+        if(batch.get() != null)
+            throw new IllegalStateException("A write batch is already open on this thread");
+
+        WriteBatch b = new WriteBatch(this, batchSize, maxDelay);
+        batch.set(b);
+
+        return b;
+    }
+
+    /**
+     * Open a write batch on the current thread, flushed every {@link Batches#DEFAULT_BATCH_SIZE} objects
+     * and when it is closed.
+     * 
+     * @return the batch
+     * 
+     * @throws IllegalStateException A batch is already open on this thread
+     */
+    public WriteBatch batch()
+    {
+        return batch(Batches.DEFAULT_BATCH_SIZE, 0);
+    }
+
+    /**
+     * Return the write batch open on the current thread.
+     * 
+     * @return the batch, null if none is open
+     */
+    public WriteBatch getBatch()
+    {
+        return batch.get();
+    }
+
+    /**
+     * Close the write batch open on the current thread.
+     * 
+     * @param b The batch closed
+     */
+    void endBatch(WriteBatch b)
+    {
+        if(batch.get() == b)
+            batch.remove();
+    }
+
+    /**
+     * Save an object in OMERO, or queue it if a write batch is open on the current thread.
+     * When the object is queued, it is returned as is and its id is set once the batch is flushed.
+     * 
+     * @param object Object to save
+     * 
+     * @return The object saved in OMERO, or the object queued
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     */
+    public IObject saveObject(IObject object)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException,
+            ExecutionException
+    {
+        WriteBatch b = batch.get();
+        if(b != null) {
+            b.add(object);
+            return object;
+        }
+
+        return getDm().saveAndReturnObject(ctx, object);
+    }
+
+    /**
+     * Save multiple objects in OMERO, sending them in batches.
+     * 
+     * @param objects   Objects to save
+     * @param batchSize Maximum number of objects sent per request
+     * 
+     * @return The objects saved in OMERO, in the same order
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public List<IObject> saveObjects(List<? extends IObject> objects, 
+                                     int                     batchSize)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        IUpdatePrx    update = getUpdateService();
+        List<IObject> saved  = new ArrayList<IObject>(objects.size());
+
+        for(List<IObject> batch : Batches.<IObject>partition(objects, batchSize))
+            saved.addAll(update.saveAndReturnArray(batch));
+
+        return saved;
+    }
+
+    /**
+     * Save ROIs on multiple images, sending them in batches mixing the images.
+     * The ROIs are linked to their image, and the ROIContainers are updated with the saved ROIs.
+     * 
+     * @param rois      ROIs to save, by image id
+     * @param batchSize Maximum number of ROIs sent per request
+     * 
+     * @return the ids of the ROIs saved, by image id, in the order of the ROIs
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public Map<Long, List<Long>> saveROIs(Map<Long, ? extends List<ROIContainer>> rois, 
+                                          int                                     batchSize)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        List<ROIContainer> containers = new ArrayList<ROIContainer>();
+        List<IObject>      objects    = new ArrayList<IObject>();
+
+        for(Map.Entry<Long, ? extends List<ROIContainer>> entry : rois.entrySet()) {
+            for(ROIContainer roi : entry.getValue()) {
+                roi.getROI().setImage(new ImageI(entry.getKey(), false));
+                containers.add(roi);
+                objects.add(roi.getROI().asIObject());
+            }
+        }
+
+        List<IObject> saved = saveObjects(objects, batchSize);
+        for(int i = 0; i < saved.size(); i++)
+            containers.get(i).setData(new ROIData((Roi) saved.get(i)));
+
+        Map<Long, List<Long>> ids = new LinkedHashMap<Long, List<Long>>(rois.size());
+        for(Map.Entry<Long, ? extends List<ROIContainer>> entry : rois.entrySet()) {
+            List<Long> list = new ArrayList<Long>(entry.getValue().size());
+            for(ROIContainer roi : entry.getValue())
+                list.add(roi.getId());
+            ids.put(entry.getKey(), list);
+        }
+
+        return ids;
+    }
+
+    /**
+     * Link multiple annotations to multiple images, datasets or projects.
+     * All the links are sent in batches, and the links already owned by the user are skipped.
+     * 
+     * @param targets     Objects to annotate: images, datasets or projects, loaded or not
+     * @param annotations Annotations to link, loaded or not
+     * @param batchSize   Maximum number of objects sent per request
+     * 
+     * @return the ids of the links created
+     * 
+     * @throws DSOutOfServiceException  Cannot connect to OMERO
+     * @throws ServerError              Server error
+     * @throws IllegalArgumentException A target cannot be annotated
+     */
+    public List<Long> linkAnnotations(Collection<? extends IObject>    targets, 
+                                      Collection<? extends Annotation> annotations, 
+                                      int                              batchSize)
+        throws 
+            DSOutOfServiceException,
+            ServerError,
+            IllegalArgumentException
+    {
+        Map<String, List<IObject>> byType = new HashMap<String, List<IObject>>();
+        for(IObject target : targets) {
+            if(!(target instanceof Image || target instanceof Dataset || target instanceof Project))
+                throw new IllegalArgumentException("Cannot annotate " + modelType(target));
+
+            List<IObject> sameType = byType.get(modelType(target));
+            if(sameType == null) {
+                sameType = new ArrayList<IObject>();
+                byType.put(modelType(target), sameType);
+            }
+            sameType.add(target);
+        }
+
+        List<Long> annotationIds = new ArrayList<Long>(annotations.size());
+        for(Annotation annotation : annotations)
+            annotationIds.add(annotation.getId().getValue());
+
+        List<IObject> links = new ArrayList<IObject>();
+        for(Map.Entry<String, List<IObject>> entry : byType.entrySet()) {
+            List<Long> targetIds = new ArrayList<Long>(entry.getValue().size());
+            for(IObject target : entry.getValue())
+                targetIds.add(target.getId().getValue());
+
+            Set<String> existing = getLinks(entry.getKey() + "AnnotationLink", targetIds, annotationIds, getId(), batchSize);
+
+            for(IObject target : entry.getValue()) {
+                for(Annotation annotation : annotations) {
+                    if(existing.add(target.getId().getValue() + ":" + annotation.getId().getValue()))
+                        links.add(link(target, annotation));
+                }
+            }
+        }
+
+        List<Long> ids = new ArrayList<Long>(links.size());
+        for(IObject link : saveObjects(links, batchSize))
+            ids.add(link.getId().getValue());
+
+        cache.invalidate(MetadataCache.Type.ANNOTATION, MetadataCache.Type.TAG);
+
+        return ids;
+    }
+
+    /**
+     * Link multiple tags to multiple images.
+     * All the links are sent in batches, and the links already owned by the user are skipped.
+     * 
+     * @param images Images to tag
+     * @param tags   Tags to add
+     * 
+     * @return the ids of the links created
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public List<Long> tagImages(Collection<ImageContainer>         images, 
+                                Collection<TagAnnotationContainer> tags)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        List<IObject> targets = new ArrayList<IObject>(images.size());
+        for(ImageContainer image : images)
+            targets.add(new ImageI(image.getId(), false));
+
+        List<Annotation> annotations = new ArrayList<Annotation>(tags.size());
+        for(TagAnnotationContainer tag : tags)
+            annotations.add(new TagAnnotationI(tag.getId(), false));
+
+        return linkAnnotations(targets, annotations, Batches.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Add Key-Value pairs to multiple images, with one map annotation per image.
+     * The annotations and their links are sent in batches.
+     * In upsert mode, the pairs are merged in the annotation of the user with the same namespace when the image
+     * already has one: the value of an existing key is replaced, new keys are appended.
+     * 
+     * @param pairs     Key-Value pairs to add, by image id
+     * @param namespace Namespace of the annotations, can be null without upsert
+     * @param upsert    Merge the pairs in the existing annotation with the same namespace, if any
+     * 
+     * @return the id of the annotation of each image
+     * 
+     * @throws DSOutOfServiceException  Cannot connect to OMERO
+     * @throws ServerError              Server error
+     * @throws IllegalArgumentException Upsert was requested without namespace
+     */
+    public Map<Long, Long> addKeyValuePairs(Map<Long, List<NamedValue>> pairs, 
+                                            String                      namespace, 
+                                            boolean                     upsert)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        if(upsert && namespace == null)
+            throw new IllegalArgumentException("A namespace is required to merge Key-Value pairs");
+
+        Map<Long, MapAnnotation> existing = new HashMap<Long, MapAnnotation>();
+        if(upsert)
+            existing = getMapAnnotations(pairs.keySet(), namespace, Batches.DEFAULT_BATCH_SIZE);
+
+        Map<Long, Long> annotations = new HashMap<Long, Long>(pairs.size());
+        List<IObject>   updated     = new ArrayList<IObject>();
+        List<IObject>   links       = new ArrayList<IObject>();
+
+        for(Map.Entry<Long, List<NamedValue>> entry : pairs.entrySet()) {
+            MapAnnotation annotation = existing.get(entry.getKey());
+
+            if(annotation != null) {
+                List<NamedValue> merged = new ArrayList<NamedValue>(annotation.getMapValue());
+                for(NamedValue pair : entry.getValue()) {
+                    boolean replaced = false;
+                    for(int i = 0; i < merged.size() && !replaced; i++) {
+                        if(merged.get(i).name.equals(pair.name)) {
+                            merged.set(i, new NamedValue(pair.name, pair.value));
+                            replaced = true;
+                        }
+                    }
+                    if(!replaced)
+                        merged.add(new NamedValue(pair.name, pair.value));
+                }
+                annotation.setMapValue(merged);
+                updated.add(annotation);
+                annotations.put(entry.getKey(), annotation.getId().getValue());
+            }
+            else {
+                annotation = new MapAnnotationI();
+                annotation.setMapValue(new ArrayList<NamedValue>(entry.getValue()));
+                if(namespace != null)
+                    annotation.setNs(omero.rtypes.rstring(namespace));
+
+                ImageAnnotationLink link = new ImageAnnotationLinkI();
+                link.setParent(new ImageI(entry.getKey(), false));
+                link.setChild(annotation);
+                links.add(link);
+            }
+        }
+
+        saveObjects(updated, Batches.DEFAULT_BATCH_SIZE);
+        for(IObject saved : saveObjects(links, Batches.DEFAULT_BATCH_SIZE)) {
+            ImageAnnotationLink link = (ImageAnnotationLink) saved;
+            annotations.put(link.getParent().getId().getValue(), link.getChild().getId().getValue());
+        }
+
+        cache.invalidate(MetadataCache.Type.ANNOTATION);
+
+        return annotations;
+    }
+
+    /**
+     * Add Key-Value pairs to multiple images, with a new map annotation per image.
+     * The annotations and their links are sent in batches.
+     * 
+     * @param pairs     Key-Value pairs to add, by image id
+     * @param namespace Namespace of the annotations, can be null
+     * 
+     * @return the id of the annotation of each image
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public Map<Long, Long> addKeyValuePairs(Map<Long, List<NamedValue>> pairs, 
+                                            String                      namespace)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        return addKeyValuePairs(pairs, namespace, false);
+    }
+
+    /**
+     * Add images to datasets, sending the links in batches.
+     * The images already in a dataset are skipped.
+     * 
+     * @param images    Ids of the images to add, by dataset id
+     * @param batchSize Maximum number of objects sent per request
+     * 
+     * @return the ids of the links created
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public List<Long> addImagesToDatasets(Map<Long, ? extends Collection<Long>> images, 
+                                          int                                   batchSize)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        Set<Long> imageIds = new HashSet<Long>();
+        for(Collection<Long> ids : images.values())
+            imageIds.addAll(ids);
+
+        Set<String> existing = getLinks("DatasetImageLink", images.keySet(), imageIds, null, batchSize);
+
+        List<IObject> links = new ArrayList<IObject>();
+        for(Map.Entry<Long, ? extends Collection<Long>> entry : images.entrySet()) {
+            for(Long id : entry.getValue()) {
+                if(existing.add(entry.getKey() + ":" + id)) {
+                    DatasetImageLink link = new DatasetImageLinkI();
+                    link.setParent(new DatasetI(entry.getKey(), false));
+                    link.setChild(new ImageI(id, false));
+                    links.add(link);
+                }
+            }
+        }
+
+        List<Long> ids = new ArrayList<Long>(links.size());
+        for(IObject link : saveObjects(links, batchSize))
+            ids.add(link.getId().getValue());
+
+        return ids;
+    }
+
+    /**
+     * Create multiple projects, sending them in batches.
+     * 
+     * @param names       Names of the projects
+     * @param description Description of the projects, can be null
+     * @param batchSize   Maximum number of objects sent per request
+     * 
+     * @return the ids of the projects created, in the order of the names
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public List<Long> createProjects(List<String> names, 
+                                     String       description, 
+                                     int          batchSize)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        List<IObject> projects = new ArrayList<IObject>(names.size());
+        for(String name : names) {
+            Project project = new ProjectI();
+            project.setName(omero.rtypes.rstring(name));
+            if(description != null)
+                project.setDescription(omero.rtypes.rstring(description));
+            projects.add(project);
+        }
+
+        List<Long> ids = new ArrayList<Long>(names.size());
+        for(IObject project : saveObjects(projects, batchSize))
+            ids.add(project.getId().getValue());
+
+        cache.invalidate(MetadataCache.Type.PROJECT);
+
+        return ids;
+    }
+
+    /**
+     * Create multiple datasets in a project, sending the datasets and their links in batches.
+     * 
+     * @param projectId   Id of the project
+     * @param names       Names of the datasets
+     * @param description Description of the datasets, can be null
+     * @param batchSize   Maximum number of objects sent per request
+     * 
+     * @return the ids of the datasets created, in the order of the names
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public List<Long> createDatasets(Long         projectId, 
+                                     List<String> names, 
+                                     String       description, 
+                                     int          batchSize)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        List<IObject> links = new ArrayList<IObject>(names.size());
+        for(String name : names) {
+            Dataset dataset = new DatasetI();
+            dataset.setName(omero.rtypes.rstring(name));
+            if(description != null)
+                dataset.setDescription(omero.rtypes.rstring(description));
+
+            ProjectDatasetLink link = new ProjectDatasetLinkI();
+            link.setParent(new ProjectI(projectId, false));
+            link.setChild(dataset);
+            links.add(link);
+        }
+
+        List<Long> ids = new ArrayList<Long>(names.size());
+        for(IObject link : saveObjects(links, batchSize))
+            ids.add(((ProjectDatasetLink) link).getChild().getId().getValue());
+
+        cache.invalidate(MetadataCache.Type.PROJECT, MetadataCache.Type.DATASET);
+
+        return ids;
+    }
+
+    /**
+     * Get the ids of tags from their names, creating the missing tags.
+     * The existing tags are retrieved with one query per batch of names, and the missing ones are created
+     * in batches. When several tags have the same name, the oldest one is used. Tag sets are not tags and are
+     * never returned.
+     * The ids are kept for the session, and concurrent calls on this client do not create the same tag twice.
+     * 
+     * @param names       Names of the tags
+     * @param description Description of the tags created
+     * 
+     * @return the id of each tag, by name
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public Map<String, Long> getOrCreateTags(Collection<String> names, 
+                                             String             description)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        Map<String, Long> ids     = new HashMap<String, Long>(names.size());
+        Set<String>       missing = new HashSet<String>();
+
+        for(String name : names) {
+            Long id = tagIds.get(tagKey(name));
+            if(id != null)
+                ids.put(name, id);
+            else
+                missing.add(name);
+        }
+
+        if(missing.isEmpty())
+            return ids;
+
+        synchronized(tagLock) {
+            for(List<String> batch : Batches.<String>partition(missing, Batches.DEFAULT_BATCH_SIZE)) {
+                List<RType> values = new ArrayList<RType>(batch.size());
+                for(String name : batch)
+                    values.add(omero.rtypes.rstring(name));
+
+                ParametersI param = new ParametersI();
+                param.add("names", omero.rtypes.rlist(values));
+                param.addString("tagset", TagAnnotationData.INSIGHT_TAGSET_NS);
+
+                List<List<RType>> rows = getQueryService().projection("select t.textValue, min(t.id) " +
+                                                                      "from TagAnnotation as t " +
+                                                                      "where t.textValue in (:names) " +
+                                                                      "and (t.ns is null or t.ns <> :tagset) " +
+                                                                      "group by t.textValue", param);
+                for(List<RType> row : rows)
+                    tagIds.put(tagKey(((RString) row.get(0)).getValue()), ((RLong) row.get(1)).getValue());
+            }
+
+            List<String>  created = new ArrayList<String>();
+            List<IObject> tags    = new ArrayList<IObject>();
+            for(String name : missing) {
+                if(!tagIds.containsKey(tagKey(name))) {
+                    TagAnnotation tag = new TagAnnotationI();
+                    tag.setTextValue(omero.rtypes.rstring(name));
+                    if(description != null)
+                        tag.setDescription(omero.rtypes.rstring(description));
+                    created.add(name);
+                    tags.add(tag);
+                }
+            }
+
+            List<IObject> saved = saveObjects(tags, Batches.DEFAULT_BATCH_SIZE);
+            for(int i = 0; i < saved.size(); i++)
+                tagIds.put(tagKey(created.get(i)), saved.get(i).getId().getValue());
+
+            if(!saved.isEmpty())
+                cache.invalidate(MetadataCache.Type.TAG);
+        }
 
-        return toImagesContainer(selected);
+        for(String name : missing)
+            ids.put(name, tagIds.get(tagKey(name)));
+
+        return ids;
     }
 
     /**
-     * Get all images with a certain motif in their name from OMERO.
+     * Build the key of a tag name, in the current group.
      * 
-     * @param motif Motif searched in an Image name
-     * 
-     * @return ImageContainer list
+     * @param name Name of the tag
      * 
-     * @throws DSOutOfServiceException Cannot connect to OMERO
-     * @throws DSAccessException       Cannot access data
+     * @return the key
      */
-    public List<ImageContainer> getImagesLike(String motif)
-        throws 
-            DSOutOfServiceException,
-            DSAccessException
+    private String tagKey(String name)
     {
-        Collection<ImageData> images = browse.getUserImages(ctx);
-
-        motif = ".*" + motif + ".*";
-
-        Collection<ImageData> selected = new ArrayList<ImageData>(images.size());
-
-        for(ImageData image : images) {
-            if(image.getName().matches(motif)) {
-                selected.add(image); 
-            }
-        }
-        return toImagesContainer(selected);
+        return ctx.getGroupID() + ":" + name;
     }
 
     /**
-     * Get all images tagged with a specified tag from OMERO.
+     * Get the tags added by the user to multiple images, with a few queries.
      * 
-     * @param tag TagAnnotationContainer containing the tag researched
+     * @param images Images
      * 
-     * @return ImageContainer list
+     * @return the tags of each image, by image id
      * 
      * @throws DSOutOfServiceException Cannot connect to OMERO
-     * @throws DSAccessException       Cannot access data
-     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     * @throws ServerError             Server error
      */
-    public List<ImageContainer> getImagesTagged(TagAnnotationContainer tag)
+    public Map<Long, List<TagAnnotationContainer>> getImagesTags(Collection<ImageContainer> images)
         throws 
             DSOutOfServiceException,
-            DSAccessException,
-            ExecutionException,
             ServerError
     {
-        List<IObject> os = getQueryService().findAllByQuery("select link.parent " +
-                                                            "from ImageAnnotationLink link " + 
-                                                            "where link.child = " + 
-                                                            tag.getId(), null);
+        List<Long> ids = new ArrayList<Long>(images.size());
+        for(ImageContainer image : images)
+            ids.add(image.getId());
 
-        Collection<ImageData> selected = new ArrayList<ImageData>();
+        AnnotationQuery query = new AnnotationQuery("Image");
+        query.setTypes(TagAnnotation.class);
+        query.setOwners(getId());
 
-        for(IObject o : os) {
-            ImageData image = browse.getImage(ctx, o.getId().getValue());
-            selected.add(image);
-        }
-        return toImagesContainer(selected);
+        return query.getTags(this, ids);
     }
 
     /**
-     * Get all images tagged with a specified tag from OMERO.
+     * Get the Key-Value pairs added by the user to multiple images, with a few queries.
      * 
-     * @param tagId Id of the tag researched
+     * @param images Images
      * 
-     * @return ImageContainer list
+     * @return the Key-Value pairs of each image, by image id
      * 
      * @throws DSOutOfServiceException Cannot connect to OMERO
-     * @throws DSAccessException       Cannot access data
-     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     * @throws ServerError             Server error
      */
-    public List<ImageContainer> getImagesTagged(Long tagId)
+    public Map<Long, List<NamedValue>> getImagesKeyValuePairs(Collection<ImageContainer> images)
         throws 
             DSOutOfServiceException,
-            DSAccessException,
-            ExecutionException,
             ServerError
     {
-        List<IObject> os = getQueryService().findAllByQuery("select link.parent " +
-                                                            "from ImageAnnotationLink link " + 
-                                                            "where link.child = " + 
-                                                            tagId, null);
+        List<Long> ids = new ArrayList<Long>(images.size());
+        for(ImageContainer image : images)
+            ids.add(image.getId());
 
-        Collection<ImageData> selected = new ArrayList<ImageData>();
+        AnnotationQuery query = new AnnotationQuery("Image");
+        query.setTypes(MapAnnotation.class);
+        query.setOwners(getId());
 
-        for(IObject o : os) {
-            ImageData image = browse.getImage(ctx, o.getId().getValue());
-            selected.add(image);
-        }
-        return toImagesContainer(selected);
+        return query.getKeyValuePairs(this, ids);
     }
 
     /**
-     * Get all images with a certain key
+     * Retrieve the map annotations owned by the user with a namespace, linked to images.
+     * When an image has several such annotations, the one with the lowest id is kept.
+     * The Key-Value pairs of the annotations are loaded.
      * 
-     * @param key Name of the key researched
+     * @param imageIds  Ids of the images
+     * @param namespace Namespace of the annotations
+     * @param batchSize Maximum number of images per query
      * 
-     * @return ImageContainer list
+     * @return the annotation of each image having one
      * 
      * @throws DSOutOfServiceException Cannot connect to OMERO
-     * @throws DSAccessException       Cannot access data
-     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     * @throws ServerError             Server error
      */
-    public List<ImageContainer> getImagesKey(String key)
+    private Map<Long, MapAnnotation> getMapAnnotations(Collection<Long> imageIds, 
+                                                       String           namespace, 
+                                                       int              batchSize)
         throws 
             DSOutOfServiceException,
-            DSAccessException,
-            ExecutionException
+            ServerError
     {
-        Collection<ImageData> images = browse.getUserImages(ctx);
-
-        Collection<ImageData> selected = new ArrayList<ImageData>(images.size());
-
-        for(ImageData image : images)
-        {
-            ImageContainer imageContainer = new ImageContainer(image);
-            
-            Collection<NamedValue> pairsKeyValue = imageContainer.getKeyValuePairs(this);
-
-            for(NamedValue pairKeyValue : pairsKeyValue)
-            {
-                if(pairKeyValue.name.equals(key))
-                {
-                    selected.add(image);
-                    break;
-                }
+        Map<Long, MapAnnotation> annotations = new HashMap<Long, MapAnnotation>();
+
+        for(List<Long> batch : Batches.<Long>partition(imageIds, batchSize)) {
+            ParametersI param = new ParametersI();
+            param.addIds(batch);
+            param.addString("ns", namespace);
+            param.addLong("owner", getId());
+
+            List<IObject> links = getQueryService().findAllByQuery("select l from ImageAnnotationLink as l " +
+                                                                   "join fetch l.child as a " +
+                                                                   "left outer join fetch a.mapValue " +
+                                                                   "where l.parent.id in (:ids) " +
+                                                                   "and a.class = MapAnnotation " +
+                                                                   "and a.ns = :ns " +
+                                                                   "and a.details.owner.id = :owner " +
+                                                                   "order by a.id", param);
+            for(IObject o : links) {
+                ImageAnnotationLink link  = (ImageAnnotationLink) o;
+                Long                image = link.getParent().getId().getValue();
+                if(link.getChild() instanceof MapAnnotation && !annotations.containsKey(image))
+                    annotations.put(image, (MapAnnotation) link.getChild());
             }
         }
 
-        return toImagesContainer(selected);
+        return annotations;
     }
 
     /**
-     * Get all images with a certain key value pair from OMERO
+     * Retrieve the existing links between parents and children.
      * 
-     * @param key   Name of the key researched
-     * @param value Value associated with the key
+     * @param link      Model type of the links, for example "DatasetImageLink"
+     * @param parentIds Ids of the parents
+     * @param childIds  Ids of the children
+     * @param owner     Id of the owner of the links, null for all owners
+     * @param batchSize Maximum number of parents and of children per query
      * 
-     * @return ImageContainer list
+     * @return Set of "parentId:childId" for each existing link
      * 
      * @throws DSOutOfServiceException Cannot connect to OMERO
-     * @throws DSAccessException       Cannot access data
-     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     * @throws ServerError             Server error
      */
-    public List<ImageContainer> getImagesPairKeyValue(String key, 
-                                                      String value)
+    private Set<String> getLinks(String           link, 
+                                 Collection<Long> parentIds, 
+                                 Collection<Long> childIds, 
+                                 Long             owner, 
+                                 int              batchSize)
         throws 
             DSOutOfServiceException,
-            DSAccessException,
-            ExecutionException
+            ServerError
     {
-        Collection<ImageData> images = browse.getUserImages(ctx);
-
-        Collection<ImageData> selected = new ArrayList<ImageData>(images.size());
-
-        for(ImageData image : images)
-        {
-            ImageContainer imageContainer = new ImageContainer(image);
-            
-            Collection<NamedValue> pairsKeyValue = imageContainer.getKeyValuePairs(this);
-
-            for(NamedValue pairKeyValue : pairsKeyValue)
-            {
-                if(pairKeyValue.name.equals(key) && pairKeyValue.value.equals(value))
-                {
-                    selected.add(image);
-                    break;
-                }
+        Set<String> links = new HashSet<String>();
+
+        String query = "select l.parent.id, l.child.id from " + link + " as l " +
+                       "where l.parent.id in (:ids) and l.child.id in (:children)";
+        if(owner != null)
+            query += " and l.details.owner.id = :owner";
+
+        for(List<Long> parents : Batches.<Long>partition(parentIds, batchSize)) {
+            for(List<Long> batch : Batches.<Long>partition(childIds, batchSize)) {
+                List<RType> children = new ArrayList<RType>(batch.size());
+                for(Long id : batch)
+                    children.add(omero.rtypes.rlong(id));
+
+                ParametersI param = new ParametersI();
+                param.addIds(parents);
+                param.add("children", omero.rtypes.rlist(children));
+                if(owner != null)
+                    param.addLong("owner", owner);
+
+                for(List<RType> row : getQueryService().projection(query, param))
+                    links.add(((RLong) row.get(0)).getValue() + ":" + ((RLong) row.get(1)).getValue());
             }
         }
 
-        return toImagesContainer(selected);
+        return links;
     }
 
+    /**
+     * Create an unsaved link between an image, dataset or project and an annotation.
+     * 
+     * @param target     Object annotated
+     * @param annotation Annotation
+     * 
+     * @return the link
+     */
+    private static IObject link(IObject    target, 
+                                Annotation annotation)
+    {
+        Annotation child = (Annotation) annotation.proxy();
 
+        if(target instanceof Image) {
+            ImageAnnotationLink link = new ImageAnnotationLinkI();
+            link.setParent((Image) target.proxy());
+            link.setChild(child);
+            return link;
+        }
+        else if(target instanceof Dataset) {
+            DatasetAnnotationLink link = new DatasetAnnotationLinkI();
+            link.setParent((Dataset) target.proxy());
+            link.setChild(child);
+            return link;
+        }
+        else {
+            ProjectAnnotationLink link = new ProjectAnnotationLinkI();
+            link.setParent((Project) target.proxy());
+            link.setChild(child);
+            return link;
+        }
+    }
 
+    /**
+     * Return the model type of an object, as used in queries and commands.
+     * 
+     * @param object The object
+     * 
+     * @return the name of the type, for example "Image"
+     */
+    private static String modelType(IObject object)
+    {
+        String type = object.getClass().getSimpleName();
+        if(type.endsWith("I"))
+            type = type.substring(0, type.length() - 1);
 
+        return type;
+    }
 
     /**
-     * Get the client associated with the username in the parameters.
-     * The user calling this function needs to have administrator rights.
-     * All action realized with the client returned will be considered as his.
-     * 
-     * @param username Username of user
+     * Submit a command to OMERO and return immediately.
+     * The future is completed when the server notifies the end of the command, without a thread waiting for it.
+     * Cancelling the future closes the command handle, which asks the server to cancel the command.
      * 
-     * @return The client corresponding to the new user
+     * @param request  Command to submit
+     * @param timeout  Maximum time to wait in milliseconds, 0 or less to wait indefinitely
+     * @param listener Listener receiving the progress of the command, can be null
      * 
-     * @throws DSOutOfServiceException Cannot connect to OMERO
-     * @throws DSAccessException       Cannot access data
-     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     * @return future completed with the response of the server, or failed if the command could not be submitted
      */
-    public Client SudoGetUser(String username)
-        throws 
-            DSOutOfServiceException,
-            DSAccessException,
-            ExecutionException
+    public CompletableFuture<Response> submit(Request                         request, 
+                                              long                            timeout, 
+                                              CommandWatcher.ProgressListener listener)
     {
-        Client c = new Client();
-
-        ExperimenterData sudoUser = getAdminFacility().lookupExperimenter(ctx, username);
+        CmdCallbackI callback;
+        try {
+            callback = gateway.submit(ctx, request);
+        }
+        catch(Throwable t) {
+            CompletableFuture<Response> failed = new CompletableFuture<Response>();
+            failed.completeExceptionally(t);
+            return failed;
+        }
 
-        SecurityContext sudoCtx = new SecurityContext(sudoUser.getGroupId());
-        sudoCtx.setExperimenter(sudoUser);
-        sudoCtx.sudo();
+        return invalidateWhenDone(CommandWatcher.watch(callback, timeout, listener));
+    }
 
-        c.gateway = this.gateway;
-        c.ctx     = sudoCtx;
-        c.user    = sudoUser;
-        c.browse  = this.browse;
+    /**
+     * Clear the cached metadata once a command is done.
+     * The future returned is the one passed, so that cancelling it cancels the command.
+     * 
+     * @param future Future of the command
+     * 
+     * @return the future
+     */
+    private CompletableFuture<Response> invalidateWhenDone(CompletableFuture<Response> future)
+    {
+        future.whenComplete(new BiConsumer<Response, Throwable>() {
+            public void accept(Response response, Throwable t)
+            {
+                cache.invalidateAll();
+                tagIds.clear();
+            }
+        });
 
-        return c;
+        return future;
     }
 
+    /**
+     * Move objects and the objects they contain to another group.
+     * 
+     * @param objects Objects to move, for example ImageI or DatasetI created with their id
+     * @param groupId Id of the destination group
+     * @param timeout Maximum time to wait in milliseconds, 0 or less to wait indefinitely
+     * 
+     * @return future completed with the response of the server
+     */
+    public CompletableFuture<Response> moveToGroup(Collection<? extends IObject> objects, 
+                                                   long                          groupId, 
+                                                   long                          timeout)
+    {
+        Chgrp2 chgrp = new Chgrp2();
+        chgrp.targetObjects = targets(objects);
+        chgrp.groupId       = groupId;
 
-
+        return submit(chgrp, timeout, null);
+    }
 
     /**
-     * Get the list of TagAnnotationContainer available to the user
+     * Give objects and the objects they contain to another user.
      * 
-     * @return list of TagAnnotationContainer
+     * @param objects Objects to give, for example ImageI or DatasetI created with their id
+     * @param userId  Id of the new owner
+     * @param timeout Maximum time to wait in milliseconds, 0 or less to wait indefinitely
      * 
-     * @throws ServerError
-     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @return future completed with the response of the server
      */
-    public List<TagAnnotationContainer> getTags()
-        throws 
-            ServerError,
-            DSOutOfServiceException
+    public CompletableFuture<Response> changeOwner(Collection<? extends IObject> objects, 
+                                                   long                          userId, 
+                                                   long                          timeout)
     {
-        IQueryPrx qs = gateway.getQueryService(ctx);
-        List<IObject> os = qs.findAll(TagAnnotation.class.getSimpleName(), null);
-        List<TagAnnotationContainer> tags = new ArrayList<TagAnnotationContainer>(os.size());
+        Chown2 chown = new Chown2();
+        chown.targetObjects = targets(objects);
+        chown.userId        = userId;
 
-        for(IObject o : os) {
-            TagAnnotationData tag = new TagAnnotationData((TagAnnotation) o);
-            tags.add(new TagAnnotationContainer(tag));
-        }
-        
-        Collections.sort(tags, new SortTagAnnotationContainer());
-        return tags;
+        return submit(chown, timeout, null);
     }
 
     /**
-     * Get the list of TagAnnotationContainer with the specified name available to the user
+     * Duplicate objects and the objects they contain.
+     * The ids of the copies are in the DuplicateResponse returned by the server.
      * 
-     * @param name Name of the tag searched
+     * @param objects Objects to duplicate, for example ImageI or DatasetI created with their id
+     * @param timeout Maximum time to wait in milliseconds, 0 or less to wait indefinitely
      * 
-     * @return list of TagAnnotationContainer
+     * @return future completed with the response of the server
+     */
+    public CompletableFuture<Response> duplicate(Collection<? extends IObject> objects, 
+                                                 long                          timeout)
+    {
+        Duplicate duplicate = new Duplicate();
+        duplicate.targetObjects = targets(objects);
+
+        return submit(duplicate, timeout, null);
+    }
+
+    /**
+     * Group the ids of objects by model class, as expected by the graph commands.
      * 
-     * @throws ServerError Server error
-     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @param objects Objects targeted
+     * 
+     * @return Map of the ids by class name
      */
-    public List<TagAnnotationContainer> getTags(String name)
-        throws 
-            ServerError,
-            DSOutOfServiceException
+    private static Map<String, List<Long>> targets(Collection<? extends IObject> objects)
     {
-        IQueryPrx qs = gateway.getQueryService(ctx);
-        List<IObject> os = qs.findAll(TagAnnotation.class.getSimpleName(), null);
-        List<TagAnnotationContainer> tags = new ArrayList<TagAnnotationContainer>(os.size());
+        Map<String, List<Long>> targets = new HashMap<String, List<Long>>();
 
-        for(IObject o : os) {
-            TagAnnotationData tag = new TagAnnotationData((TagAnnotation) o);
-            tag.setNameSpace(tag.getContentAsString());
+        for(IObject object : objects) {
+            String type = modelType(object);
 
-            if(tag.getNameSpace().equals(name))
-                tags.add(new TagAnnotationContainer(tag));
+            List<Long> ids = targets.get(type);
+            if(ids == null) {
+                ids = new ArrayList<Long>();
+                targets.put(type, ids);
+            }
+            ids.add(object.getId().getValue());
         }
 
-        Collections.sort(tags, new SortTagAnnotationContainer());
-        return tags;
+        return targets;
     }
 
     /**
-     * Get a specific tag from the OMERO database
+     * Delete multiple objects from OMERO with a single request, and return immediately.
+     * The objects can be of different types, for example ImageI, DatasetI or TagAnnotationI created with their id.
      * 
-     * @param id Id of the tag 
+     * @param objects  Objects to delete
+     * @param timeout  Maximum time to wait in milliseconds, 0 or less to wait indefinitely
+     * @param listener Listener receiving the progress of the deletion, can be null
      * 
-     * @return TagAnnotationContainer containng the specified tag
+     * @return future completed with the response of the server when the deletion is done
      * 
-     * @throws ServerError
      * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
      */
-    public TagAnnotationContainer getTag(Long id)
+    public CompletableFuture<Response> deleteObjectsAsync(Collection<? extends IObject>   objects, 
+                                                          long                            timeout, 
+                                                          CommandWatcher.ProgressListener listener)
         throws 
-            ServerError,
-            DSOutOfServiceException
+            DSOutOfServiceException,
+            DSAccessException,
+            ExecutionException
     {
-        IQueryPrx qs = gateway.getQueryService(ctx);
-        IObject o = qs.find(TagAnnotation.class.getSimpleName(), id);
-
-        TagAnnotationData tag = new TagAnnotationData((TagAnnotation) o);
-        tag.setNameSpace(tag.getContentAsString());
+        CmdCallbackI callback = getDm().delete(ctx, new ArrayList<IObject>(objects));
 
-        return new TagAnnotationContainer(tag);
+        return invalidateWhenDone(CommandWatcher.watch(callback, timeout, listener));
     }
 
-    
+    /**
+     * Delete multiple objects from OMERO with a single request, and return immediately.
+     * 
+     * @param objects Objects to delete
+     * 
+     * @return future completed with the response of the server when the deletion is done
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     */
+    public CompletableFuture<Response> deleteObjectsAsync(Collection<? extends IObject> objects)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException,
+            ExecutionException
+    {
+        return deleteObjectsAsync(objects, 0, null);
+    }
 
+    /**
+     * Delete multiple objects from OMERO with a single request, and wait until it is done.
+     * 
+     * @param objects Objects to delete
+     * @param timeout Maximum time to wait in milliseconds, 0 or less to wait indefinitely
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     * @throws ExecutionException      A Facility can't be retrieved or instancied, or the deletion failed or timed out
+     * @throws InterruptedException    The thread was interrupted while waiting
+     */
+    public void deleteObjects(Collection<? extends IObject> objects, 
+                              long                          timeout)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException,
+            ExecutionException,
+            InterruptedException
+    {
+        deleteObjectsAsync(objects, timeout, null).get();
+    }
 
     /**
      * Delete an image from OMERO
@@ -1005,6 +3137,7 @@ public class Client {
         ImageI image = new ImageI(id, false);
 
         getDm().delete(ctx, image).loop(10, 500);
+        cache.invalidate(MetadataCache.Type.ANNOTATION, MetadataCache.Type.CHANNEL);
     }
 
     /**
@@ -1056,6 +3189,7 @@ public class Client {
         ProjectI project = new ProjectI(id, false);
 
         getDm().delete(ctx, project).loop(10, 500);
+        cache.invalidate(MetadataCache.Type.PROJECT, MetadataCache.Type.DATASET, MetadataCache.Type.ANNOTATION);
     }
 
     /**
@@ -1107,6 +3241,7 @@ public class Client {
         DatasetI dataset = new DatasetI(id, false);
 
         getDm().delete(ctx, dataset).loop(10, 500);
+        cache.invalidate(MetadataCache.Type.PROJECT, MetadataCache.Type.DATASET, MetadataCache.Type.ANNOTATION);
     }
 
     /**
@@ -1158,6 +3293,8 @@ public class Client {
         TagAnnotationI tag = new TagAnnotationI(id, false);
 
         getDm().delete(ctx, tag).loop(10, 500);
+        cache.invalidate(MetadataCache.Type.TAG, MetadataCache.Type.ANNOTATION);
+        tagIds.values().remove(id);
     }
 
     /**
@@ -1256,6 +3393,7 @@ public class Client {
         FileAnnotationI table = new FileAnnotationI(id, false);
 
         getDm().delete(ctx, table).loop(10, 500);
+        cache.invalidate(MetadataCache.Type.ANNOTATION);
     }
 
 
@@ -1267,7 +3405,18 @@ public class Client {
      */
     public Client()
     {
-        gateway = new Gateway(new SimpleLogger());
+        this(new Gateway(new SimpleLogger()));
+    }
+
+    /**
+     * Constructor of the Client class.
+     * Use an existing gateway.
+     * 
+     * @param gateway Gateway linking the code to OMERO
+     */
+    private Client(Gateway gateway)
+    {
+        this.gateway = gateway;
     }
 }
 
@@ -0,0 +1,580 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import omero.gateway.exception.DSOutOfServiceException;
+
+/**
+ * Pool of Client connected with the same credentials, each with its own gateway and session.
+ * Clients are shared: a borrowed Client can be handed to several borrowers at once, up to a number of
+ * concurrent calls per session, and the least loaded session is always selected.
+ * Borrowers are served in arrival order when all sessions are busy.
+ * Idle sessions are closed after a timeout, unhealthy sessions are dropped, and both are reopened on demand.
+ */
+public class ClientPool {
+
+    /**
+     * Work done with a Client borrowed from the pool.
+     *
+     * @param <T> Type of the result
+     */
+    public interface Task<T> {
+        /**
+         * Run the task.
+         *
+         * @param client The user
+         *
+         * @return the result
+         *
+         * @throws Exception The task failed
+         */
+        T run(Client client) throws Exception;
+    }
+
+    /**
+     * Session of the pool.
+     */
+    private static class Session {
+        ///Client connected, null if the session is closed
+        private volatile Client client;
+        ///Number of calls in progress
+        private          int    inFlight;
+        ///Total number of calls
+        private          long   calls;
+        ///Time of the last borrow or return, in milliseconds
+        private          long   lastUsed;
+    }
+
+    ///Default number of concurrent calls per session
+    public static final int  DEFAULT_CALLS_PER_SESSION = 4;
+    ///Default time before an idle session is closed, in milliseconds
+    public static final long DEFAULT_IDLE_TIMEOUT      = 300000L;
+    ///Default time between two checks of the sessions, in milliseconds
+    public static final long DEFAULT_CHECK_INTERVAL    = 60000L;
+
+    ///Credentials of the user
+    private final String hostname;
+    private final int    port;
+    private final String username;
+    private final String password;
+    private final Long   groupId;
+
+    ///Sessions of the pool
+    private final Session[] sessions;
+    ///Permits for the calls, handed out in arrival order
+    private final Semaphore permits;
+    ///Scheduler checking the sessions
+    private final ScheduledExecutorService maintenance;
+
+    ///Time before an idle session is closed, in milliseconds
+    private volatile long    idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    ///True when the pool has been closed
+    private volatile boolean closed      = false;
+
+    /**
+     * Set the time before an idle session is closed.
+     *
+     * @param ms Time in milliseconds
+     */
+    public void setIdleTimeout(long ms)
+    {
+        idleTimeout = ms;
+    }
+
+    /**
+     * @return the number of sessions of the pool
+     */
+    public int getSize()
+    {
+        return sessions.length;
+    }
+
+    /**
+     * @return the number of sessions currently connected
+     */
+    public synchronized int getOpenSessions()
+    {
+        int count = 0;
+        for(Session session : sessions)
+            if(session.client != null)
+                count++;
+
+        return count;
+    }
+
+    /**
+     * @return the number of calls in progress for each session
+     */
+    public synchronized int[] getInFlight()
+    {
+        int[] inFlight = new int[sessions.length];
+        for(int i = 0; i < sessions.length; i++)
+            inFlight[i] = sessions[i].inFlight;
+
+        return inFlight;
+    }
+
+    /**
+     * @return the total number of calls made with each session
+     */
+    public synchronized long[] getCalls()
+    {
+        long[] calls = new long[sessions.length];
+        for(int i = 0; i < sessions.length; i++)
+            calls[i] = sessions[i].calls;
+
+        return calls;
+    }
+
+
+
+
+    /**
+     * Borrow a Client from the pool, waiting until a call is allowed.
+     * The Client must be returned with {@link #release(Client)}.
+     *
+     * @return The user
+     *
+     * @throws InterruptedException    The thread was interrupted while waiting
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     */
+    public Client borrow()
+        throws
+            InterruptedException,
+            DSOutOfServiceException,
+            ExecutionException
+    {
+        checkOpen();
+        permits.acquire();
+        return acquire();
+    }
+
+    /**
+     * Borrow a Client from the pool, waiting at most the specified time.
+     * The Client must be returned with {@link #release(Client)}.
+     *
+     * @param timeout Maximum time to wait
+     * @param unit    Unit of the timeout
+     *
+     * @return The user
+     *
+     * @throws InterruptedException    The thread was interrupted while waiting
+     * @throws TimeoutException        No call was allowed before the timeout
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     */
+    public Client borrow(long     timeout,
+                         TimeUnit unit)
+        throws
+            InterruptedException,
+            TimeoutException,
+            DSOutOfServiceException,
+            ExecutionException
+    {
+        checkOpen();
+        if(!permits.tryAcquire(timeout, unit))
+            throw new TimeoutException("No session available after " + timeout + " " + unit);
+        return acquire();
+    }
+
+    /**
+     * Return a borrowed Client to the pool.
+     *
+     * @param client The user
+     *
+     * @throws IllegalArgumentException The Client was not borrowed from this pool
+     */
+    public void release(Client client)
+        throws
+            IllegalArgumentException
+    {
+        synchronized(this) {
+            Session session = find(client);
+            session.inFlight--;
+            session.lastUsed = System.currentTimeMillis();
+        }
+        permits.release();
+    }
+
+    /**
+     * Return a borrowed Client to the pool and close its session, because it is no longer usable.
+     * The session is reopened on the next borrow. If other calls still use it, it is closed by the next check.
+     *
+     * @param client The user
+     *
+     * @throws IllegalArgumentException The Client was not borrowed from this pool
+     */
+    public void invalidate(Client client)
+        throws
+            IllegalArgumentException
+    {
+        boolean unused;
+
+        synchronized(this) {
+            Session session = find(client);
+            session.inFlight--;
+            session.lastUsed = System.currentTimeMillis();
+
+            unused = session.inFlight == 0;
+            if(unused)
+                session.client = null;
+        }
+        permits.release();
+
+        if(unused)
+            client.disconnect();
+    }
+
+    /**
+     * Run a task with a Client borrowed from the pool, and return the Client afterwards.
+     * If the connection to OMERO is lost, the session is closed and reopened on the next borrow.
+     *
+     * @param task Task to run
+     * @param <T>  Type of the result
+     *
+     * @return the result of the task
+     *
+     * @throws Exception The task failed or no Client could be borrowed
+     */
+    public <T> T withClient(Task<T> task)
+        throws
+            Exception
+    {
+        Client client = borrow();
+        try {
+            T result = task.run(client);
+            release(client);
+            return result;
+        }
+        catch(DSOutOfServiceException e) {
+            invalidate(client);
+            throw e;
+        }
+        catch(Exception e) {
+            release(client);
+            throw e;
+        }
+    }
+
+    /**
+     * Check the sessions: close the sessions idle for too long and the sessions not answering.
+     * Called periodically by the pool.
+     */
+    public void checkSessions()
+    {
+        long now = System.currentTimeMillis();
+
+        for(Session session : sessions) {
+            Client client;
+            boolean idle;
+
+            synchronized(this) {
+                client = session.client;
+                if(client == null || session.inFlight > 0)
+                    continue;
+                idle = now - session.lastUsed >= idleTimeout;
+            }
+
+            if(!idle && isHealthy(client))
+                continue;
+
+            synchronized(this) {
+                if(session.inFlight > 0 || session.client != client)
+                    continue;
+                session.client = null;
+            }
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Close all the sessions of the pool.
+     */
+    public void close()
+    {
+        closed = true;
+        maintenance.shutdownNow();
+
+        for(Session session : sessions) {
+            if(session == null)
+                continue;
+
+            Client client;
+            synchronized(this) {
+                client = session.client;
+                session.client = null;
+            }
+            if(client != null)
+                client.disconnect();
+        }
+    }
+
+
+
+
+    /**
+     * Select the least loaded session, and connect it if needed.
+     * A permit must have been acquired.
+     *
+     * @return The user
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     */
+    private Client acquire()
+        throws
+            DSOutOfServiceException,
+            ExecutionException
+    {
+        Session session = null;
+
+        synchronized(this) {
+            for(Session s : sessions) {
+                if(session == null ||
+                   s.inFlight < session.inFlight ||
+                   (s.inFlight == session.inFlight && s.client != null && session.client == null))
+                    session = s;
+            }
+            session.inFlight++;
+            session.calls++;
+            session.lastUsed = System.currentTimeMillis();
+        }
+
+        try {
+            synchronized(session) {
+                if(session.client == null)
+                    session.client = connect();
+            }
+            return session.client;
+        }
+        catch(DSOutOfServiceException e) {
+            cancel(session);
+            throw e;
+        }
+        catch(ExecutionException e) {
+            cancel(session);
+            throw e;
+        }
+        catch(RuntimeException e) {
+            cancel(session);
+            throw e;
+        }
+    }
+
+    /**
+     * Cancel a call which could not get a connected Client.
+     *
+     * @param session Session selected for the call
+     */
+    private void cancel(Session session)
+    {
+        synchronized(this) {
+            session.inFlight--;
+        }
+        permits.release();
+    }
+
+    /**
+     * Open a new session.
+     *
+     * @return The user
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     */
+    private Client connect()
+        throws
+            DSOutOfServiceException,
+            ExecutionException
+    {
+        Client client = new Client();
+
+        if(groupId == null)
+            client.connect(hostname, port, username, password);
+        else
+            client.connect(hostname, port, username, password, groupId);
+
+        return client;
+    }
+
+    /**
+     * Check that a Client still answers.
+     *
+     * @param client The user
+     *
+     * @return true if the session is alive
+     */
+    private static boolean isHealthy(Client client)
+    {
+        try {
+            client.getGateway().getAdminService(client.getCtx()).getEventContext();
+            return true;
+        }
+        catch(Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Find the session of a borrowed Client.
+     *
+     * @param client The user
+     *
+     * @return the session
+     *
+     * @throws IllegalArgumentException The Client was not borrowed from this pool
+     */
+    private Session find(Client client)
+        throws
+            IllegalArgumentException
+    {
+        for(Session session : sessions)
+            if(session.client == client && session.inFlight > 0)
+                return session;
+
+        throw new IllegalArgumentException("Client was not borrowed from this pool");
+    }
+
+    /**
+     * Check that the pool is not closed.
+     *
+     * @throws IllegalStateException The pool is closed
+     */
+    private void checkOpen()
+        throws
+            IllegalStateException
+    {
+        if(closed)
+            throw new IllegalStateException("Pool is closed");
+    }
+
+
+
+
+    /**
+     * Constructor of the ClientPool class.
+     * Open the sessions and start checking them periodically.
+     *
+     * @param hostname        Name of the host
+     * @param port            Port used by OMERO
+     * @param username        Username of the user
+     * @param password        Password of the user
+     * @param groupId         Id of the group to connect, null for the default group
+     * @param size            Number of sessions
+     * @param callsPerSession Maximum number of concurrent calls per session
+     *
+     * @throws IllegalArgumentException The size or the number of calls per session is not strictly positive
+     * @throws DSOutOfServiceException  Cannot connect to OMERO
+     * @throws ExecutionException       A Facility can't be retrieved or instancied
+     */
+    public ClientPool(String hostname,
+                      int    port,
+                      String username,
+                      String password,
+                      Long   groupId,
+                      int    size,
+                      int    callsPerSession)
+        throws
+            IllegalArgumentException,
+            DSOutOfServiceException,
+            ExecutionException
+    {
+        if(size <= 0 || callsPerSession <= 0)
+            throw new IllegalArgumentException("Pool size and calls per session must be strictly positive");
+
+        this.hostname = hostname;
+        this.port     = port;
+        this.username = username;
+        this.password = password;
+        this.groupId  = groupId;
+
+        this.sessions = new Session[size];
+        this.permits  = new Semaphore(size * callsPerSession, true);
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "omero-client-pool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        try {
+            for(int i = 0; i < size; i++) {
+                sessions[i] = new Session();
+                sessions[i].lastUsed = now;
+                sessions[i].client   = connect();
+            }
+        }
+        catch(DSOutOfServiceException e) {
+            close();
+            throw e;
+        }
+        catch(ExecutionException e) {
+            close();
+            throw e;
+        }
+
+        this.maintenance.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                checkSessions();
+            }
+        }, DEFAULT_CHECK_INTERVAL, DEFAULT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor of the ClientPool class.
+     * Open the sessions and start checking them periodically.
+     *
+     * @param hostname Name of the host
+     * @param port     Port used by OMERO
+     * @param username Username of the user
+     * @param password Password of the user
+     * @param groupId  Id of the group to connect, null for the default group
+     * @param size     Number of sessions
+     *
+     * @throws IllegalArgumentException The size is not strictly positive
+     * @throws DSOutOfServiceException  Cannot connect to OMERO
+     * @throws ExecutionException       A Facility can't be retrieved or instancied
+     */
+    public ClientPool(String hostname,
+                      int    port,
+                      String username,
+                      String password,
+                      Long   groupId,
+                      int    size)
+        throws
+            IllegalArgumentException,
+            DSOutOfServiceException,
+            ExecutionException
+    {
+        this(hostname, port, username, password, groupId, size, DEFAULT_CALLS_PER_SESSION);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import omero.ServerError;
+import omero.cmd.CmdCallbackI;
+import omero.cmd.ERR;
+import omero.cmd.Response;
+import omero.cmd.Status;
+
+/**
+ * Turns the callbacks of commands submitted to OMERO into futures.
+ * The futures are completed when the server notifies the callback that the command finished,
+ * and the progress notified by the server is passed to the listener. A shared timer thread is only
+ * used to fail the commands which do not finish in time.
+ * <p>
+ * Once the future is done, the callback and the command handle are closed. If the future is cancelled
+ * or times out before the command finished, the command is cancelled on the server first.
+ */
+public class CommandWatcher {
+
+    /**
+     * Receives the progress of a command.
+     */
+    public interface ProgressListener {
+        /**
+         * Called when the command progressed.
+         *
+         * @param step  Number of steps done
+         * @param steps Total number of steps
+         */
+        void progress(int step, int steps);
+    }
+
+    /**
+     * Callback completing a future when the server notifies the end of the command.
+     */
+    private static class Watcher extends CmdCallbackI {
+        ///Future completed with the response, set once the callback is registered
+        private volatile CompletableFuture<Response> future;
+        ///Listener receiving the progress, can be null
+        private volatile ProgressListener            listener;
+
+        private Watcher(CmdCallbackI callback)
+            throws
+                ServerError
+        {
+            super(callback);
+        }
+
+        public void step(int         complete,
+                         int         total,
+                         Ice.Current current)
+        {
+            super.step(complete, total, current);
+
+            ProgressListener progress = listener;
+            if(progress != null)
+                progress.progress(complete, total);
+        }
+
+        public void onFinished(Response    rsp,
+                               Status      status,
+                               Ice.Current current)
+        {
+            super.onFinished(rsp, status, current);
+            complete();
+        }
+
+        /**
+         * Complete the future with the response of the command, if the future is set.
+         */
+        private void complete()
+        {
+            CompletableFuture<Response> done = future;
+            if(done == null)
+                return;
+
+            Response response = getResponse();
+            if(response instanceof ERR) {
+                ERR err = (ERR) response;
+                done.completeExceptionally(new IllegalStateException("Command failed: " + err.category +
+                                                                     " " + err.name + " " + err.parameters));
+            }
+            else {
+                done.complete(response);
+            }
+        }
+
+        /**
+         * @return true if the server notified the end of the command
+         */
+        private boolean isDone()
+        {
+            try {
+                return block(0);
+            }
+            catch(Exception e) {
+                return true;
+            }
+        }
+
+        /**
+         * Close the callback and the command handle, cancelling the command first if it is still running.
+         */
+        private void stop()
+        {
+            if(!isDone()) {
+                try {
+                    handle.cancel();
+                }
+                catch(Exception e) {
+                    //The command cannot be cancelled anymore
+                }
+            }
+
+            try {
+                close(true);
+            }
+            catch(Exception e) {
+                //The handle is already closed
+            }
+            OPEN.decrementAndGet();
+        }
+    }
+
+    ///Thread failing the commands which time out
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "omero-command-watcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    ///Number of callbacks not closed yet
+    private static final AtomicInteger OPEN = new AtomicInteger();
+
+    /**
+     * Watch a command until it finishes, fails or times out.
+     * The callback passed is replaced by one notified by the server, and closed without closing the handle.
+     *
+     * @param callback Callback of the command
+     * @param timeout  Maximum time to wait in milliseconds, 0 or less to wait indefinitely
+     * @param listener Listener receiving the progress, can be null
+     *
+     * @return the future completed with the response of the command
+     */
+    public static CompletableFuture<Response> watch(CmdCallbackI     callback,
+                                                    final long       timeout,
+                                                    ProgressListener listener)
+    {
+        final CompletableFuture<Response> future = new CompletableFuture<Response>();
+
+        final Watcher watcher;
+        try {
+            watcher = new Watcher(callback);
+        }
+        catch(Exception e) {
+            future.completeExceptionally(e);
+            try {
+                callback.close(true);
+            }
+            catch(Exception ex) {
+                //The handle is already closed
+            }
+            return future;
+        }
+        callback.close(false);
+        OPEN.incrementAndGet();
+
+        final ScheduledFuture<?> timer;
+        if(timeout > 0) {
+            timer = SCHEDULER.schedule(new Runnable() {
+                public void run()
+                {
+                    future.completeExceptionally(new TimeoutException("Command did not finish after " + timeout + " ms"));
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        else {
+            timer = null;
+        }
+
+        future.whenComplete(new BiConsumer<Response, Throwable>() {
+            public void accept(Response response, Throwable t)
+            {
+                if(timer != null)
+                    timer.cancel(false);
+                watcher.stop();
+            }
+        });
+
+        watcher.listener = listener;
+        watcher.future   = future;
+
+        //The command may have finished before the future was set
+        if(watcher.isDone())
+            watcher.complete();
+
+        return future;
+    }
+
+
+
+
+    /**
+     * @return the number of callbacks which are not closed yet
+     */
+    static int getOpenCallbacks()
+    {
+        return OPEN.get();
+    }
+
+    /**
+     * Private constructor: the class only has static methods.
+     */
+    private CommandWatcher()
+    {
+    }
+}
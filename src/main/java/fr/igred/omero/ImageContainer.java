@@ -34,6 +34,9 @@ import java.util.concurrent.ExecutionException;
 import org.apache.commons.io.FilenameUtils;
 
 import fr.igred.omero.metadata.ROIContainer;
+import fr.igred.omero.metadata.ROIPager;
+import fr.igred.omero.metadata.ROIStatistics;
+import fr.igred.omero.metadata.ShapeFilter;
 import fr.igred.omero.metadata.annotation.MapAnnotationContainer;
 import fr.igred.omero.metadata.annotation.TagAnnotationContainer;
 import fr.igred.omero.sort.SortTagAnnotationContainer;
@@ -68,6 +71,7 @@ import omero.model.Length;
 import omero.model.NamedValue;
 import omero.model.OriginalFile;
 import omero.model.OriginalFileI;
+import omero.model.TagAnnotation;
 import omero.model.TagAnnotationI;
 import omero.model.enums.ChecksumAlgorithmSHA1160;
 
@@ -129,6 +133,16 @@ public class ImageContainer {
         return image.getAcquisitionDate();
     }
 
+    /**
+     * Return the id of the group containing the image
+     * 
+     * @return group id
+     */
+    public Long getGroupId()
+    {
+        return image.getGroupId();
+    }
+
     /**
      * @return ImageData contained 
      */
@@ -220,7 +234,8 @@ public class ImageContainer {
         link.setChild(tagData.asAnnotation());
         link.setParent(image.asImage());
 
-        IObject r = client.getDm().saveAndReturnObject(client.getCtx(), link);
+        IObject r = client.saveObject(link);
+        client.getCache().invalidate(MetadataCache.Type.ANNOTATION, MetadataCache.Type.TAG);
 
         return r;
     }
@@ -248,7 +263,8 @@ public class ImageContainer {
         ImageAnnotationLink link = new ImageAnnotationLinkI();
         link.setChild(new TagAnnotationI(id, false));
         link.setParent(image.asImage());
-        IObject r = client.getDm().saveAndReturnObject(client.getCtx(), link);
+        IObject r = client.saveObject(link);
+        client.getCache().invalidate(MetadataCache.Type.ANNOTATION, MetadataCache.Type.TAG);
 
         return r;
     }
@@ -334,15 +350,24 @@ public class ImageContainer {
         List<Class<? extends AnnotationData>> types = new ArrayList<Class<? extends AnnotationData>>();
         types.add(TagAnnotationData.class);
 
-        List<AnnotationData> annotations = client.getMetadata().getAnnotations(client.getCtx(), image, types, userIds);
+        String key = "Image:" + image.getId() + ":" + TagAnnotationData.class.getSimpleName();
+
+        List<AnnotationData> annotations = client.getCache().get(client, MetadataCache.Type.ANNOTATION, key);
+        if(annotations == null) {
+            annotations = client.getMetadata().getAnnotations(client.getCtx(), image, types, userIds);
+            if(annotations != null)
+                annotations = Collections.unmodifiableList(annotations);
+            client.getCache().put(client, MetadataCache.Type.ANNOTATION, key, annotations);
+        }
 
         List<TagAnnotationContainer> tags = new ArrayList<TagAnnotationContainer>();
 
         if(annotations != null) {
             for (AnnotationData annotation : annotations) {
-                TagAnnotationData tagAnnotation = (TagAnnotationData) annotation;
+                // The cached tags are copied so that changes made by the caller do not reach the cache
+                TagAnnotation tagAnnotation = (TagAnnotation) annotation.asIObject().clone();
                 
-                tags.add(new TagAnnotationContainer(tagAnnotation));
+                tags.add(new TagAnnotationContainer(new TagAnnotationData(tagAnnotation)));
             }
         }
 
@@ -373,7 +398,15 @@ public class ImageContainer {
         List<Class<? extends AnnotationData>> types = new ArrayList<Class<? extends AnnotationData>>();
         types.add(MapAnnotationData.class);
 
-        List<AnnotationData> annotations = client.getMetadata().getAnnotations(client.getCtx(), image, types, userIds);
+        String key = "Image:" + image.getId() + ":" + MapAnnotationData.class.getSimpleName();
+
+        List<AnnotationData> annotations = client.getCache().get(client, MetadataCache.Type.ANNOTATION, key);
+        if(annotations == null) {
+            annotations = client.getMetadata().getAnnotations(client.getCtx(), image, types, userIds);
+            if(annotations != null)
+                annotations = Collections.unmodifiableList(annotations);
+            client.getCache().put(client, MetadataCache.Type.ANNOTATION, key, annotations);
+        }
 
         List<NamedValue> keyValuePairs = new ArrayList<NamedValue>();
 
@@ -383,8 +416,9 @@ public class ImageContainer {
 
                 List<NamedValue> list = (List<NamedValue>) mapAnnotation.getContent();
 
+                // The cached pairs are copied so that changes made by the caller do not reach the cache
                 for (NamedValue namedValue : list)
-                    keyValuePairs.add(namedValue);
+                    keyValuePairs.add(new NamedValue(namedValue.name, namedValue.value));
             }
         }
 
@@ -429,6 +463,7 @@ public class ImageContainer {
     /**
      * Add a List of Key-Value pair to the image
      * The list is contained in the MapAnnotationContainer
+     * The annotation is saved with its link, which is queued if a write batch is open.
      * 
      * @param client The user
      * @param data   MapAnnotationContainer containing a list of NamedValue
@@ -443,11 +478,12 @@ public class ImageContainer {
             DSAccessException,
             ExecutionException
     {
-        client.getDm().attachAnnotation(client.getCtx(), data.getMapAnnotation(), new ImageData(new ImageI(image.getId(), false)));
+        addMapAnnotation(client, data.getMapAnnotation());
     }
 
     /**
      * Add a single Key-Value pair to the image.
+     * The annotation is saved with its link, which is queued if a write batch is open.
      * 
      * @param client The user
      * @param key    Name of the key
@@ -471,7 +507,33 @@ public class ImageContainer {
         MapAnnotationData data = new MapAnnotationData();
         data.setContent(result);
 
-        client.getDm().attachAnnotation(client.getCtx(), data, new ImageData(new ImageI(image.getId(), false)));
+        addMapAnnotation(client, data);
+    }
+
+    /**
+     * Link a new map annotation to the image.
+     * The annotation is saved with the link.
+     * 
+     * @param client The user
+     * @param data   Map annotation to link
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws DSAccessException       Cannot access data
+     * @throws ExecutionException      A Facility can't be retrieved or instancied
+     */
+    private void addMapAnnotation(Client            client, 
+                                  MapAnnotationData data)
+        throws 
+            DSOutOfServiceException,
+            DSAccessException,
+            ExecutionException
+    {
+        ImageAnnotationLink link = new ImageAnnotationLinkI();
+        link.setChild(data.asAnnotation());
+        link.setParent(new ImageI(image.getId(), false));
+
+        client.saveObject(link);
+        client.getCache().invalidate(MetadataCache.Type.ANNOTATION);
     }
 
 
@@ -500,6 +562,29 @@ public class ImageContainer {
         roi.setData(roiData);
     }
 
+    /**
+     * Link multiple ROIs to the image in OMERO, sending them in batches.
+     * The ROIContainers are updated with the saved ROIs.
+     * 
+     * @param client    The user
+     * @param rois      ROIs to be added
+     * @param batchSize Maximum number of ROIs sent per request
+     * 
+     * @return The ids of the ROIs saved, in the order of the ROIs
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public List<Long> saveROIs(Client             client, 
+                               List<ROIContainer> rois, 
+                               int                batchSize)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        return client.saveROIs(Collections.singletonMap(image.getId(), rois), batchSize).get(image.getId());
+    }
+
     /**
      * Get all ROIs linked to the image in OMERO 
      * 
@@ -534,6 +619,82 @@ public class ImageContainer {
         return roiContainers;
     }
 
+    /**
+     * Get the ROIs linked to the image page by page, with only the shapes selected by a filter.
+     * The ROIs without selected shape are skipped.
+     * 
+     * @param client   The user
+     * @param filter   Selection of the shapes
+     * @param pageSize Number of ROIs retrieved per page
+     * 
+     * @return ROIPager iterating over the ROIs
+     */
+    public ROIPager getROIsPaged(Client      client, 
+                                 ShapeFilter filter, 
+                                 int         pageSize)
+    {
+        return new ROIPager(client, image.getId(), filter, pageSize);
+    }
+
+    /**
+     * Count the ROIs linked to the image with at least one shape selected by a filter.
+     * The bounding box of the filter is not taken into account.
+     * 
+     * @param client The user
+     * @param filter Selection of the shapes
+     * 
+     * @return The number of ROIs
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public long countROIs(Client      client, 
+                          ShapeFilter filter)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        return ROIPager.count(client, image.getId(), filter);
+    }
+
+
+    /**
+     * Compute the intensity statistics of all the ROIs linked to the image in OMERO, without retrieving the pixels.
+     * Only the ids of the shapes are retrieved, not the ROIs. The shapes are sent in batches of
+     * {@link Batches#DEFAULT_BATCH_SIZE}.
+     * 
+     * @param client   The user
+     * @param z        Z position of the shapes without Z position
+     * @param t        T position of the shapes without T position
+     * @param perROI   Merge the statistics of the shapes of each ROI
+     * @param channels Channels to measure, all if none is specified
+     * 
+     * @return The statistics, one row per shape or ROI, and channel
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public ROIStatistics getROIStatistics(Client  client,
+                                          int     z,
+                                          int     t,
+                                          boolean perROI,
+                                          int...  channels)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        if(channels.length == 0) {
+            channels = new int[getPixels().getSizeC()];
+            for(int c = 0; c < channels.length; c++)
+                channels[c] = c;
+        }
+
+        ROIStatistics statistics = ROIStatistics.compute(client, image.getId(), z, t, channels,
+                                                         Batches.DEFAULT_BATCH_SIZE);
+
+        return perROI ? statistics.perROI() : statistics;
+    }
+
 
 
 
@@ -740,7 +901,12 @@ public class ImageContainer {
             DSAccessException,
             ExecutionException
     {
-        List<ChannelData> channels = client.getMetadata().getChannelData(client.getCtx(), this.image.getId());
+        List<ChannelData> channels = client.getCache().get(client, MetadataCache.Type.CHANNEL, image.getId());
+        if(channels == null) {
+            channels = Collections.unmodifiableList(client.getMetadata().getChannelData(client.getCtx(),
+                                                                                        this.image.getId()));
+            client.getCache().put(client, MetadataCache.Type.CHANNEL, image.getId(), channels);
+        }
         
         return channels.get(index).getChannelLabeling();
     }
@@ -791,7 +957,7 @@ public class ImageContainer {
         originalFile.setMimetype(omero.rtypes.rstring(FilenameUtils.getExtension(file.getName())));
         originalFile = (OriginalFile) client.getDm().saveAndReturnObject(client.getCtx(), originalFile);
 
-        RawFileStorePrx rawFileStore = client.getGateway().getRawFileService(client.getCtx());
+        RawFileStorePrx rawFileStore = client.createRawFileStore();
 
         long pos = 0;
         int rlen;
@@ -822,6 +988,7 @@ public class ImageContainer {
         ImageAnnotationLink link = new ImageAnnotationLinkI();
         link.setChild(fa);
         link.setParent(image.asImage());
+        client.getCache().invalidate(MetadataCache.Type.ANNOTATION);
         return client.getDm().saveAndReturnObject(client.getCtx(), link);                      
     }
 
@@ -0,0 +1,277 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import fr.igred.omero.sort.SortImageContainer;
+import omero.RLong;
+import omero.RType;
+import omero.api.IQueryPrx;
+import omero.gateway.model.ImageData;
+import omero.model.IObject;
+import omero.model.Image;
+import omero.sys.ParametersI;
+
+/**
+ * Iterate over images page by page, in increasing id order.
+ * Each page is fetched from OMERO with a limited query, and the next page is retrieved in the background
+ * while the current one is processed, so at most two pages are held in memory.
+ */
+public class ImagePager implements Iterator<ImageContainer> {
+
+    /**
+     * Images of a page, with the last id retrieved.
+     */
+    private static class Page {
+        ///Images loaded
+        private final List<ImageContainer> images;
+        ///Last image id retrieved, -1 if none
+        private final long                 lastId;
+        ///True if this is the last page
+        private final boolean              last;
+
+        private Page(List<ImageContainer> images,
+                     long                 lastId,
+                     boolean              last)
+        {
+            this.images = images;
+            this.lastId = lastId;
+            this.last   = last;
+        }
+    }
+
+    ///Default number of images retrieved per page
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    ///Threads used to prefetch the pages
+    private static final ExecutorService PREFETCH = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "omero-image-pager");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    ///The user
+    private final Client client;
+    ///HQL condition restricting the images, on the alias "i"
+    private final String condition;
+    ///Parameters used by the condition
+    private final ParametersI parameters;
+    ///Number of images per page
+    private final int pageSize;
+
+    ///Page currently being iterated
+    private Iterator<ImageContainer> current = Collections.<ImageContainer>emptyIterator();
+    ///Next page, being fetched
+    private Future<Page> next;
+    ///True if the last page was retrieved
+    private boolean exhausted = false;
+
+    /**
+     * Return the number of images retrieved per page.
+     *
+     * @return page size
+     */
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * Return true if there are more images.
+     * The call blocks until the next page is retrieved if the current one is consumed.
+     *
+     * @return true if there are more images
+     *
+     * @throws IllegalStateException A page could not be retrieved from OMERO
+     */
+    public boolean hasNext()
+    {
+        while(!current.hasNext() && !exhausted) {
+            Page page = waitForPage();
+
+            if(page.last)
+                exhausted = true;
+            else
+                prefetch(page.lastId);
+
+            current = page.images.iterator();
+        }
+        return current.hasNext();
+    }
+
+    /**
+     * Return the next image.
+     *
+     * @return ImageContainer containing the image
+     *
+     * @throws NoSuchElementException No more images
+     * @throws IllegalStateException  A page could not be retrieved from OMERO
+     */
+    public ImageContainer next()
+    {
+        if(!hasNext())
+            throw new NoSuchElementException("No more images");
+
+        return current.next();
+    }
+
+    /**
+     * Return a sequential stream over the remaining images.
+     *
+     * @return Stream of ImageContainer
+     */
+    public Stream<ImageContainer> stream()
+    {
+        Spliterator<ImageContainer> spliterator = Spliterators.spliteratorUnknownSize(this,
+                                                                                      Spliterator.ORDERED |
+                                                                                      Spliterator.DISTINCT |
+                                                                                      Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    /**
+     * Wait for the page being fetched.
+     *
+     * @return the page
+     */
+    private Page waitForPage()
+    {
+        try {
+            return next.get();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrieving images", e);
+        }
+        catch(java.util.concurrent.ExecutionException e) {
+            throw new IllegalStateException("Could not retrieve images", e.getCause());
+        }
+    }
+
+    /**
+     * Start fetching the page following an image id.
+     *
+     * @param from Id after which the page starts
+     */
+    private void prefetch(final long from)
+    {
+        next = PREFETCH.submit(new Callable<Page>() {
+            public Page call()
+                throws Exception
+            {
+                return fetch(from);
+            }
+        });
+    }
+
+    /**
+     * Retrieve the images with an id greater than the one specified.
+     * The ids are paged first, then the images are loaded with their pixels.
+     * The end of the iteration is detected on the ids, so images which can no longer be loaded are skipped.
+     *
+     * @param from Id after which the page starts
+     *
+     * @return the page, with the images sorted by id
+     *
+     * @throws Exception Cannot retrieve the images
+     */
+    private Page fetch(long from)
+        throws
+            Exception
+    {
+        IQueryPrx qs = client.getQueryService();
+
+        ParametersI param = new ParametersI();
+        param.map.putAll(parameters.map);
+        param.addLong("lastId", from);
+        param.page(0, pageSize);
+
+        List<List<RType>> result = qs.projection("select i.id from Image as i " +
+                                                 "where i.id > :lastId" + condition +
+                                                 " order by i.id", param);
+
+        if(result.isEmpty())
+            return new Page(new ArrayList<ImageContainer>(), -1L, true);
+
+        List<Long> ids = new ArrayList<Long>(result.size());
+        for(List<RType> row : result)
+            ids.add(((RLong) row.get(0)).getValue());
+
+        ParametersI idParam = new ParametersI();
+        idParam.addIds(ids);
+
+        List<IObject> os = qs.findAllByQuery("select distinct i from Image as i " +
+                                             "left outer join fetch i.pixels as p " +
+                                             "left outer join fetch p.pixelsType " +
+                                             "where i.id in (:ids)", idParam);
+
+        List<ImageContainer> images = new ArrayList<ImageContainer>(os.size());
+        for(IObject o : os)
+            images.add(new ImageContainer(new ImageData((Image) o)));
+
+        Collections.sort(images, new SortImageContainer());
+
+        return new Page(images, ids.get(ids.size() - 1), ids.size() < pageSize);
+    }
+
+    /**
+     * Constructor of the ImagePager class.
+     * The first page is requested immediately.
+     *
+     * @param client     The user
+     * @param condition  HQL condition on the image alias "i", starting with " and ", or an empty string
+     * @param parameters Parameters used in the condition
+     * @param pageSize   Number of images per page
+     *
+     * @throws IllegalArgumentException The page size is not strictly positive
+     */
+    public ImagePager(Client      client,
+                      String      condition,
+                      ParametersI parameters,
+                      int         pageSize)
+        throws
+            IllegalArgumentException
+    {
+        if(pageSize <= 0)
+            throw new IllegalArgumentException("Page size must be strictly positive");
+
+        this.client     = client;
+        this.condition  = condition;
+        this.parameters = parameters;
+        this.pageSize   = pageSize;
+
+        prefetch(-1L);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import omero.RInt;
+import omero.RLong;
+import omero.RString;
+import omero.RTime;
+import omero.RType;
+import omero.ServerError;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.sys.ParametersI;
+
+/**
+ * Immutable summary of an image: id, name, acquisition date, dataset and dimensions.
+ * Summaries are built from a single scalar projection query, without loading the ImageData graph.
+ * An image linked to several datasets has a single summary, with the smallest of their ids.
+ */
+public class ImageSummary {
+
+    ///Value used when the acquisition date is not set
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    ///Image id
+    private final long   id;
+    ///Image name, interned
+    private final String name;
+    ///Acquisition date in milliseconds
+    private final long   acquisitionDate;
+    ///Id of the dataset containing the image, -1 if none
+    private final long   datasetId;
+    ///Dimensions of the image
+    private final int    sizeX;
+    private final int    sizeY;
+    private final int    sizeZ;
+    private final int    sizeC;
+    private final int    sizeT;
+
+    /**
+     * Return the image id
+     *
+     * @return id
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    /**
+     * Return the image name
+     *
+     * @return name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Return the image acquisition date
+     *
+     * @return acquisition date, null if not set
+     */
+    public Timestamp getAcquisitionDate()
+    {
+        return acquisitionDate == NO_DATE ? null : new Timestamp(acquisitionDate);
+    }
+
+    /**
+     * Return the id of the dataset containing the image
+     *
+     * @return dataset id, -1 if the image is not in a dataset
+     */
+    public long getDatasetId()
+    {
+        return datasetId;
+    }
+
+    /**
+     * @return Size of the image on the X axis
+     */
+    public int getSizeX()
+    {
+        return sizeX;
+    }
+
+    /**
+     * @return Size of the image on the Y axis
+     */
+    public int getSizeY()
+    {
+        return sizeY;
+    }
+
+    /**
+     * @return Size of the image on the Z axis
+     */
+    public int getSizeZ()
+    {
+        return sizeZ;
+    }
+
+    /**
+     * @return Size of the image on the C axis
+     */
+    public int getSizeC()
+    {
+        return sizeC;
+    }
+
+    /**
+     * @return Size of the image on the T axis
+     */
+    public int getSizeT()
+    {
+        return sizeT;
+    }
+
+    public String toString()
+    {
+        return "ImageSummary(" + id + ", " + name + ", dataset " + datasetId + ", " +
+               sizeX + "x" + sizeY + "x" + sizeZ + "x" + sizeC + "x" + sizeT + ")";
+    }
+
+
+
+
+    /**
+     * Retrieve the summaries of the images matching a condition, sorted by image id.
+     * Each image is returned once, even when several of its dataset links match the condition.
+     *
+     * @param client     The user
+     * @param condition  HQL condition on the image alias "i" and the dataset link alias "l"
+     * @param parameters Parameters used in the condition
+     *
+     * @return List of ImageSummary
+     *
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public static List<ImageSummary> load(Client      client,
+                                          String      condition,
+                                          ParametersI parameters)
+        throws
+            ServerError,
+            DSOutOfServiceException
+    {
+        List<List<RType>> rows = client.getQueryService().projection("select i.id, i.name, i.acquisitionDate, l.parent.id, " +
+                                                                     "p.sizeX, p.sizeY, p.sizeZ, p.sizeC, p.sizeT " +
+                                                                     "from Image as i " +
+                                                                     "join i.pixels as p " +
+                                                                     "left outer join i.datasetLinks as l " +
+                                                                     "where " + condition +
+                                                                     " order by i.id, l.parent.id", parameters);
+
+        List<ImageSummary> summaries = new ArrayList<ImageSummary>(rows.size());
+
+        long previous = -1L;
+        for(List<RType> row : rows) {
+            long id = ((RLong) row.get(0)).getValue();
+            if(id == previous)
+                continue;
+            previous = id;
+
+            RString name    = (RString) row.get(1);
+            RTime   date    = (RTime)   row.get(2);
+            RLong   dataset = (RLong)   row.get(3);
+
+            summaries.add(new ImageSummary(id,
+                                           name == null ? null : name.getValue(),
+                                           date == null ? NO_DATE : date.getValue(),
+                                           dataset == null ? -1L : dataset.getValue(),
+                                           ((RInt) row.get(4)).getValue(),
+                                           ((RInt) row.get(5)).getValue(),
+                                           ((RInt) row.get(6)).getValue(),
+                                           ((RInt) row.get(7)).getValue(),
+                                           ((RInt) row.get(8)).getValue()));
+        }
+
+        return summaries;
+    }
+
+
+
+
+    /**
+     * Constructor of the ImageSummary class.
+     *
+     * @param id              Image id
+     * @param name            Image name
+     * @param acquisitionDate Acquisition date in milliseconds
+     * @param datasetId       Id of the dataset containing the image
+     * @param sizeX           Size of the image on the X axis
+     * @param sizeY           Size of the image on the Y axis
+     * @param sizeZ           Size of the image on the Z axis
+     * @param sizeC           Size of the image on the C axis
+     * @param sizeT           Size of the image on the T axis
+     */
+    private ImageSummary(long   id,
+                         String name,
+                         long   acquisitionDate,
+                         long   datasetId,
+                         int    sizeX,
+                         int    sizeY,
+                         int    sizeZ,
+                         int    sizeC,
+                         int    sizeT)
+    {
+        this.id              = id;
+        this.name            = name == null ? null : name.intern();
+        this.acquisitionDate = acquisitionDate;
+        this.datasetId       = datasetId;
+        this.sizeX           = sizeX;
+        this.sizeY           = sizeY;
+        this.sizeZ           = sizeZ;
+        this.sizeC           = sizeC;
+        this.sizeT           = sizeT;
+    }
+}
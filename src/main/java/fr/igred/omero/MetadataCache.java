@@ -0,0 +1,307 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-through cache for the metadata retrieved by a Client: containers, tags, annotations and channels.
+ * Entries are keyed by group and user of the security context, expire after a time to live set per type,
+ * and the least recently used entries are evicted when a type reaches its maximum size.
+ * The cache is disabled for a type until a strictly positive time to live is set.
+ * Writes made through the Client invalidate the types they affect.
+ */
+public class MetadataCache {
+
+    /**
+     * Types of cached metadata.
+     */
+    public enum Type {
+        PROJECT,
+        DATASET,
+        TAG,
+        ANNOTATION,
+        CHANNEL
+    }
+
+    /**
+     * Cached value with its expiration time.
+     */
+    private static class Entry {
+        ///Cached value
+        private final Object value;
+        ///Expiration time, in milliseconds
+        private final long   expires;
+
+        private Entry(Object value,
+                      long   expires)
+        {
+            this.value   = value;
+            this.expires = expires;
+        }
+    }
+
+    ///Default maximum number of entries per type
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    ///Entries of each type, in access order
+    private final Map<Type, LinkedHashMap<String, Entry>> entries = new EnumMap<Type, LinkedHashMap<String, Entry>>(Type.class);
+
+    ///Time to live of each type, in milliseconds
+    private final Map<Type, Long>    ttl     = new EnumMap<Type, Long>(Type.class);
+    ///Maximum size of each type
+    private final Map<Type, Integer> maxSize = new EnumMap<Type, Integer>(Type.class);
+    ///Metrics of each type
+    private final Map<Type, Long>    hits    = new EnumMap<Type, Long>(Type.class);
+    private final Map<Type, Long>    misses  = new EnumMap<Type, Long>(Type.class);
+
+    /**
+     * Set the time to live of a type.
+     * A time to live lower or equal to 0 disables the cache for this type.
+     *
+     * @param type Type of metadata
+     * @param ms   Time to live in milliseconds
+     */
+    public synchronized void setTimeToLive(Type type,
+                                           long ms)
+    {
+        ttl.put(type, ms);
+        if(ms <= 0)
+            entries.get(type).clear();
+    }
+
+    /**
+     * Set the same time to live for all types.
+     *
+     * @param ms Time to live in milliseconds
+     */
+    public synchronized void setTimeToLive(long ms)
+    {
+        for(Type type : Type.values())
+            setTimeToLive(type, ms);
+    }
+
+    /**
+     * Return the time to live of a type.
+     *
+     * @param type Type of metadata
+     *
+     * @return time to live in milliseconds
+     */
+    public synchronized long getTimeToLive(Type type)
+    {
+        return ttl.get(type);
+    }
+
+    /**
+     * Set the maximum number of entries for a type.
+     *
+     * @param type Type of metadata
+     * @param size Maximum number of entries
+     */
+    public synchronized void setMaxSize(Type type,
+                                        int  size)
+    {
+        maxSize.put(type, size);
+        evict(type);
+    }
+
+    /**
+     * Return the maximum number of entries for a type.
+     *
+     * @param type Type of metadata
+     *
+     * @return maximum number of entries
+     */
+    public synchronized int getMaxSize(Type type)
+    {
+        return maxSize.get(type);
+    }
+
+    /**
+     * @param type Type of metadata
+     *
+     * @return the number of cache hits for this type
+     */
+    public synchronized long getHits(Type type)
+    {
+        return hits.get(type);
+    }
+
+    /**
+     * @param type Type of metadata
+     *
+     * @return the number of cache misses for this type
+     */
+    public synchronized long getMisses(Type type)
+    {
+        return misses.get(type);
+    }
+
+    /**
+     * @param type Type of metadata
+     *
+     * @return the number of entries for this type
+     */
+    public synchronized int size(Type type)
+    {
+        return entries.get(type).size();
+    }
+
+    /**
+     * Reset the hit and miss counters.
+     */
+    public synchronized void resetMetrics()
+    {
+        for(Type type : Type.values()) {
+            hits.put(type, 0L);
+            misses.put(type, 0L);
+        }
+    }
+
+
+
+
+    /**
+     * Return a cached value.
+     *
+     * @param client The user, whose security context is part of the key
+     * @param type   Type of metadata
+     * @param key    Key of the value
+     * @param <T>    Type of the value
+     *
+     * @return the value, null if it is not cached or expired
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T get(Client client,
+                                  Type   type,
+                                  Object key)
+    {
+        if(ttl.get(type) <= 0)
+            return null;
+
+        LinkedHashMap<String, Entry> map = entries.get(type);
+        String k = key(client, key);
+
+        Entry entry = map.get(k);
+        if(entry != null && entry.expires < System.currentTimeMillis()) {
+            map.remove(k);
+            entry = null;
+        }
+
+        if(entry == null) {
+            misses.put(type, misses.get(type) + 1);
+            return null;
+        }
+
+        hits.put(type, hits.get(type) + 1);
+        return (T) entry.value;
+    }
+
+    /**
+     * Store a value in the cache.
+     *
+     * @param client The user, whose security context is part of the key
+     * @param type   Type of metadata
+     * @param key    Key of the value
+     * @param value  Value to cache
+     */
+    public synchronized void put(Client client,
+                                 Type   type,
+                                 Object key,
+                                 Object value)
+    {
+        long time = ttl.get(type);
+        if(time <= 0 || value == null)
+            return;
+
+        entries.get(type).put(key(client, key), new Entry(value, System.currentTimeMillis() + time));
+        evict(type);
+    }
+
+    /**
+     * Remove all entries of the specified types.
+     *
+     * @param types Types of metadata
+     */
+    public synchronized void invalidate(Type... types)
+    {
+        for(Type type : types)
+            entries.get(type).clear();
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void invalidateAll()
+    {
+        invalidate(Type.values());
+    }
+
+    /**
+     * Remove the least recently used entries of a type above its maximum size.
+     *
+     * @param type Type of metadata
+     */
+    private void evict(Type type)
+    {
+        LinkedHashMap<String, Entry> map = entries.get(type);
+        int size = maxSize.get(type);
+
+        Iterator<String> it = map.keySet().iterator();
+        while(map.size() > size && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Build the key of a value from the security context of the user.
+     *
+     * @param client The user
+     * @param key    Key of the value
+     *
+     * @return the key
+     */
+    private static String key(Client client,
+                              Object key)
+    {
+        return client.getCtx().getGroupID() + ":" + client.getId() + ":" + key;
+    }
+
+
+
+
+    /**
+     * Constructor of the MetadataCache class.
+     * The cache is disabled for all types.
+     */
+    public MetadataCache()
+    {
+        for(Type type : Type.values()) {
+            entries.put(type, new LinkedHashMap<String, Entry>(16, 0.75f, true));
+            ttl.put(type, 0L);
+            maxSize.put(type, DEFAULT_MAX_SIZE);
+            hits.put(type, 0L);
+            misses.put(type, 0L);
+        }
+    }
+}
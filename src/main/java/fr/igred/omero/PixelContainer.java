@@ -30,9 +30,49 @@ import omero.model.Length;
  */ 
 public class PixelContainer {
 
+    ///Default size of the tiles retrieved from OMERO
+    public static final int DEFAULT_MAX_DIST = 5000;
+
+    /**
+     * Size of the tiles retrieved from OMERO by the containers created afterwards, 
+     * including the ones created by {@link ImageContainer#getPixels()} and {@link ImageContainer#toImagePlus}.
+     * 
+     * @deprecated Use {@link #setMaxDist(int)} to set the size of the tiles of a single container.
+     */
+    @Deprecated
+    static public int maxDist = DEFAULT_MAX_DIST;
+
     ///PixelData contained
     PixelsData pixels;
-    static public int maxDist = 5000;
+    ///Size of the tiles retrieved from OMERO
+    private int tileSize = maxDist;
+
+    /**
+     * Get the size of the tiles used to retrieve the pixels from OMERO.
+     * 
+     * @return Size of the tiles on the X and Y axes
+     */
+    public int getMaxDist()
+    {
+        return tileSize;
+    }
+
+    /**
+     * Set the size of the tiles used to retrieve the pixels from OMERO.
+     * 
+     * @param maxDist Size of the tiles on the X and Y axes
+     * 
+     * @throws IllegalArgumentException The size is not strictly positive
+     */
+    public void setMaxDist(int maxDist)
+        throws
+            IllegalArgumentException
+    {
+        if(maxDist <= 0)
+            throw new IllegalArgumentException("Tile size must be strictly positive");
+
+        this.tileSize = maxDist;
+    }
 
     /**
      * Get the size of a single image pixel on the X axis.
@@ -218,10 +258,10 @@ public class PixelContainer {
         for (int z = zStart; z < zEnd; z++) {
             for (int t = tStart; t < tEnd; t++) {
                 for (int c = cStart; c < cEnd; c++) {
-                    for(int x = xStart; x < xEnd; x += maxDist) {
-                        int width = x + maxDist < xEnd ? maxDist : xEnd - x;
-                        for(int y = yStart; y < yEnd; y += maxDist) {
-                            int height = y + maxDist < yEnd ? maxDist : yEnd - y;
+                    for(int x = xStart; x < xEnd; x += tileSize) {
+                        int width = x + tileSize < xEnd ? tileSize : xEnd - x;
+                        for(int y = yStart; y < yEnd; y += tileSize) {
+                            int height = y + tileSize < yEnd ? tileSize : yEnd - y;
 
                             p = client.getRdf().getTile(client.getCtx(), pixels, z, t, c, x, y, width, height);
 
@@ -365,10 +405,10 @@ public class PixelContainer {
         for (int z = zStart; z < zEnd; z++) {
             for (int t = tStart; t < tEnd; t++) {
                 for (int c = cStart; c < cEnd; c++) {
-                    for(int x = xStart; x < xEnd; x += maxDist) {
-                        int width = x + maxDist < xEnd ? maxDist : xEnd - x;
-                        for(int y = yStart; y < yEnd; y += maxDist) {
-                            int height = y + maxDist < yEnd ? maxDist : yEnd - y;
+                    for(int x = xStart; x < xEnd; x += tileSize) {
+                        int width = x + tileSize < xEnd ? tileSize : xEnd - x;
+                        for(int y = yStart; y < yEnd; y += tileSize) {
+                            int height = y + tileSize < yEnd ? tileSize : yEnd - y;
 
                             p = client.getRdf().getTile(client.getCtx(), pixels, z, t, c, x, y, width, height);
 
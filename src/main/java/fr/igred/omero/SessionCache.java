@@ -0,0 +1,234 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Local file storing the session keys of the users, so that a new process can join an existing session
+ * instead of logging in again.
+ * The file is only readable and writable by its owner.
+ */
+public class SessionCache {
+
+    ///Permissions of the file: read and write for the owner only
+    private static final Set<PosixFilePermission> PERMISSIONS = PosixFilePermissions.fromString("rw-------");
+
+    ///File containing the session keys
+    private final File file;
+
+    /**
+     * Return the file containing the session keys.
+     *
+     * @return file
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Return the session key stored for a user.
+     *
+     * @param hostname Name of the host
+     * @param port     Port used by OMERO
+     * @param username Username of the user
+     * @param groupId  Id of the group, null for the default group
+     *
+     * @return the session key, null if none is stored
+     *
+     * @throws IOException Cannot read the file
+     */
+    public synchronized String get(String hostname,
+                                   int    port,
+                                   String username,
+                                   Long   groupId)
+        throws
+            IOException
+    {
+        return load().getProperty(entry(hostname, port, username, groupId));
+    }
+
+    /**
+     * Store the session key of a user.
+     *
+     * @param hostname   Name of the host
+     * @param port       Port used by OMERO
+     * @param username   Username of the user
+     * @param groupId    Id of the group, null for the default group
+     * @param sessionKey Session key
+     *
+     * @throws IOException Cannot write the file
+     */
+    public synchronized void put(String hostname,
+                                 int    port,
+                                 String username,
+                                 Long   groupId,
+                                 String sessionKey)
+        throws
+            IOException
+    {
+        Properties sessions = load();
+        sessions.setProperty(entry(hostname, port, username, groupId), sessionKey);
+        store(sessions);
+    }
+
+    /**
+     * Remove the session key of a user.
+     *
+     * @param hostname Name of the host
+     * @param port     Port used by OMERO
+     * @param username Username of the user
+     * @param groupId  Id of the group, null for the default group
+     *
+     * @throws IOException Cannot write the file
+     */
+    public synchronized void remove(String hostname,
+                                    int    port,
+                                    String username,
+                                    Long   groupId)
+        throws
+            IOException
+    {
+        Properties sessions = load();
+        if(sessions.remove(entry(hostname, port, username, groupId)) != null)
+            store(sessions);
+    }
+
+    /**
+     * Read the session keys from the file.
+     *
+     * @return the session keys
+     *
+     * @throws IOException Cannot read the file
+     */
+    private Properties load()
+        throws
+            IOException
+    {
+        Properties sessions = new Properties();
+
+        if(file.exists()) {
+            InputStream stream = new FileInputStream(file);
+            try {
+                sessions.load(stream);
+            }
+            finally {
+                stream.close();
+            }
+        }
+
+        return sessions;
+    }
+
+    /**
+     * Write the session keys to the file, creating it with restricted permissions if needed.
+     *
+     * @param sessions Session keys
+     *
+     * @throws IOException Cannot write the file
+     */
+    private void store(Properties sessions)
+        throws
+            IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(!parent.exists() && !parent.mkdirs())
+            throw new IOException("Cannot create directory " + parent);
+
+        Path    path  = file.toPath();
+        boolean posix = Files.getFileAttributeView(parent.toPath(), PosixFileAttributeView.class) != null;
+
+        if(!file.exists()) {
+            if(posix)
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(PERMISSIONS));
+            else
+                Files.createFile(path);
+        }
+
+        if(posix) {
+            Files.setPosixFilePermissions(path, PERMISSIONS);
+        }
+        else {
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        }
+
+        OutputStream stream = new FileOutputStream(file);
+        try {
+            sessions.store(stream, "OMERO session keys");
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Build the name of the entry of a user.
+     *
+     * @param hostname Name of the host
+     * @param port     Port used by OMERO
+     * @param username Username of the user
+     * @param groupId  Id of the group, null for the default group
+     *
+     * @return the name of the entry
+     */
+    private static String entry(String hostname,
+                                int    port,
+                                String username,
+                                Long   groupId)
+    {
+        return username + "@" + hostname + ":" + port + "/" + (groupId == null ? "default" : groupId);
+    }
+
+
+
+
+    /**
+     * Constructor of the SessionCache class.
+     *
+     * @param file File containing the session keys
+     */
+    public SessionCache(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Constructor of the SessionCache class.
+     * Use the file ".omero/simple-omero-client.sessions" in the home directory of the user.
+     */
+    public SessionCache()
+    {
+        this(new File(new File(System.getProperty("user.home"), ".omero"), "simple-omero-client.sessions"));
+    }
+}
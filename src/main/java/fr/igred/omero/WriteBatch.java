@@ -0,0 +1,303 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import omero.api.IUpdatePrx;
+import omero.model.IObject;
+
+/**
+ * Unit of work queuing the writes made through a Client, and sending them in batches.
+ * While a batch is open on a thread with {@link Client#batch()}, the methods of the containers adding links
+ * or updating ROIs queue their objects instead of saving them. The queue is flushed when it reaches the batch size,
+ * when the oldest write is older than the maximum delay, and when the batch is closed.
+ * Once saved, the ids are set on the queued objects. If a batch fails, its objects are saved one by one
+ * and the objects which still fail are reported by {@link #getFailures()}.
+ */
+public class WriteBatch implements AutoCloseable {
+
+    /**
+     * Receives the object saved in OMERO.
+     */
+    public interface Callback {
+        /**
+         * Called when the object was saved.
+         *
+         * @param saved The object returned by OMERO
+         */
+        void saved(IObject saved);
+    }
+
+    /**
+     * Object which could not be saved.
+     */
+    public static class Failure {
+        ///Object queued
+        private final IObject   object;
+        ///Error raised when saving the object
+        private final Exception error;
+
+        /**
+         * @return the object queued
+         */
+        public IObject getObject()
+        {
+            return object;
+        }
+
+        /**
+         * @return the error raised when saving the object
+         */
+        public Exception getError()
+        {
+            return error;
+        }
+
+        private Failure(IObject   object,
+                        Exception error)
+        {
+            this.object = object;
+            this.error  = error;
+        }
+    }
+
+    /**
+     * Queued object with its callback.
+     */
+    private static class Item {
+        ///Object to save
+        private final IObject  object;
+        ///Callback, can be null
+        private final Callback callback;
+
+        private Item(IObject  object,
+                     Callback callback)
+        {
+            this.object   = object;
+            this.callback = callback;
+        }
+    }
+
+    ///Thread flushing the batches after their maximum delay
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "omero-write-batch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    ///Client used to save the objects
+    private final Client client;
+    ///Maximum number of objects per request
+    private final int    batchSize;
+    ///Maximum time an object stays in the queue, in milliseconds, 0 or less to wait for the other thresholds
+    private final long   maxDelay;
+
+    ///Objects which could not be saved
+    private final List<Failure> failures = new ArrayList<Failure>();
+
+    ///Queued objects
+    private List<Item>         queue = new ArrayList<Item>();
+    ///Scheduled flush, null if none
+    private ScheduledFuture<?> timer;
+    ///Number of objects saved
+    private long               saved = 0;
+
+    /**
+     * @return the number of objects waiting to be saved
+     */
+    public synchronized int size()
+    {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of objects saved
+     */
+    public synchronized long getSaved()
+    {
+        return saved;
+    }
+
+    /**
+     * @return the objects which could not be saved
+     */
+    public synchronized List<Failure> getFailures()
+    {
+        return Collections.unmodifiableList(new ArrayList<Failure>(failures));
+    }
+
+    /**
+     * @return true if some objects could not be saved
+     */
+    public synchronized boolean hasFailures()
+    {
+        return !failures.isEmpty();
+    }
+
+
+
+
+    /**
+     * Queue an object to save.
+     *
+     * @param object Object to save
+     */
+    public void add(IObject object)
+    {
+        add(object, null);
+    }
+
+    /**
+     * Queue an object to save.
+     *
+     * @param object   Object to save
+     * @param callback Called with the object returned by OMERO once saved, can be null
+     */
+    public synchronized void add(IObject  object,
+                                 Callback callback)
+    {
+        queue.add(new Item(object, callback));
+
+        if(queue.size() >= batchSize) {
+            flush();
+        }
+        else if(timer == null && maxDelay > 0) {
+            timer = SCHEDULER.schedule(new Runnable() {
+                public void run()
+                {
+                    flush();
+                }
+            }, maxDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Save all the queued objects.
+     */
+    public synchronized void flush()
+    {
+        if(timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+
+        if(queue.isEmpty())
+            return;
+
+        List<Item> items = queue;
+        queue = new ArrayList<Item>();
+
+        for(List<Item> batch : Batches.<Item>partition(items, batchSize)) {
+            List<IObject> objects = new ArrayList<IObject>(batch.size());
+            for(Item item : batch)
+                objects.add(item.object);
+
+            List<IObject> results;
+            try {
+                results = client.getUpdateService().saveAndReturnArray(objects);
+            }
+            catch(Exception e) {
+                saveEach(batch);
+                continue;
+            }
+
+            for(int i = 0; i < batch.size(); i++)
+                resolve(batch.get(i), results.get(i));
+        }
+
+        client.getCache().invalidateAll();
+    }
+
+    /**
+     * Flush the queued objects and close the batch on the current thread.
+     */
+    public void close()
+    {
+        flush();
+        client.endBatch(this);
+    }
+
+    /**
+     * Save objects one by one, after their batch failed, and record the failures.
+     *
+     * @param items Objects to save
+     */
+    private void saveEach(List<Item> items)
+    {
+        for(Item item : items) {
+            try {
+                IUpdatePrx update = client.getUpdateService();
+                resolve(item, update.saveAndReturnObject(item.object));
+            }
+            catch(Exception e) {
+                failures.add(new Failure(item.object, e));
+            }
+        }
+    }
+
+    /**
+     * Set the id of a saved object on the queued object and call its callback.
+     *
+     * @param item   Queued object
+     * @param result Object returned by OMERO
+     */
+    private void resolve(Item    item,
+                         IObject result)
+    {
+        item.object.setId(result.getId());
+        saved++;
+
+        if(item.callback != null)
+            item.callback.saved(result);
+    }
+
+
+
+
+    /**
+     * Constructor of the WriteBatch class.
+     *
+     * @param client    Client used to save the objects
+     * @param batchSize Maximum number of objects per request
+     * @param maxDelay  Maximum time an object stays in the queue, in milliseconds, 0 or less to disable
+     *
+     * @throws IllegalArgumentException The batch size is lower than 1
+     */
+    WriteBatch(Client client,
+               int    batchSize,
+               long   maxDelay)
+    {
+        if(batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be strictly positive: " + batchSize);
+
+        this.client    = client;
+        this.batchSize = batchSize;
+        this.maxDelay  = maxDelay;
+    }
+}
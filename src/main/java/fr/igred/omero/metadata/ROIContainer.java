@@ -17,14 +17,19 @@
 
 package fr.igred.omero.metadata;
 
+import java.util.Collections;
 import java.util.List;
 
+import fr.igred.omero.Batches;
 import fr.igred.omero.Client;
 import fr.igred.omero.ImageContainer;
+import fr.igred.omero.WriteBatch;
 import omero.ServerError;
 import omero.gateway.exception.DSOutOfServiceException;
 import omero.gateway.model.ROIData;
 import omero.gateway.model.ShapeData;
+import omero.model.IObject;
+import omero.model.Roi;
 
 /**
  * Class containing a ROIData
@@ -131,9 +136,48 @@ public class ROIContainer {
             ServerError,
             DSOutOfServiceException
     {
-        client.getGateway().getUpdateService(client.getCtx()).saveAndReturnObject(data.asIObject());
+        WriteBatch batch = client.getBatch();
+        if(batch != null) {
+            batch.add(data.asIObject(), new WriteBatch.Callback() {
+                public void saved(IObject saved)
+                {
+                    data = new ROIData((Roi) saved);
+                }
+            });
+        }
+        else {
+            client.getUpdateService().saveAndReturnObject(data.asIObject());
+        }
     }
 
+    /**
+     * Compute the intensity statistics of the shapes of the ROI in OMERO, without retrieving the pixels.
+     * The ROI must have been saved.
+     * 
+     * @param client   The user
+     * @param z        Z position of the shapes without Z position
+     * @param t        T position of the shapes without T position
+     * @param channels Channels to measure
+     * 
+     * @return The statistics, one row per shape and channel
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public ROIStatistics getStatistics(Client client,
+                                       int    z,
+                                       int    t,
+                                       int... channels)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        return ROIStatistics.compute(client, Collections.singletonList(this), z, t, channels,
+                                     Batches.DEFAULT_BATCH_SIZE);
+    }
+
+
+
     /**
      * Constructor of the ROIContainer class.
      */
@@ -0,0 +1,332 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.metadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import fr.igred.omero.Client;
+import omero.RLong;
+import omero.RType;
+import omero.ServerError;
+import omero.api.IQueryPrx;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.gateway.model.ROIData;
+import omero.gateway.model.ShapeData;
+import omero.model.IObject;
+import omero.model.Roi;
+import omero.sys.ParametersI;
+
+/**
+ * Iterate over the ROIs of an image page by page, in increasing id order.
+ * Only the shapes selected by a ShapeFilter are loaded, and the ROIs without selected shape are skipped.
+ * The next page is retrieved in the background while the current one is processed,
+ * so at most two pages are held in memory.
+ * <p>
+ * The ROIs only contain the selected shapes: they must not be updated in OMERO when a filter is used.
+ */
+public class ROIPager implements Iterator<ROIContainer> {
+
+    /**
+     * ROIs of a page, with the last id retrieved.
+     */
+    private static class Page {
+        ///ROIs with selected shapes
+        private final List<ROIContainer> rois;
+        ///Last ROI id retrieved, -1 if none
+        private final long               lastId;
+        ///True if this is the last page
+        private final boolean            last;
+
+        private Page(List<ROIContainer> rois,
+                     long               lastId,
+                     boolean            last)
+        {
+            this.rois   = rois;
+            this.lastId = lastId;
+            this.last   = last;
+        }
+    }
+
+    ///Default number of ROIs retrieved per page
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    ///Threads used to prefetch the pages
+    private static final ExecutorService PREFETCH = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "omero-roi-pager");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    ///The user
+    private final Client      client;
+    ///Id of the image
+    private final long        imageId;
+    ///Selection of the shapes
+    private final ShapeFilter filter;
+    ///Number of ROIs per page
+    private final int         pageSize;
+
+    ///Page currently being iterated
+    private Iterator<ROIContainer> current = Collections.<ROIContainer>emptyIterator();
+    ///Next page, being fetched
+    private Future<Page> next;
+    ///True if the last page was retrieved
+    private boolean exhausted = false;
+
+    /**
+     * Count the ROIs of an image with at least one shape selected by a filter.
+     * The bounding box of the filter is not taken into account.
+     *
+     * @param client  The user
+     * @param imageId Id of the image
+     * @param filter  Selection of the shapes
+     *
+     * @return the number of ROIs
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public static long count(Client      client,
+                             long        imageId,
+                             ShapeFilter filter)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        ParametersI param = new ParametersI();
+        param.addLong("image", imageId);
+        filter.addParameters(param);
+
+        List<List<RType>> result = client.getQueryService().projection("select count(distinct r.id) from Roi as r " +
+                                                                       "join r.shapes as s " +
+                                                                       "where r.image.id = :image" +
+                                                                       filter.getCondition(), param);
+
+        return ((RLong) result.get(0).get(0)).getValue();
+    }
+
+    /**
+     * Return the number of ROIs retrieved per page.
+     *
+     * @return page size
+     */
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * Return true if there are more ROIs.
+     * The call blocks until the next page is retrieved if the current one is consumed.
+     *
+     * @return true if there are more ROIs
+     *
+     * @throws IllegalStateException A page could not be retrieved from OMERO
+     */
+    public boolean hasNext()
+    {
+        while(!current.hasNext() && !exhausted) {
+            Page page = waitForPage();
+
+            if(page.last)
+                exhausted = true;
+            else
+                prefetch(page.lastId);
+
+            current = page.rois.iterator();
+        }
+        return current.hasNext();
+    }
+
+    /**
+     * Return the next ROI.
+     *
+     * @return ROIContainer containing the ROI and its selected shapes
+     *
+     * @throws NoSuchElementException No more ROIs
+     * @throws IllegalStateException  A page could not be retrieved from OMERO
+     */
+    public ROIContainer next()
+    {
+        if(!hasNext())
+            throw new NoSuchElementException("No more ROIs");
+
+        return current.next();
+    }
+
+    /**
+     * Return a sequential stream over the remaining ROIs.
+     *
+     * @return Stream of ROIContainer
+     */
+    public Stream<ROIContainer> stream()
+    {
+        Spliterator<ROIContainer> spliterator = Spliterators.spliteratorUnknownSize(this,
+                                                                                    Spliterator.ORDERED |
+                                                                                    Spliterator.DISTINCT |
+                                                                                    Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    /**
+     * Wait for the page being fetched.
+     *
+     * @return the page
+     */
+    private Page waitForPage()
+    {
+        try {
+            return next.get();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrieving ROIs", e);
+        }
+        catch(java.util.concurrent.ExecutionException e) {
+            throw new IllegalStateException("Could not retrieve ROIs", e.getCause());
+        }
+    }
+
+    /**
+     * Start fetching the page following a ROI id.
+     *
+     * @param from Id after which the page starts
+     */
+    private void prefetch(final long from)
+    {
+        next = PREFETCH.submit(new Callable<Page>() {
+            public Page call()
+                throws Exception
+            {
+                return fetch(from);
+            }
+        });
+    }
+
+    /**
+     * Retrieve the ROIs with an id greater than the one specified.
+     * The ids are paged first, then the ROIs are loaded with their selected shapes.
+     *
+     * @param from Id after which the page starts
+     *
+     * @return the page
+     *
+     * @throws Exception Cannot retrieve the ROIs
+     */
+    private Page fetch(long from)
+        throws
+            Exception
+    {
+        IQueryPrx qs = client.getQueryService();
+
+        ParametersI param = new ParametersI();
+        param.addLong("image", imageId);
+        param.addLong("lastId", from);
+        filter.addParameters(param);
+        param.page(0, pageSize);
+
+        List<List<RType>> result = qs.projection("select distinct r.id from Roi as r " +
+                                                 "join r.shapes as s " +
+                                                 "where r.image.id = :image and r.id > :lastId" +
+                                                 filter.getCondition() +
+                                                 " order by r.id", param);
+
+        if(result.isEmpty())
+            return new Page(new ArrayList<ROIContainer>(), -1L, true);
+
+        List<Long> ids = new ArrayList<Long>(result.size());
+        for(List<RType> row : result)
+            ids.add(((RLong) row.get(0)).getValue());
+
+        ParametersI idParam = new ParametersI();
+        idParam.addIds(ids);
+        filter.addParameters(idParam);
+
+        List<IObject> os = qs.findAllByQuery("select distinct r from Roi as r " +
+                                             "join fetch r.shapes as s " +
+                                             "where r.id in (:ids)" +
+                                             filter.getCondition(), idParam);
+
+        List<ROIContainer> rois = new ArrayList<ROIContainer>(os.size());
+        for(IObject o : os) {
+            ROIData roi = new ROIData((Roi) o);
+            for(ShapeData shape : new ArrayList<ShapeData>(roi.getShapes())) {
+                if(!filter.accept(shape))
+                    roi.removeShapeData(shape);
+            }
+
+            if(!roi.getShapes().isEmpty())
+                rois.add(new ROIContainer(roi));
+        }
+
+        Collections.sort(rois, new Comparator<ROIContainer>() {
+            public int compare(ROIContainer r1, ROIContainer r2)
+            {
+                return r1.getId().compareTo(r2.getId());
+            }
+        });
+
+        return new Page(rois, ids.get(ids.size() - 1), ids.size() < pageSize);
+    }
+
+    /**
+     * Constructor of the ROIPager class.
+     * The first page is requested immediately.
+     *
+     * @param client   The user
+     * @param imageId  Id of the image
+     * @param filter   Selection of the shapes
+     * @param pageSize Number of ROIs per page
+     *
+     * @throws IllegalArgumentException The page size is not strictly positive
+     */
+    public ROIPager(Client      client,
+                    long        imageId,
+                    ShapeFilter filter,
+                    int         pageSize)
+        throws
+            IllegalArgumentException
+    {
+        if(pageSize <= 0)
+            throw new IllegalArgumentException("Page size must be strictly positive");
+
+        this.client   = client;
+        this.imageId  = imageId;
+        this.filter   = filter;
+        this.pageSize = pageSize;
+
+        prefetch(-1L);
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.metadata;
+
+import java.awt.Shape;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fr.igred.omero.PixelContainer;
+import omero.gateway.model.LineData;
+import omero.gateway.model.MaskData;
+import omero.gateway.model.PointData;
+import omero.gateway.model.PolylineData;
+import omero.gateway.model.ShapeData;
+import omero.gateway.model.TextData;
+
+/**
+ * Converts the shapes of ROIs to label images or binary masks, plane by plane.
+ * The planes are rasterised in parallel, and only the planes containing shapes are created.
+ * A pixel belongs to a shape when its center is inside the shape; lines, polylines and points are drawn
+ * one pixel wide. A shape without Z, T or C position is drawn on all the planes along that dimension.
+ * Texts are ignored.
+ */
+public class ROIRasterizer {
+
+    /**
+     * Shape to draw, with its label.
+     */
+    private static class Item {
+        ///Shape to draw
+        private final ShapeData shape;
+        ///Label of the ROI containing the shape
+        private final int       label;
+
+        private Item(ShapeData shape,
+                     int       label)
+        {
+            this.shape = shape;
+            this.label = label;
+        }
+    }
+
+    /**
+     * Receives the pixels drawn on a plane.
+     */
+    private interface Sink {
+        /**
+         * Set a pixel of the plane.
+         *
+         * @param index Index of the pixel: y * sizeX + x
+         * @param label Label of the ROI containing the shape
+         */
+        void set(int index,
+                 int label);
+    }
+
+    ///Dimensions of the image
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final int sizeC;
+    private final int sizeT;
+
+    ///Number of planes rasterised in parallel
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Set the number of planes rasterised in parallel.
+     *
+     * @param threads Number of threads
+     *
+     * @throws IllegalArgumentException The number of threads is lower than 1
+     */
+    public void setThreads(int threads)
+    {
+        if(threads < 1)
+            throw new IllegalArgumentException("Number of threads must be strictly positive: " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     * Return the index of a plane, as used in the maps returned.
+     *
+     * @param z Z position
+     * @param c C position
+     * @param t T position
+     *
+     * @return the index: z + sizeZ * (c + sizeC * t)
+     */
+    public int getPlaneIndex(int z,
+                             int c,
+                             int t)
+    {
+        return z + sizeZ * (c + sizeC * t);
+    }
+
+
+
+
+    /**
+     * Create label images: the pixels of the shapes of the ROI at index i are set to i + 1, the others to 0.
+     * When shapes overlap, the last ROI wins.
+     *
+     * @param rois ROIs to draw
+     *
+     * @return the labels of each plane containing shapes, by plane index, with pixels stored as y * sizeX + x
+     *
+     * @throws InterruptedException The thread was interrupted
+     * @throws ExecutionException   A shape could not be drawn
+     */
+    public Map<Integer, int[]> toLabels(List<ROIContainer> rois)
+        throws
+            InterruptedException,
+            ExecutionException
+    {
+        Map<Integer, Future<int[]>> futures = new TreeMap<Integer, Future<int[]>>();
+        Map<Integer, int[]>         labels  = new TreeMap<Integer, int[]>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for(Map.Entry<Integer, List<Item>> entry : byPlane(rois).entrySet()) {
+                final List<Item> items = entry.getValue();
+                futures.put(entry.getKey(), executor.submit(new Callable<int[]>() {
+                    public int[] call()
+                    {
+                        final int[] plane = new int[sizeX * sizeY];
+                        draw(items, new Sink() {
+                            public void set(int index,
+                                            int label)
+                            {
+                                plane[index] = label;
+                            }
+                        });
+                        return plane;
+                    }
+                }));
+            }
+
+            for(Map.Entry<Integer, Future<int[]>> entry : futures.entrySet())
+                labels.put(entry.getKey(), entry.getValue().get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        return labels;
+    }
+
+    /**
+     * Create binary masks of the shapes of the ROIs.
+     *
+     * @param rois ROIs to draw
+     *
+     * @return the mask of each plane containing shapes, by plane index, with bits stored as y * sizeX + x
+     *
+     * @throws InterruptedException The thread was interrupted
+     * @throws ExecutionException   A shape could not be drawn
+     */
+    public Map<Integer, BitSet> toMasks(List<ROIContainer> rois)
+        throws
+            InterruptedException,
+            ExecutionException
+    {
+        Map<Integer, Future<BitSet>> futures = new TreeMap<Integer, Future<BitSet>>();
+        Map<Integer, BitSet>         masks   = new TreeMap<Integer, BitSet>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for(Map.Entry<Integer, List<Item>> entry : byPlane(rois).entrySet()) {
+                final List<Item> items = entry.getValue();
+                futures.put(entry.getKey(), executor.submit(new Callable<BitSet>() {
+                    public BitSet call()
+                    {
+                        final BitSet mask = new BitSet(sizeX * sizeY);
+                        draw(items, new Sink() {
+                            public void set(int index,
+                                            int label)
+                            {
+                                mask.set(index);
+                            }
+                        });
+                        return mask;
+                    }
+                }));
+            }
+
+            for(Map.Entry<Integer, Future<BitSet>> entry : futures.entrySet())
+                masks.put(entry.getKey(), entry.getValue().get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        return masks;
+    }
+
+    /**
+     * Group the shapes of the ROIs by plane.
+     *
+     * @param rois ROIs to draw
+     *
+     * @return the shapes to draw, by plane index
+     */
+    private Map<Integer, List<Item>> byPlane(List<ROIContainer> rois)
+    {
+        Map<Integer, List<Item>> planes = new TreeMap<Integer, List<Item>>();
+
+        for(int i = 0; i < rois.size(); i++) {
+            for(ShapeData shape : rois.get(i).getShapes()) {
+                if(shape instanceof TextData)
+                    continue;
+
+                int z = shape.getZ();
+                int c = shape.getC();
+                int t = shape.getT();
+
+                for(int tt = t < 0 ? 0 : t; tt < (t < 0 ? sizeT : Math.min(t + 1, sizeT)); tt++) {
+                    for(int cc = c < 0 ? 0 : c; cc < (c < 0 ? sizeC : Math.min(c + 1, sizeC)); cc++) {
+                        for(int zz = z < 0 ? 0 : z; zz < (z < 0 ? sizeZ : Math.min(z + 1, sizeZ)); zz++) {
+                            int        index = getPlaneIndex(zz, cc, tt);
+                            List<Item> items = planes.get(index);
+                            if(items == null) {
+                                items = new ArrayList<Item>();
+                                planes.put(index, items);
+                            }
+                            items.add(new Item(shape, i + 1));
+                        }
+                    }
+                }
+            }
+        }
+
+        return planes;
+    }
+
+    /**
+     * Draw shapes on a plane.
+     *
+     * @param items Shapes to draw
+     * @param plane Plane to draw on
+     */
+    private void draw(List<Item> items,
+                      Sink       plane)
+    {
+        for(Item item : items) {
+            ShapeData shape = item.shape;
+
+            if(shape instanceof MaskData)
+                drawMask((MaskData) shape, item.label, plane);
+            else if(shape instanceof PointData)
+                drawPixel(((PointData) shape).getX(), ((PointData) shape).getY(), item.label, plane);
+            else if(shape instanceof LineData)
+                drawLine((LineData) shape, item.label, plane);
+            else if(shape instanceof PolylineData)
+                drawPolyline(((PolylineData) shape).getPoints(), item.label, plane);
+            else
+                drawArea(ShapeGeometry.toShape(shape), item.label, plane);
+        }
+    }
+
+    /**
+     * Draw the pixels whose center is inside a shape.
+     *
+     * @param shape Shape to draw
+     * @param label Value of the pixels
+     * @param plane Plane to draw on
+     */
+    private void drawArea(Shape shape,
+                          int   label,
+                          Sink  plane)
+    {
+        Rectangle2D bounds = shape.getBounds2D();
+
+        int xMin = Math.max(0, (int) Math.floor(bounds.getMinX()));
+        int yMin = Math.max(0, (int) Math.floor(bounds.getMinY()));
+        int xMax = Math.min(sizeX - 1, (int) Math.ceil(bounds.getMaxX()));
+        int yMax = Math.min(sizeY - 1, (int) Math.ceil(bounds.getMaxY()));
+
+        boolean rectangle = shape instanceof Rectangle2D;
+
+        for(int y = yMin; y <= yMax; y++) {
+            int row = y * sizeX;
+            for(int x = xMin; x <= xMax; x++) {
+                if(rectangle ? bounds.contains(x + 0.5, y + 0.5) : shape.contains(x + 0.5, y + 0.5))
+                    plane.set(row + x, label);
+            }
+        }
+    }
+
+    /**
+     * Draw a mask.
+     *
+     * @param mask  Mask to draw
+     * @param label Value of the pixels
+     * @param plane Plane to draw on
+     */
+    private void drawMask(MaskData mask,
+                          int      label,
+                          Sink     plane)
+    {
+        int[][] bits = mask.getMaskAsBinaryArray();
+        int     x0   = (int) Math.floor(mask.getX());
+        int     y0   = (int) Math.floor(mask.getY());
+
+        for(int i = 0; i < bits.length; i++) {
+            for(int j = 0; j < bits[i].length; j++) {
+                int x = x0 + i;
+                int y = y0 + j;
+                if(bits[i][j] != 0 && x >= 0 && x < sizeX && y >= 0 && y < sizeY)
+                    plane.set(y * sizeX + x, label);
+            }
+        }
+    }
+
+    /**
+     * Draw a line.
+     *
+     * @param line  Line to draw
+     * @param label Value of the pixels
+     * @param plane Plane to draw on
+     */
+    private void drawLine(LineData line,
+                          int      label,
+                          Sink     plane)
+    {
+        drawSegment(line.getX1(), line.getY1(), line.getX2(), line.getY2(), label, plane);
+    }
+
+    /**
+     * Draw a polyline.
+     *
+     * @param points Points of the polyline
+     * @param label  Value of the pixels
+     * @param plane  Plane to draw on
+     */
+    private void drawPolyline(List<Point2D.Double> points,
+                              int                  label,
+                              Sink                 plane)
+    {
+        for(int i = 1; i < points.size(); i++) {
+            Point2D.Double p1 = points.get(i - 1);
+            Point2D.Double p2 = points.get(i);
+            drawSegment(p1.x, p1.y, p2.x, p2.y, label, plane);
+        }
+        if(points.size() == 1)
+            drawPixel(points.get(0).x, points.get(0).y, label, plane);
+    }
+
+    /**
+     * Draw a segment, one pixel wide.
+     *
+     * @param x1    X coordinate of the start
+     * @param y1    Y coordinate of the start
+     * @param x2    X coordinate of the end
+     * @param y2    Y coordinate of the end
+     * @param label Value of the pixels
+     * @param plane Plane to draw on
+     */
+    private void drawSegment(double x1,
+                             double y1,
+                             double x2,
+                             double y2,
+                             int    label,
+                             Sink   plane)
+    {
+        int steps = (int) Math.ceil(Math.max(Math.abs(x2 - x1), Math.abs(y2 - y1)));
+
+        for(int i = 0; i <= steps; i++) {
+            double f = steps == 0 ? 0 : (double) i / steps;
+            drawPixel(x1 + f * (x2 - x1), y1 + f * (y2 - y1), label, plane);
+        }
+    }
+
+    /**
+     * Draw the pixel containing a point.
+     *
+     * @param x     X coordinate
+     * @param y     Y coordinate
+     * @param label Value of the pixel
+     * @param plane Plane to draw on
+     */
+    private void drawPixel(double x,
+                           double y,
+                           int    label,
+                           Sink   plane)
+    {
+        int px = (int) Math.floor(x);
+        int py = (int) Math.floor(y);
+
+        if(px >= 0 && px < sizeX && py >= 0 && py < sizeY)
+            plane.set(py * sizeX + px, label);
+    }
+
+
+
+
+    /**
+     * Constructor of the ROIRasterizer class.
+     *
+     * @param sizeX Size of the image on the X axis
+     * @param sizeY Size of the image on the Y axis
+     * @param sizeZ Size of the image on the Z axis
+     * @param sizeC Size of the image on the C axis
+     * @param sizeT Size of the image on the T axis
+     *
+     * @throws IllegalArgumentException A size is lower than 1
+     */
+    public ROIRasterizer(int sizeX,
+                         int sizeY,
+                         int sizeZ,
+                         int sizeC,
+                         int sizeT)
+    {
+        if(sizeX < 1 || sizeY < 1 || sizeZ < 1 || sizeC < 1 || sizeT < 1)
+            throw new IllegalArgumentException("Image sizes must be strictly positive");
+
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.sizeC = sizeC;
+        this.sizeT = sizeT;
+    }
+
+    /**
+     * Constructor of the ROIRasterizer class.
+     *
+     * @param pixels Pixels of the image
+     */
+    public ROIRasterizer(PixelContainer pixels)
+    {
+        this(pixels.getSizeX(), pixels.getSizeY(), pixels.getSizeZ(), pixels.getSizeC(), pixels.getSizeT());
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.metadata;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.igred.omero.Batches;
+import fr.igred.omero.Client;
+import omero.RLong;
+import omero.RType;
+import omero.ServerError;
+import omero.api.IRoiPrx;
+import omero.api.ShapeStats;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.gateway.model.ShapeData;
+import omero.sys.ParametersI;
+
+/**
+ * Intensity statistics of ROIs, computed by OMERO: only the statistics are retrieved, not the pixels.
+ * The statistics are stored by column, with one row per shape and channel, or per ROI and channel
+ * once merged with {@link #perROI()}.
+ */
+public class ROIStatistics {
+
+    ///Number of rows
+    private int size = 0;
+
+    ///Columns
+    private long[]   roiIds      = new long[16];
+    private long[]   shapeIds    = new long[16];
+    private int[]    channels    = new int[16];
+    private long[]   pointsCount = new long[16];
+    private double[] min         = new double[16];
+    private double[] max         = new double[16];
+    private double[] sum         = new double[16];
+    private double[] mean        = new double[16];
+    private double[] stdDev      = new double[16];
+
+    /**
+     * Compute the statistics of the shapes of ROIs.
+     * The ROIs must have been saved in OMERO.
+     *
+     * @param client    The user
+     * @param rois      ROIs to measure
+     * @param z         Z position of the shapes without Z position
+     * @param t         T position of the shapes without T position
+     * @param channels  Channels to measure
+     * @param batchSize Maximum number of shapes per request
+     *
+     * @return the statistics, one row per shape and channel
+     *
+     * @throws DSOutOfServiceException  Cannot connect to OMERO
+     * @throws ServerError              Server error
+     * @throws IllegalArgumentException No channel was specified
+     */
+    public static ROIStatistics compute(Client             client,
+                                        List<ROIContainer> rois,
+                                        int                z,
+                                        int                t,
+                                        int[]              channels,
+                                        int                batchSize)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        Map<Long, Long> shapeROIs = new LinkedHashMap<Long, Long>();
+        for(ROIContainer roi : rois) {
+            for(ShapeData shape : roi.getShapes())
+                shapeROIs.put(shape.getId(), roi.getId());
+        }
+
+        return compute(client, shapeROIs, z, t, channels, batchSize);
+    }
+
+    /**
+     * Compute the statistics of the shapes of all the ROIs linked to an image.
+     * Only the ids of the shapes and of their ROIs are retrieved, not the ROIs.
+     *
+     * @param client    The user
+     * @param imageId   Id of the image
+     * @param z         Z position of the shapes without Z position
+     * @param t         T position of the shapes without T position
+     * @param channels  Channels to measure
+     * @param batchSize Maximum number of shapes per request
+     *
+     * @return the statistics, one row per shape and channel
+     *
+     * @throws DSOutOfServiceException  Cannot connect to OMERO
+     * @throws ServerError              Server error
+     * @throws IllegalArgumentException No channel was specified
+     */
+    public static ROIStatistics compute(Client client,
+                                        long   imageId,
+                                        int    z,
+                                        int    t,
+                                        int[]  channels,
+                                        int    batchSize)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        ParametersI param = new ParametersI();
+        param.addId(imageId);
+
+        List<List<RType>> rows = client.getQueryService().projection("select s.id, s.roi.id from Shape as s " +
+                                                                     "where s.roi.image.id = :id " +
+                                                                     "order by s.roi.id, s.id", param);
+
+        Map<Long, Long> shapeROIs = new LinkedHashMap<Long, Long>(rows.size());
+        for(List<RType> row : rows)
+            shapeROIs.put(((RLong) row.get(0)).getValue(), ((RLong) row.get(1)).getValue());
+
+        return compute(client, shapeROIs, z, t, channels, batchSize);
+    }
+
+    /**
+     * Compute the statistics of shapes.
+     *
+     * @param client    The user
+     * @param shapeROIs Id of the ROI of each shape, by shape id
+     * @param z         Z position of the shapes without Z position
+     * @param t         T position of the shapes without T position
+     * @param channels  Channels to measure
+     * @param batchSize Maximum number of shapes per request
+     *
+     * @return the statistics, one row per shape and channel
+     *
+     * @throws DSOutOfServiceException  Cannot connect to OMERO
+     * @throws ServerError              Server error
+     * @throws IllegalArgumentException No channel was specified
+     */
+    private static ROIStatistics compute(Client          client,
+                                         Map<Long, Long> shapeROIs,
+                                         int             z,
+                                         int             t,
+                                         int[]           channels,
+                                         int             batchSize)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        if(channels == null || channels.length == 0)
+            throw new IllegalArgumentException("At least one channel must be specified");
+
+        ROIStatistics statistics = new ROIStatistics();
+        IRoiPrx       rs         = client.getRoiService();
+
+        for(List<Long> batch : Batches.<Long>partition(shapeROIs.keySet(), batchSize)) {
+            ShapeStats[] results = rs.getShapeStatsRestricted(batch, z, t, channels);
+
+            for(ShapeStats stats : results) {
+                if(stats == null)
+                    continue;
+
+                long roiId = shapeROIs.get(stats.shapeId);
+                for(int i = 0; i < stats.channelIds.length; i++) {
+                    statistics.add(roiId, stats.shapeId, (int) stats.channelIds[i], stats.pointsCount[i],
+                                   stats.min[i], stats.max[i], stats.sum[i], stats.mean[i], stats.stdDev[i]);
+                }
+            }
+        }
+
+        return statistics;
+    }
+
+    /**
+     * Merge the statistics of the shapes of each ROI, channel by channel.
+     * The shape id of the rows is set to -1. Pixels shared by several shapes are counted several times,
+     * and the standard deviations are merged as population standard deviations.
+     *
+     * @return the statistics, one row per ROI and channel
+     */
+    public ROIStatistics perROI()
+    {
+        Map<String, Integer> rows   = new LinkedHashMap<String, Integer>();
+        Map<String, Double>  square = new HashMap<String, Double>();
+
+        ROIStatistics merged = new ROIStatistics();
+        for(int i = 0; i < size; i++) {
+            String  key = roiIds[i] + ":" + channels[i];
+            Integer row = rows.get(key);
+
+            double squares = (stdDev[i] * stdDev[i] + mean[i] * mean[i]) * pointsCount[i];
+
+            if(row == null) {
+                rows.put(key, merged.size);
+                square.put(key, squares);
+                merged.add(roiIds[i], -1L, channels[i], pointsCount[i], min[i], max[i], sum[i], mean[i], stdDev[i]);
+            }
+            else {
+                merged.pointsCount[row] += pointsCount[i];
+                merged.min[row] = Math.min(merged.min[row], min[i]);
+                merged.max[row] = Math.max(merged.max[row], max[i]);
+                merged.sum[row] += sum[i];
+                square.put(key, square.get(key) + squares);
+            }
+        }
+
+        for(Map.Entry<String, Integer> entry : rows.entrySet()) {
+            int  row = entry.getValue();
+            long n   = merged.pointsCount[row];
+            if(n > 0) {
+                merged.mean[row] = merged.sum[row] / n;
+                double variance = square.get(entry.getKey()) / n - merged.mean[row] * merged.mean[row];
+                merged.stdDev[row] = Math.sqrt(Math.max(0, variance));
+            }
+        }
+
+        return merged;
+    }
+
+    /**
+     * Convert the statistics to a table, with the columns ROI, Shape, Channel, Points, Min, Max, Sum, Mean
+     * and StdDev.
+     *
+     * @param name Name of the table
+     *
+     * @return the table
+     */
+    public TableContainer toTable(String name)
+    {
+        TableContainer table = new TableContainer(9, name);
+        table.setColumn(0, "ROI", Long.class);
+        table.setColumn(1, "Shape", Long.class);
+        table.setColumn(2, "Channel", Long.class);
+        table.setColumn(3, "Points", Long.class);
+        table.setColumn(4, "Min", Double.class);
+        table.setColumn(5, "Max", Double.class);
+        table.setColumn(6, "Sum", Double.class);
+        table.setColumn(7, "Mean", Double.class);
+        table.setColumn(8, "StdDev", Double.class);
+        table.setRowCount(size);
+
+        for(int i = 0; i < size; i++) {
+            table.addRow(roiIds[i], shapeIds[i], (long) channels[i], pointsCount[i],
+                         min[i], max[i], sum[i], mean[i], stdDev[i]);
+        }
+
+        return table;
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param row Row index
+     *
+     * @return the ROI id
+     */
+    public long getROIId(int row)
+    {
+        return roiIds[check(row)];
+    }
+
+    /**
+     * @param row Row index
+     *
+     * @return the shape id, -1 for statistics merged by ROI
+     */
+    public long getShapeId(int row)
+    {
+        return shapeIds[check(row)];
+    }
+
+    /**
+     * @param row Row index
+     *
+     * @return the channel
+     */
+    public int getChannel(int row)
+    {
+        return channels[check(row)];
+    }
+
+    /**
+     * @param row Row index
+     *
+     * @return the number of pixels measured
+     */
+    public long getPointsCount(int row)
+    {
+        return pointsCount[check(row)];
+    }
+
+    /**
+     * @param row Row index
+     *
+     * @return the minimum intensity
+     */
+    public double getMin(int row)
+    {
+        return min[check(row)];
+    }
+
+    /**
+     * @param row Row index
+     *
+     * @return the maximum intensity
+     */
+    public double getMax(int row)
+    {
+        return max[check(row)];
+    }
+
+    /**
+     * @param row Row index
+     *
+     * @return the sum of the intensities
+     */
+    public double getSum(int row)
+    {
+        return sum[check(row)];
+    }
+
+    /**
+     * @param row Row index
+     *
+     * @return the mean intensity
+     */
+    public double getMean(int row)
+    {
+        return mean[check(row)];
+    }
+
+    /**
+     * @param row Row index
+     *
+     * @return the standard deviation of the intensities
+     */
+    public double getStdDev(int row)
+    {
+        return stdDev[check(row)];
+    }
+
+    /**
+     * Check a row index.
+     *
+     * @param row Row index
+     *
+     * @return the row index
+     *
+     * @throws IndexOutOfBoundsException The row does not exist
+     */
+    private int check(int row)
+    {
+        if(row < 0 || row >= size)
+            throw new IndexOutOfBoundsException("Row " + row + " doesn't exist");
+        return row;
+    }
+
+    /**
+     * Add a row.
+     *
+     * @param roiId   ROI id
+     * @param shapeId Shape id
+     * @param channel Channel
+     * @param points  Number of pixels measured
+     * @param min     Minimum intensity
+     * @param max     Maximum intensity
+     * @param sum     Sum of the intensities
+     * @param mean    Mean intensity
+     * @param stdDev  Standard deviation of the intensities
+     */
+    private void add(long   roiId,
+                     long   shapeId,
+                     int    channel,
+                     long   points,
+                     double min,
+                     double max,
+                     double sum,
+                     double mean,
+                     double stdDev)
+    {
+        if(size == roiIds.length) {
+            int capacity = size * 2;
+            roiIds      = Arrays.copyOf(roiIds, capacity);
+            shapeIds    = Arrays.copyOf(shapeIds, capacity);
+            channels    = Arrays.copyOf(channels, capacity);
+            pointsCount = Arrays.copyOf(pointsCount, capacity);
+            this.min    = Arrays.copyOf(this.min, capacity);
+            this.max    = Arrays.copyOf(this.max, capacity);
+            this.sum    = Arrays.copyOf(this.sum, capacity);
+            this.mean   = Arrays.copyOf(this.mean, capacity);
+            this.stdDev = Arrays.copyOf(this.stdDev, capacity);
+        }
+
+        roiIds[size]      = roiId;
+        shapeIds[size]    = shapeId;
+        channels[size]    = channel;
+        pointsCount[size] = points;
+        this.min[size]    = min;
+        this.max[size]    = max;
+        this.sum[size]    = sum;
+        this.mean[size]   = mean;
+        this.stdDev[size] = stdDev;
+        size++;
+    }
+
+
+
+
+    /**
+     * Constructor of the ROIStatistics class, empty.
+     */
+    private ROIStatistics()
+    {
+    }
+}
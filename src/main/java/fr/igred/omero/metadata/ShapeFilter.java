@@ -0,0 +1,193 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.metadata;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import omero.gateway.model.EllipseData;
+import omero.gateway.model.LineData;
+import omero.gateway.model.MaskData;
+import omero.gateway.model.PointData;
+import omero.gateway.model.PolygonData;
+import omero.gateway.model.PolylineData;
+import omero.gateway.model.RectangleData;
+import omero.gateway.model.ShapeData;
+import omero.gateway.model.TextData;
+import omero.sys.ParametersI;
+
+/**
+ * Selection of the shapes loaded with the ROIs: type of shape, plane and bounding box.
+ * The type and the plane are checked by OMERO, the bounding box is checked once the shapes are retrieved.
+ * A shape without Z, T or C position is on all the planes along that dimension.
+ */
+public class ShapeFilter {
+
+    ///Model type of each kind of shape
+    private static final Map<Class<? extends ShapeData>, String> TYPES = new HashMap<Class<? extends ShapeData>, String>();
+
+    static {
+        TYPES.put(RectangleData.class, "Rectangle");
+        TYPES.put(EllipseData.class, "Ellipse");
+        TYPES.put(PointData.class, "Point");
+        TYPES.put(LineData.class, "Line");
+        TYPES.put(PolylineData.class, "Polyline");
+        TYPES.put(PolygonData.class, "Polygon");
+        TYPES.put(MaskData.class, "Mask");
+        TYPES.put(TextData.class, "Label");
+    }
+
+    ///Model types of the shapes selected, all if empty
+    private final List<String> types = new ArrayList<String>();
+
+    ///Plane selected, negative for any
+    private int z = -1;
+    private int t = -1;
+    private int c = -1;
+
+    ///Bounding box the shapes must intersect, null for any
+    private Rectangle2D bounds;
+
+    /**
+     * Only select some types of shapes.
+     *
+     * @param types Types of shapes, for example RectangleData.class
+     *
+     * @throws IllegalArgumentException A type is not supported
+     */
+    @SafeVarargs
+    public final void setTypes(Class<? extends ShapeData>... types)
+    {
+        this.types.clear();
+        for(Class<? extends ShapeData> type : types) {
+            String name = TYPES.get(type);
+            if(name == null)
+                throw new IllegalArgumentException("Unsupported shape: " + type.getSimpleName());
+            this.types.add(name);
+        }
+    }
+
+    /**
+     * Only select the shapes on a plane.
+     *
+     * @param z Z position, negative for any
+     * @param t T position, negative for any
+     * @param c C position, negative for any
+     */
+    public void setPlane(int z,
+                         int t,
+                         int c)
+    {
+        this.z = z;
+        this.t = t;
+        this.c = c;
+    }
+
+    /**
+     * Only select the shapes whose bounding box intersects a rectangle.
+     *
+     * @param x      X coordinate of the rectangle
+     * @param y      Y coordinate of the rectangle
+     * @param width  Width of the rectangle
+     * @param height Height of the rectangle
+     */
+    public void setBounds(double x,
+                          double y,
+                          double width,
+                          double height)
+    {
+        this.bounds = new Rectangle2D.Double(x, y, width, height);
+    }
+
+    /**
+     * Remove the bounding box selection.
+     */
+    public void clearBounds()
+    {
+        this.bounds = null;
+    }
+
+    /**
+     * Check if a shape is selected.
+     *
+     * @param shape The shape
+     *
+     * @return true if the shape is selected
+     */
+    public boolean accept(ShapeData shape)
+    {
+        if(!types.isEmpty() && !types.contains(TYPES.get(shape.getClass())))
+            return false;
+
+        if(!ShapeGeometry.isOnPlane(shape, z, t, c))
+            return false;
+
+        if(bounds == null)
+            return true;
+
+        Rectangle2D box = ShapeGeometry.getBounds(shape);
+        return box.getMaxX() >= bounds.getMinX() && box.getMinX() <= bounds.getMaxX() &&
+               box.getMaxY() >= bounds.getMinY() && box.getMinY() <= bounds.getMaxY();
+    }
+
+
+
+
+    /**
+     * Build the HQL condition checked by OMERO, on the shape alias "s".
+     *
+     * @return the condition, starting with " and ", or an empty string
+     */
+    String getCondition()
+    {
+        StringBuilder condition = new StringBuilder();
+
+        if(!types.isEmpty()) {
+            condition.append(" and s.class in (");
+            for(int i = 0; i < types.size(); i++)
+                condition.append(i == 0 ? "" : ", ").append(types.get(i));
+            condition.append(")");
+        }
+        if(z >= 0)
+            condition.append(" and (s.theZ is null or s.theZ = :z)");
+        if(t >= 0)
+            condition.append(" and (s.theT is null or s.theT = :t)");
+        if(c >= 0)
+            condition.append(" and (s.theC is null or s.theC = :c)");
+
+        return condition.toString();
+    }
+
+    /**
+     * Add the parameters used by the condition.
+     *
+     * @param parameters Query parameters
+     */
+    void addParameters(ParametersI parameters)
+    {
+        if(z >= 0)
+            parameters.add("z", omero.rtypes.rint(z));
+        if(t >= 0)
+            parameters.add("t", omero.rtypes.rint(t));
+        if(c >= 0)
+            parameters.add("c", omero.rtypes.rint(c));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.metadata;
+
+import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.List;
+
+import omero.gateway.model.EllipseData;
+import omero.gateway.model.LineData;
+import omero.gateway.model.MaskData;
+import omero.gateway.model.PointData;
+import omero.gateway.model.PolygonData;
+import omero.gateway.model.PolylineData;
+import omero.gateway.model.RectangleData;
+import omero.gateway.model.ShapeData;
+import omero.gateway.model.TextData;
+
+/**
+ * Geometry of the shapes, in pixel coordinates.
+ * The affine transforms of the shapes are not taken into account.
+ */
+public class ShapeGeometry {
+
+    /**
+     * Convert a shape to a java.awt shape.
+     * Points and texts are converted to empty rectangles at their position.
+     *
+     * @param shape The shape
+     *
+     * @return the java.awt shape
+     *
+     * @throws IllegalArgumentException The type of shape is not supported
+     */
+    public static Shape toShape(ShapeData shape)
+    {
+        if(shape instanceof RectangleData) {
+            RectangleData r = (RectangleData) shape;
+            return new Rectangle2D.Double(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+        }
+        else if(shape instanceof MaskData) {
+            MaskData m = (MaskData) shape;
+            return new Rectangle2D.Double(m.getX(), m.getY(), m.getWidth(), m.getHeight());
+        }
+        else if(shape instanceof EllipseData) {
+            EllipseData e = (EllipseData) shape;
+            return new Ellipse2D.Double(e.getX() - e.getRadiusX(), e.getY() - e.getRadiusY(),
+                                        2 * e.getRadiusX(), 2 * e.getRadiusY());
+        }
+        else if(shape instanceof PolygonData) {
+            return toPath(((PolygonData) shape).getPoints(), true);
+        }
+        else if(shape instanceof PolylineData) {
+            return toPath(((PolylineData) shape).getPoints(), false);
+        }
+        else if(shape instanceof LineData) {
+            LineData l = (LineData) shape;
+            return new Line2D.Double(l.getX1(), l.getY1(), l.getX2(), l.getY2());
+        }
+        else if(shape instanceof PointData) {
+            PointData p = (PointData) shape;
+            return new Rectangle2D.Double(p.getX(), p.getY(), 0, 0);
+        }
+        else if(shape instanceof TextData) {
+            TextData t = (TextData) shape;
+            return new Rectangle2D.Double(t.getX(), t.getY(), 0, 0);
+        }
+
+        throw new IllegalArgumentException("Unsupported shape: " + shape.getClass().getSimpleName());
+    }
+
+    /**
+     * Return the bounding box of a shape.
+     *
+     * @param shape The shape
+     *
+     * @return the bounding box
+     *
+     * @throws IllegalArgumentException The type of shape is not supported
+     */
+    public static Rectangle2D getBounds(ShapeData shape)
+    {
+        return toShape(shape).getBounds2D();
+    }
+
+    /**
+     * Check if a shape is on a plane.
+     * A shape without Z, T or C position is on all the planes along that dimension.
+     *
+     * @param shape The shape
+     * @param z     Z position, negative for any
+     * @param t     T position, negative for any
+     * @param c     C position, negative for any
+     *
+     * @return true if the shape is on the plane
+     */
+    public static boolean isOnPlane(ShapeData shape,
+                                    int       z,
+                                    int       t,
+                                    int       c)
+    {
+        return matches(shape.getZ(), z) && matches(shape.getT(), t) && matches(shape.getC(), c);
+    }
+
+    /**
+     * Check a position of a shape.
+     *
+     * @param position Position of the shape, negative if undefined
+     * @param expected Expected position, negative for any
+     *
+     * @return true if the position matches
+     */
+    private static boolean matches(int position,
+                                   int expected)
+    {
+        return expected < 0 || position < 0 || position == expected;
+    }
+
+    /**
+     * Build a path from points.
+     *
+     * @param points Points of the path
+     * @param closed Close the path
+     *
+     * @return the path
+     */
+    private static Path2D toPath(List<Point2D.Double> points,
+                                 boolean              closed)
+    {
+        Path2D path = new Path2D.Double(Path2D.WIND_EVEN_ODD, points.size());
+
+        boolean first = true;
+        for(Point2D.Double point : points) {
+            if(first)
+                path.moveTo(point.x, point.y);
+            else
+                path.lineTo(point.x, point.y);
+            first = false;
+        }
+
+        if(closed && !points.isEmpty())
+            path.closePath();
+
+        return path;
+    }
+
+
+
+
+    /**
+     * Private constructor: the class only has static methods.
+     */
+    private ShapeGeometry()
+    {
+    }
+}
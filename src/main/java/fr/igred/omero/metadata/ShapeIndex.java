@@ -0,0 +1,545 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.metadata;
+
+import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import omero.gateway.model.LineData;
+import omero.gateway.model.PointData;
+import omero.gateway.model.PolylineData;
+import omero.gateway.model.ShapeData;
+import omero.gateway.model.TextData;
+
+/**
+ * Spatial index of the shapes of ROIs, answering point, rectangle and nearest neighbour queries on a plane.
+ * The shapes are partitioned by Z and T, then stored in a uniform grid by bounding box.
+ * A shape without Z or T position is found on all the planes along that dimension.
+ * <p>
+ * The index is not updated when ROIs change: {@link #update(ROIContainer)} must be called after a ROI is modified.
+ * Saved ROIs are identified by their id, unsaved ones by their container.
+ */
+public class ShapeIndex {
+
+    /**
+     * Shape stored in the index.
+     */
+    private static class Entry {
+        ///ROI containing the shape
+        private final ROIContainer roi;
+        ///Geometry of the shape
+        private final Shape        geometry;
+        ///Bounding box of the shape
+        private final Rectangle2D  bounds;
+        ///True if the shape has an area
+        private final boolean      area;
+
+        private Entry(ROIContainer roi,
+                      ShapeData    shape)
+        {
+            this.roi      = roi;
+            this.geometry = ShapeGeometry.toShape(shape);
+            this.bounds   = geometry.getBounds2D();
+            this.area     = !(shape instanceof LineData || shape instanceof PolylineData ||
+                              shape instanceof PointData || shape instanceof TextData);
+        }
+
+        /**
+         * @param x X coordinate
+         * @param y Y coordinate
+         *
+         * @return the distance between a point and the bounding box of the shape
+         */
+        private double distance(double x,
+                                double y)
+        {
+            double dx = Math.max(0, Math.max(bounds.getMinX() - x, x - bounds.getMaxX()));
+            double dy = Math.max(0, Math.max(bounds.getMinY() - y, y - bounds.getMaxY()));
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+    }
+
+    /**
+     * Uniform grid of the shapes of a plane.
+     */
+    private class Grid {
+        ///Shapes in each cell
+        private final Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+
+        ///Extent of the occupied cells
+        private int minX = Integer.MAX_VALUE;
+        private int minY = Integer.MAX_VALUE;
+        private int maxX = Integer.MIN_VALUE;
+        private int maxY = Integer.MIN_VALUE;
+
+        private void add(Entry entry)
+        {
+            int x0 = cell(entry.bounds.getMinX());
+            int y0 = cell(entry.bounds.getMinY());
+            int x1 = cell(entry.bounds.getMaxX());
+            int y1 = cell(entry.bounds.getMaxY());
+
+            for(int x = x0; x <= x1; x++) {
+                for(int y = y0; y <= y1; y++) {
+                    List<Entry> entries = cells.get(key(x, y));
+                    if(entries == null) {
+                        entries = new ArrayList<Entry>();
+                        cells.put(key(x, y), entries);
+                    }
+                    entries.add(entry);
+                }
+            }
+
+            minX = Math.min(minX, x0);
+            minY = Math.min(minY, y0);
+            maxX = Math.max(maxX, x1);
+            maxY = Math.max(maxY, y1);
+        }
+
+        private void remove(Entry entry)
+        {
+            int x0 = cell(entry.bounds.getMinX());
+            int y0 = cell(entry.bounds.getMinY());
+            int x1 = cell(entry.bounds.getMaxX());
+            int y1 = cell(entry.bounds.getMaxY());
+
+            for(int x = x0; x <= x1; x++) {
+                for(int y = y0; y <= y1; y++) {
+                    List<Entry> entries = cells.get(key(x, y));
+                    if(entries != null) {
+                        entries.remove(entry);
+                        if(entries.isEmpty())
+                            cells.remove(key(x, y));
+                    }
+                }
+            }
+        }
+
+        private List<Entry> get(int x,
+                                int y)
+        {
+            List<Entry> entries = cells.get(key(x, y));
+            return entries == null ? Collections.<Entry>emptyList() : entries;
+        }
+    }
+
+    ///Default size of the grid cells, in pixels
+    public static final double DEFAULT_CELL_SIZE = 64;
+
+    ///Size of the grid cells
+    private final double cellSize;
+
+    ///Grid of each plane, by Z and T, -1 for shapes without position
+    private final Map<Long, Grid> grids = new HashMap<Long, Grid>();
+
+    ///Shapes of each ROI, by id for saved ROIs or by container otherwise
+    private final Map<Object, List<Entry>> rois = new HashMap<Object, List<Entry>>();
+
+    ///Planes of the shapes
+    private final Map<Entry, Long> planes = new IdentityHashMap<Entry, Long>();
+
+    /**
+     * Add the shapes of a ROI to the index.
+     * If the ROI is already indexed, its previous shapes are replaced.
+     * Texts are indexed at their position.
+     *
+     * @param roi The ROI
+     */
+    public synchronized void add(ROIContainer roi)
+    {
+        remove(roi);
+
+        List<Entry> entries = new ArrayList<Entry>();
+        for(ShapeData shape : roi.getShapes()) {
+            Entry entry = new Entry(roi, shape);
+            long  plane = plane(shape.getZ(), shape.getT());
+
+            Grid grid = grids.get(plane);
+            if(grid == null) {
+                grid = new Grid();
+                grids.put(plane, grid);
+            }
+            grid.add(entry);
+
+            planes.put(entry, plane);
+            entries.add(entry);
+        }
+        rois.put(roiKey(roi), entries);
+    }
+
+    /**
+     * Add the shapes of ROIs to the index.
+     *
+     * @param rois The ROIs
+     */
+    public synchronized void addAll(Collection<ROIContainer> rois)
+    {
+        for(ROIContainer roi : rois)
+            add(roi);
+    }
+
+    /**
+     * Replace the shapes of a ROI after it was modified.
+     *
+     * @param roi The ROI
+     */
+    public void update(ROIContainer roi)
+    {
+        add(roi);
+    }
+
+    /**
+     * Remove the shapes of a ROI from the index.
+     *
+     * @param roi The ROI
+     *
+     * @return true if the ROI was indexed
+     */
+    public synchronized boolean remove(ROIContainer roi)
+    {
+        List<Entry> entries = rois.remove(roiKey(roi));
+        if(entries == null)
+            entries = rois.remove(roi); // The ROI was indexed before being saved
+        if(entries == null)
+            return false;
+
+        for(Entry entry : entries) {
+            Long plane = planes.remove(entry);
+            Grid grid  = grids.get(plane);
+            grid.remove(entry);
+            if(grid.cells.isEmpty())
+                grids.remove(plane);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of ROIs indexed
+     */
+    public synchronized int size()
+    {
+        return rois.size();
+    }
+
+    /**
+     * Find the ROIs with a shape containing a point.
+     * Lines, polylines and points contain the points of their bounding box.
+     *
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param z Z position
+     * @param t T position
+     *
+     * @return the ROIs, in no particular order
+     */
+    public synchronized List<ROIContainer> findContaining(double x,
+                                                          double y,
+                                                          int    z,
+                                                          int    t)
+    {
+        Set<ROIContainer> found = new LinkedHashSet<ROIContainer>();
+
+        for(Grid grid : getGrids(z, t)) {
+            for(Entry entry : grid.get(cell(x), cell(y))) {
+                Rectangle2D b = entry.bounds;
+                if(x < b.getMinX() || x > b.getMaxX() || y < b.getMinY() || y > b.getMaxY())
+                    continue;
+
+                if(!entry.area || entry.geometry.contains(x, y))
+                    found.add(entry.roi);
+            }
+        }
+
+        return new ArrayList<ROIContainer>(found);
+    }
+
+    /**
+     * Find the ROIs with a shape whose bounding box intersects a rectangle.
+     *
+     * @param x      X coordinate of the rectangle
+     * @param y      Y coordinate of the rectangle
+     * @param width  Width of the rectangle
+     * @param height Height of the rectangle
+     * @param z      Z position
+     * @param t      T position
+     *
+     * @return the ROIs, in no particular order
+     */
+    public synchronized List<ROIContainer> findIntersecting(double x,
+                                                            double y,
+                                                            double width,
+                                                            double height,
+                                                            int    z,
+                                                            int    t)
+    {
+        Set<ROIContainer> found = new LinkedHashSet<ROIContainer>();
+
+        for(Grid grid : getGrids(z, t)) {
+            int x0 = Math.max(cell(x), grid.minX);
+            int y0 = Math.max(cell(y), grid.minY);
+            int x1 = Math.min(cell(x + width), grid.maxX);
+            int y1 = Math.min(cell(y + height), grid.maxY);
+
+            for(int cx = x0; cx <= x1; cx++) {
+                for(int cy = y0; cy <= y1; cy++) {
+                    for(Entry entry : grid.get(cx, cy)) {
+                        Rectangle2D b = entry.bounds;
+                        if(b.getMaxX() >= x && b.getMinX() <= x + width &&
+                           b.getMaxY() >= y && b.getMinY() <= y + height)
+                            found.add(entry.roi);
+                    }
+                }
+            }
+        }
+
+        return new ArrayList<ROIContainer>(found);
+    }
+
+    /**
+     * Find the ROIs nearest to a point, by distance to the bounding boxes of their shapes.
+     *
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param z Z position
+     * @param t T position
+     * @param k Maximum number of ROIs
+     *
+     * @return the ROIs, nearest first
+     *
+     * @throws IllegalArgumentException The number of ROIs is not strictly positive
+     */
+    public synchronized List<ROIContainer> findNearest(double x,
+                                                       double y,
+                                                       int    z,
+                                                       int    t,
+                                                       int    k)
+    {
+        if(k < 1)
+            throw new IllegalArgumentException("Number of ROIs must be strictly positive: " + k);
+
+        final Map<ROIContainer, Double> distances = new IdentityHashMap<ROIContainer, Double>();
+
+        for(Grid grid : getGrids(z, t)) {
+            if(grid.cells.isEmpty())
+                continue;
+
+            int cx = cell(x);
+            int cy = cell(y);
+
+            // Rings before the first one do not reach the occupied cells, the last one covers all of them
+            int firstRing = Math.max(Math.max(grid.minX - cx, cx - grid.maxX),
+                                     Math.max(grid.minY - cy, cy - grid.maxY));
+            int lastRing  = Math.max(Math.max(Math.abs(cx - grid.minX), Math.abs(cx - grid.maxX)),
+                                     Math.max(Math.abs(cy - grid.minY), Math.abs(cy - grid.maxY)));
+
+            Map<ROIContainer, Double> local = new IdentityHashMap<ROIContainer, Double>();
+            for(int ring = Math.max(0, firstRing); ring <= lastRing; ring++) {
+                int x0 = Math.max(cx - ring, grid.minX);
+                int x1 = Math.min(cx + ring, grid.maxX);
+                int y0 = Math.max(cy - ring + 1, grid.minY);
+                int y1 = Math.min(cy + ring - 1, grid.maxY);
+
+                for(int gx = x0; gx <= x1; gx++) {
+                    if(cy - ring >= grid.minY)
+                        measure(grid, gx, cy - ring, x, y, local);
+                    if(ring > 0 && cy + ring <= grid.maxY)
+                        measure(grid, gx, cy + ring, x, y, local);
+                }
+                for(int gy = y0; gy <= y1; gy++) {
+                    if(cx - ring >= grid.minX)
+                        measure(grid, cx - ring, gy, x, y, local);
+                    if(cx + ring <= grid.maxX)
+                        measure(grid, cx + ring, gy, x, y, local);
+                }
+
+                // Shapes in cells outside the rings searched are at least this far
+                if(local.size() >= k && kthDistance(local, k) <= ring * cellSize)
+                    break;
+            }
+
+            for(Map.Entry<ROIContainer, Double> entry : local.entrySet()) {
+                Double previous = distances.get(entry.getKey());
+                if(previous == null || entry.getValue() < previous)
+                    distances.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        List<ROIContainer> nearest = new ArrayList<ROIContainer>(distances.keySet());
+        Collections.sort(nearest, new Comparator<ROIContainer>() {
+            public int compare(ROIContainer r1, ROIContainer r2)
+            {
+                return distances.get(r1).compareTo(distances.get(r2));
+            }
+        });
+
+        return nearest.subList(0, Math.min(k, nearest.size()));
+    }
+
+    /**
+     * Measure the distance between a point and the ROIs of the shapes in a cell, keeping the smallest distance
+     * of each ROI.
+     *
+     * @param grid      Grid of the plane
+     * @param gx        X position of the cell
+     * @param gy        Y position of the cell
+     * @param x         X coordinate of the point
+     * @param y         Y coordinate of the point
+     * @param distances Distances by ROI
+     */
+    private static void measure(Grid                      grid,
+                                int                       gx,
+                                int                       gy,
+                                double                    x,
+                                double                    y,
+                                Map<ROIContainer, Double> distances)
+    {
+        for(Entry entry : grid.get(gx, gy)) {
+            double distance = entry.distance(x, y);
+            Double previous = distances.get(entry.roi);
+            if(previous == null || distance < previous)
+                distances.put(entry.roi, distance);
+        }
+    }
+
+    /**
+     * Return the k-th smallest distance.
+     *
+     * @param distances Distances by ROI
+     * @param k         Rank of the distance
+     *
+     * @return the distance
+     */
+    private static double kthDistance(Map<ROIContainer, Double> distances,
+                                      int                       k)
+    {
+        List<Double> values = new ArrayList<Double>(distances.values());
+        Collections.sort(values);
+        return values.get(k - 1);
+    }
+
+    /**
+     * Return the grids of the shapes on a plane, including the shapes without Z or T position.
+     *
+     * @param z Z position
+     * @param t T position
+     *
+     * @return the grids
+     */
+    private List<Grid> getGrids(int z,
+                                int t)
+    {
+        List<Grid> found = new ArrayList<Grid>(4);
+
+        for(long plane : new long[]{plane(z, t), plane(-1, t), plane(z, -1), plane(-1, -1)}) {
+            Grid grid = grids.get(plane);
+            if(grid != null && !found.contains(grid))
+                found.add(grid);
+        }
+
+        return found;
+    }
+
+    /**
+     * Return the cell containing a coordinate.
+     *
+     * @param coordinate X or Y coordinate
+     *
+     * @return the cell index
+     */
+    private int cell(double coordinate)
+    {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    /**
+     * Return the key of a cell.
+     *
+     * @param x X index of the cell
+     * @param y Y index of the cell
+     *
+     * @return the key
+     */
+    private static long key(int x,
+                            int y)
+    {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Return the key of a plane.
+     *
+     * @param z Z position, negative if undefined
+     * @param t T position, negative if undefined
+     *
+     * @return the key
+     */
+    private static long plane(int z,
+                              int t)
+    {
+        return key(z < 0 ? -1 : z, t < 0 ? -1 : t);
+    }
+
+    /**
+     * Return the key identifying a ROI.
+     *
+     * @param roi The ROI
+     *
+     * @return the id of the ROI if it was saved, the container otherwise
+     */
+    private static Object roiKey(ROIContainer roi)
+    {
+        Long id = roi.getId();
+        return id != null && id >= 0 ? id : roi;
+    }
+
+
+
+
+    /**
+     * Constructor of the ShapeIndex class, with cells of {@link #DEFAULT_CELL_SIZE} pixels.
+     */
+    public ShapeIndex()
+    {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Constructor of the ShapeIndex class.
+     * The cells should be about the size of the shapes.
+     *
+     * @param cellSize Size of the grid cells, in pixels
+     *
+     * @throws IllegalArgumentException The cell size is not strictly positive
+     */
+    public ShapeIndex(double cellSize)
+    {
+        if(cellSize <= 0)
+            throw new IllegalArgumentException("Cell size must be strictly positive: " + cellSize);
+        this.cellSize = cellSize;
+    }
+}
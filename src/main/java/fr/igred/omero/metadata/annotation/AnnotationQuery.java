@@ -0,0 +1,327 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.metadata.annotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import fr.igred.omero.Batches;
+import fr.igred.omero.Client;
+
+import omero.RLong;
+import omero.RObject;
+import omero.RType;
+import omero.ServerError;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.gateway.model.TagAnnotationData;
+import omero.model.Annotation;
+import omero.model.MapAnnotation;
+import omero.model.NamedValue;
+import omero.model.TagAnnotation;
+import omero.sys.ParametersI;
+
+/**
+ * Retrieves the annotations of many images, datasets or projects with a few queries.
+ * The annotations can be filtered by type, namespace and owner, and the ids are sent in batches.
+ */
+public class AnnotationQuery {
+
+    ///Model type of the annotated objects: "Image", "Dataset" or "Project"
+    private final String type;
+
+    ///Types of annotations retrieved, all if empty
+    private final List<Class<? extends Annotation>> types      = new ArrayList<Class<? extends Annotation>>();
+    ///Namespaces of the annotations retrieved, all if empty
+    private final List<String>                      namespaces = new ArrayList<String>();
+    ///Owners of the annotations retrieved, all if empty
+    private final List<Long>                        owners     = new ArrayList<Long>();
+
+    ///Maximum number of ids per query
+    private int batchSize = Batches.DEFAULT_BATCH_SIZE;
+
+    /**
+     * Only retrieve annotations of the specified types.
+     *
+     * @param types Types of annotations, for example TagAnnotation.class
+     */
+    @SafeVarargs
+    public final void setTypes(Class<? extends Annotation>... types)
+    {
+        this.types.clear();
+        this.types.addAll(Arrays.asList(types));
+    }
+
+    /**
+     * Only retrieve annotations with the specified namespaces.
+     *
+     * @param namespaces Namespaces
+     */
+    public void setNamespaces(String... namespaces)
+    {
+        this.namespaces.clear();
+        this.namespaces.addAll(Arrays.asList(namespaces));
+    }
+
+    /**
+     * Only retrieve annotations owned by the specified users.
+     *
+     * @param owners Ids of the users
+     */
+    public void setOwners(Long... owners)
+    {
+        this.owners.clear();
+        this.owners.addAll(Arrays.asList(owners));
+    }
+
+    /**
+     * Set the maximum number of ids sent per query.
+     *
+     * @param batchSize Number of ids
+     *
+     * @throws IllegalArgumentException The size is lower than 1
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if(batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be strictly positive: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+
+
+
+    /**
+     * Retrieve the annotations linked to objects.
+     *
+     * @param client The user
+     * @param ids    Ids of the annotated objects
+     *
+     * @return the annotations of each object, sorted by id; objects without annotation have an empty list
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public Map<Long, List<Annotation>> getAnnotations(Client           client,
+                                                      Collection<Long> ids)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        return getAnnotations(client, ids, Annotation.class);
+    }
+
+    /**
+     * Retrieve the tags linked to objects.
+     *
+     * @param client The user
+     * @param ids    Ids of the annotated objects
+     *
+     * @return the tags of each object, sorted by id
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public Map<Long, List<TagAnnotationContainer>> getTags(Client           client,
+                                                           Collection<Long> ids)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        Map<Long, List<TagAnnotationContainer>> tags = new HashMap<Long, List<TagAnnotationContainer>>(ids.size());
+
+        for(Map.Entry<Long, List<Annotation>> entry : getAnnotations(client, ids, TagAnnotation.class).entrySet()) {
+            List<TagAnnotationContainer> list = new ArrayList<TagAnnotationContainer>();
+            for(Annotation annotation : entry.getValue()) {
+                if(annotation instanceof TagAnnotation)
+                    list.add(new TagAnnotationContainer(new TagAnnotationData((TagAnnotation) annotation)));
+            }
+            tags.put(entry.getKey(), list);
+        }
+
+        return tags;
+    }
+
+    /**
+     * Retrieve the Key-Value pairs of the map annotations linked to objects.
+     *
+     * @param client The user
+     * @param ids    Ids of the annotated objects
+     *
+     * @return the Key-Value pairs of each object, in the order of the annotations
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public Map<Long, List<NamedValue>> getKeyValuePairs(Client           client,
+                                                        Collection<Long> ids)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        Map<Long, List<NamedValue>> pairs = new HashMap<Long, List<NamedValue>>(ids.size());
+
+        for(Map.Entry<Long, List<Annotation>> entry : getAnnotations(client, ids, MapAnnotation.class).entrySet()) {
+            List<NamedValue> list = new ArrayList<NamedValue>();
+            for(Annotation annotation : entry.getValue()) {
+                if(annotation instanceof MapAnnotation && ((MapAnnotation) annotation).getMapValue() != null)
+                    list.addAll(((MapAnnotation) annotation).getMapValue());
+            }
+            pairs.put(entry.getKey(), list);
+        }
+
+        return pairs;
+    }
+
+    /**
+     * Retrieve the annotations linked to objects, with one query per type and batch.
+     * The types are restricted by the queries, so annotations of other types are not sent by the server.
+     *
+     * @param client   The user
+     * @param ids      Ids of the annotated objects
+     * @param fallback Type of annotations retrieved when no type was selected
+     *
+     * @return the annotations of each object, sorted by id; objects without annotation have an empty list
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    private Map<Long, List<Annotation>> getAnnotations(Client                      client,
+                                                       Collection<Long>            ids,
+                                                       Class<? extends Annotation> fallback)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        List<Class<? extends Annotation>> queried = new ArrayList<Class<? extends Annotation>>(types);
+        if(queried.isEmpty())
+            queried.add(fallback);
+
+        Map<Long, Map<Long, Annotation>> sorted = new HashMap<Long, Map<Long, Annotation>>(ids.size());
+        for(Long id : ids)
+            sorted.put(id, new TreeMap<Long, Annotation>());
+
+        for(Class<? extends Annotation> selected : queried) {
+            for(Object[] row : query(client, ids, getModelType(selected))) {
+                Annotation annotation = (Annotation) row[1];
+                sorted.get((Long) row[0]).put(annotation.getId().getValue(), annotation);
+            }
+        }
+
+        Map<Long, List<Annotation>> annotations = new HashMap<Long, List<Annotation>>(ids.size());
+        for(Map.Entry<Long, Map<Long, Annotation>> entry : sorted.entrySet())
+            annotations.put(entry.getKey(), new ArrayList<Annotation>(entry.getValue().values()));
+
+        return annotations;
+    }
+
+    /**
+     * Retrieve the annotations of a model type linked to objects.
+     *
+     * @param client     The user
+     * @param ids        Ids of the annotated objects
+     * @param annotation Model type of the annotations, for example "TagAnnotation"
+     *
+     * @return the id of the annotated object and the annotation, for each link
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    private List<Object[]> query(Client           client,
+                                 Collection<Long> ids,
+                                 String           annotation)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        List<Object[]> links = new ArrayList<Object[]>();
+
+        String query = "select l.parent.id, a from " + type + "AnnotationLink as l, " +
+                       annotation + " as a ";
+        if("MapAnnotation".equals(annotation))
+            query += "left outer join fetch a.mapValue ";
+        query += "where a.id = l.child.id " +
+                 "and l.parent.id in (:ids)";
+
+        ParametersI param = new ParametersI();
+        if(!namespaces.isEmpty()) {
+            List<RType> values = new ArrayList<RType>(namespaces.size());
+            for(String namespace : namespaces)
+                values.add(omero.rtypes.rstring(namespace));
+            param.add("ns", omero.rtypes.rlist(values));
+            query += " and a.ns in (:ns)";
+        }
+        if(!owners.isEmpty()) {
+            List<RType> values = new ArrayList<RType>(owners.size());
+            for(Long owner : owners)
+                values.add(omero.rtypes.rlong(owner));
+            param.add("owners", omero.rtypes.rlist(values));
+            query += " and a.details.owner.id in (:owners)";
+        }
+        query += " order by a.id";
+
+        for(List<Long> batch : Batches.<Long>partition(ids, batchSize)) {
+            param.addIds(batch);
+
+            for(List<RType> row : client.getQueryService().projection(query, param)) {
+                Long   parent = ((RLong) row.get(0)).getValue();
+                Object child  = ((RObject) row.get(1)).getValue();
+                links.add(new Object[]{parent, child});
+            }
+        }
+
+        return links;
+    }
+
+    /**
+     * Get the model type of an annotation class, for example "TagAnnotation" for TagAnnotation or
+     * TagAnnotationI.
+     *
+     * @param annotation Annotation class
+     *
+     * @return the model type
+     */
+    private static String getModelType(Class<? extends Annotation> annotation)
+    {
+        String name = annotation.getSimpleName();
+        if(!annotation.isInterface() && name.endsWith("I"))
+            name = name.substring(0, name.length() - 1);
+        return name;
+    }
+
+
+
+
+    /**
+     * Constructor of the AnnotationQuery class.
+     *
+     * @param type Model type of the annotated objects: "Image", "Dataset" or "Project"
+     *
+     * @throws IllegalArgumentException The type cannot be annotated
+     */
+    public AnnotationQuery(String type)
+    {
+        if(!"Image".equals(type) && !"Dataset".equals(type) && !"Project".equals(type))
+            throw new IllegalArgumentException("Cannot retrieve annotations of " + type);
+        this.type = type;
+    }
+}
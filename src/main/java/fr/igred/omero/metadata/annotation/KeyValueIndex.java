@@ -0,0 +1,469 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.metadata.annotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import fr.igred.omero.Client;
+import fr.igred.omero.ImageSummary;
+import fr.igred.omero.repository.DatasetContainer;
+import fr.igred.omero.repository.ProjectContainer;
+
+import omero.ServerError;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.model.MapAnnotation;
+import omero.model.NamedValue;
+
+/**
+ * In-memory index of the Key-Value pairs added by the user to the images of a dataset or a project.
+ * The pairs are retrieved once, then the queries are answered locally with sorted arrays of image ids.
+ * Values which can be parsed as numbers can also be queried by range.
+ * The index is not thread-safe.
+ */
+public class KeyValueIndex {
+
+    /**
+     * Sorted set of image ids, stored in a primitive array.
+     */
+    private static class IdSet {
+        ///Ids, sorted, in the first size elements
+        private long[] ids = new long[4];
+        ///Number of ids
+        private int    size;
+
+        private void add(long id)
+        {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if(index >= 0)
+                return;
+
+            index = -index - 1;
+            if(size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        private void remove(long id)
+        {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if(index < 0)
+                return;
+
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+        }
+
+        private long[] toArray()
+        {
+            return Arrays.copyOf(ids, size);
+        }
+    }
+
+    ///Empty result
+    private static final long[] NONE = new long[0];
+
+    ///Dataset indexed, null if a project is indexed
+    private final DatasetContainer dataset;
+    ///Project indexed, null if a dataset is indexed
+    private final ProjectContainer project;
+
+    ///Pairs of each image
+    private final Map<Long, List<NamedValue>>              pairs   = new HashMap<Long, List<NamedValue>>();
+    ///Images by key
+    private final Map<String, IdSet>                       keys    = new HashMap<String, IdSet>();
+    ///Images by key, then by value
+    private final Map<String, Map<String, IdSet>>          values  = new HashMap<String, Map<String, IdSet>>();
+    ///Images by key, then by numeric value
+    private final Map<String, NavigableMap<Double, IdSet>> numbers = new HashMap<String, NavigableMap<Double, IdSet>>();
+
+    /**
+     * @return the number of images indexed
+     */
+    public int size()
+    {
+        return pairs.size();
+    }
+
+    /**
+     * Return the images having a key.
+     *
+     * @param key Name of the key
+     *
+     * @return sorted image ids
+     */
+    public long[] getImagesKey(String key)
+    {
+        IdSet ids = keys.get(key);
+        return ids == null ? NONE : ids.toArray();
+    }
+
+    /**
+     * Return the images having a Key-Value pair.
+     *
+     * @param key   Name of the key
+     * @param value Value associated to the key
+     *
+     * @return sorted image ids
+     */
+    public long[] getImagesPairKeyValue(String key,
+                                        String value)
+    {
+        Map<String, IdSet> byValue = values.get(key);
+        if(byValue == null)
+            return NONE;
+
+        IdSet ids = byValue.get(value);
+        return ids == null ? NONE : ids.toArray();
+    }
+
+    /**
+     * Return the images having a key with a numeric value in a range.
+     *
+     * @param key Name of the key
+     * @param min Lower bound, included
+     * @param max Upper bound, included
+     *
+     * @return sorted image ids
+     */
+    public long[] getImagesInRange(String key,
+                                   double min,
+                                   double max)
+    {
+        NavigableMap<Double, IdSet> byNumber = numbers.get(key);
+        if(byNumber == null || min > max)
+            return NONE;
+
+        Collection<IdSet> sets   = byNumber.subMap(min, true, max, true).values();
+        long[][]          arrays = new long[sets.size()][];
+
+        int i = 0;
+        for(IdSet set : sets)
+            arrays[i++] = set.toArray();
+
+        return or(arrays);
+    }
+
+    /**
+     * Intersect results.
+     *
+     * @param results Sorted image ids
+     *
+     * @return sorted image ids present in all results
+     */
+    public static long[] and(long[]... results)
+    {
+        if(results.length == 0)
+            return NONE;
+
+        long[] result = results[0];
+        for(int r = 1; r < results.length; r++) {
+            long[] other  = results[r];
+            long[] merged = new long[Math.min(result.length, other.length)];
+
+            int i = 0, j = 0, n = 0;
+            while(i < result.length && j < other.length) {
+                if(result[i] < other[j])
+                    i++;
+                else if(result[i] > other[j])
+                    j++;
+                else {
+                    merged[n++] = result[i];
+                    i++;
+                    j++;
+                }
+            }
+            result = Arrays.copyOf(merged, n);
+        }
+
+        return result;
+    }
+
+    /**
+     * Merge results.
+     *
+     * @param results Sorted image ids
+     *
+     * @return sorted image ids present in at least one result
+     */
+    public static long[] or(long[]... results)
+    {
+        long[] result = NONE;
+        for(long[] other : results) {
+            long[] merged = new long[result.length + other.length];
+
+            int i = 0, j = 0, n = 0;
+            while(i < result.length || j < other.length) {
+                if(j == other.length || (i < result.length && result[i] < other[j]))
+                    merged[n++] = result[i++];
+                else if(i == result.length || other[j] < result[i])
+                    merged[n++] = other[j++];
+                else {
+                    merged[n++] = result[i];
+                    i++;
+                    j++;
+                }
+            }
+            result = Arrays.copyOf(merged, n);
+        }
+
+        return result;
+    }
+
+
+
+
+    /**
+     * Update the index with the images added to or removed from the dataset or project since the last refresh.
+     * The pairs of the images already indexed are kept.
+     *
+     * @param client The user
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public void refresh(Client client)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        TreeSet<Long> current = getImageIds(client);
+
+        for(Long id : new ArrayList<Long>(pairs.keySet())) {
+            if(!current.contains(id))
+                remove(id);
+        }
+
+        current.removeAll(pairs.keySet());
+        index(client, current);
+    }
+
+    /**
+     * Retrieve again the pairs of some images, for example after they were modified.
+     *
+     * @param client   The user
+     * @param imageIds Ids of the images
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public void refresh(Client           client,
+                        Collection<Long> imageIds)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        for(Long id : imageIds)
+            remove(id);
+
+        index(client, new TreeSet<Long>(imageIds));
+    }
+
+    /**
+     * Retrieve the ids of the images in the dataset or project.
+     *
+     * @param client The user
+     *
+     * @return sorted image ids
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    private TreeSet<Long> getImageIds(Client client)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        List<ImageSummary> summaries = dataset != null ? dataset.getImageSummaries(client) :
+                                                         project.getImageSummaries(client);
+
+        TreeSet<Long> ids = new TreeSet<Long>();
+        for(ImageSummary summary : summaries)
+            ids.add(summary.getId());
+
+        return ids;
+    }
+
+    /**
+     * Retrieve and index the pairs of images, in ascending id order.
+     *
+     * @param client   The user
+     * @param imageIds Sorted ids of the images
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    private void index(Client        client,
+                       TreeSet<Long> imageIds)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        if(imageIds.isEmpty())
+            return;
+
+        AnnotationQuery query = new AnnotationQuery("Image");
+        query.setTypes(MapAnnotation.class);
+        query.setOwners(client.getId());
+
+        Map<Long, List<NamedValue>> fetched = query.getKeyValuePairs(client, imageIds);
+
+        for(Long id : imageIds) {
+            List<NamedValue> list = fetched.get(id);
+            pairs.put(id, list);
+
+            for(NamedValue pair : list) {
+                set(keys, pair.name).add(id);
+
+                Map<String, IdSet> byValue = values.get(pair.name);
+                if(byValue == null) {
+                    byValue = new HashMap<String, IdSet>();
+                    values.put(pair.name, byValue);
+                }
+                set(byValue, pair.value).add(id);
+
+                Double number = parse(pair.value);
+                if(number != null) {
+                    NavigableMap<Double, IdSet> byNumber = numbers.get(pair.name);
+                    if(byNumber == null) {
+                        byNumber = new TreeMap<Double, IdSet>();
+                        numbers.put(pair.name, byNumber);
+                    }
+                    set(byNumber, number).add(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove an image from the index.
+     *
+     * @param id Id of the image
+     */
+    private void remove(Long id)
+    {
+        List<NamedValue> list = pairs.remove(id);
+        if(list == null)
+            return;
+
+        for(NamedValue pair : list) {
+            keys.get(pair.name).remove(id);
+            values.get(pair.name).get(pair.value).remove(id);
+
+            Double number = parse(pair.value);
+            if(number != null)
+                numbers.get(pair.name).get(number).remove(id);
+        }
+    }
+
+    /**
+     * Return the set associated to a key in a map, creating it if needed.
+     *
+     * @param map Map of sets
+     * @param key Key of the set
+     * @param <K> Type of the key
+     *
+     * @return the set
+     */
+    private static <K> IdSet set(Map<K, IdSet> map,
+                                 K             key)
+    {
+        IdSet set = map.get(key);
+        if(set == null) {
+            set = new IdSet();
+            map.put(key, set);
+        }
+
+        return set;
+    }
+
+    /**
+     * Parse a numeric value.
+     *
+     * @param value The value
+     *
+     * @return the number, null if the value is not a number
+     */
+    private static Double parse(String value)
+    {
+        if(value == null)
+            return null;
+
+        try {
+            double number = Double.parseDouble(value.trim());
+            return Double.isNaN(number) ? null : number;
+        }
+        catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+
+
+
+    /**
+     * Constructor of the KeyValueIndex class.
+     * Index the Key-Value pairs of the images in a dataset.
+     *
+     * @param client  The user
+     * @param dataset Dataset indexed
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public KeyValueIndex(Client           client,
+                         DatasetContainer dataset)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        this.dataset = dataset;
+        this.project = null;
+        refresh(client);
+    }
+
+    /**
+     * Constructor of the KeyValueIndex class.
+     * Index the Key-Value pairs of the images in a project.
+     *
+     * @param client  The user
+     * @param project Project indexed
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public KeyValueIndex(Client           client,
+                         ProjectContainer project)
+        throws
+            DSOutOfServiceException,
+            ServerError
+    {
+        this.dataset = null;
+        this.project = project;
+        refresh(client);
+    }
+}
@@ -20,6 +20,7 @@ package fr.igred.omero.metadata.annotation;
 import java.util.concurrent.ExecutionException;
 
 import fr.igred.omero.Client;
+import fr.igred.omero.MetadataCache;
 
 import omero.gateway.exception.DSAccessException;
 import omero.gateway.exception.DSOutOfServiceException;
@@ -64,6 +65,16 @@ public class TagAnnotationContainer {
         return tag.getId();
     }
 
+    /**
+     * Return the id of the group containing the tag
+     * 
+     * @return group id
+     */
+    public Long getGroupId()
+    {
+        return tag.getGroupId();
+    }
+
     /**
      * Return the TagAnnotationData contained.
      * 
@@ -107,5 +118,6 @@ public class TagAnnotationContainer {
         this.tag = new TagAnnotationData(name, description);
         DataObject o = client.getDm().saveAndReturnObject(client.getCtx(), tag);
         this.tag.setId(o.getId());
+        client.getCache().invalidate(MetadataCache.Type.TAG);
     }
 }
\ No newline at end of file
@@ -26,13 +26,23 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FilenameUtils;
 
 import fr.igred.omero.Client;
 import fr.igred.omero.ImageContainer;
+import fr.igred.omero.ImagePager;
+import fr.igred.omero.ImageSummary;
+import fr.igred.omero.MetadataCache;
 import fr.igred.omero.sort.SortImageContainer;
 import fr.igred.omero.sort.SortTagAnnotationContainer;
 import fr.igred.omero.metadata.TableContainer;
@@ -44,6 +54,7 @@ import loci.formats.in.MetadataLevel;
 import ome.formats.OMEROMetadataStoreClient;
 import ome.formats.importer.ImportCandidates;
 import ome.formats.importer.ImportConfig;
+import ome.formats.importer.ImportContainer;
 import ome.formats.importer.ImportLibrary;
 import ome.formats.importer.OMEROWrapper;
 import ome.formats.importer.cli.ErrorHandler;
@@ -58,6 +69,7 @@ import omero.gateway.model.FileAnnotationData;
 import omero.gateway.model.ImageData;
 import omero.gateway.model.TableData;
 import omero.gateway.model.TagAnnotationData;
+import omero.log.Logger;
 import omero.model.ChecksumAlgorithm;
 import omero.model.ChecksumAlgorithmI;
 import omero.model.DatasetAnnotationLink;
@@ -71,8 +83,11 @@ import omero.model.IObject;
 import omero.model.NamedValue;
 import omero.model.OriginalFile;
 import omero.model.OriginalFileI;
+import omero.model.Pixels;
+import omero.model.TagAnnotation;
 import omero.model.TagAnnotationI;
 import omero.model.enums.ChecksumAlgorithmSHA1160;
+import omero.sys.ParametersI;
 
 /**
  * Class containing a DatasetData 
@@ -113,6 +128,16 @@ public class DatasetContainer {
         return dataset.getDescription();
     }
 
+    /**
+     * Get the id of the group containing the dataset
+     * 
+     * @return DatasetData group id
+     */
+    public Long getGroupId()
+    {
+        return dataset.getGroupId();
+    }
+
     /**
      * @return the DatasetData contained
      */
@@ -202,7 +227,8 @@ public class DatasetContainer {
         DatasetAnnotationLink link = new DatasetAnnotationLinkI();
         link.setChild(tagData.asAnnotation());
         link.setParent(new DatasetI(dataset.getId(), false));
-        IObject r = client.getDm().saveAndReturnObject(client.getCtx(), link);
+        IObject r = client.saveObject(link);
+        client.getCache().invalidate(MetadataCache.Type.ANNOTATION, MetadataCache.Type.TAG);
 
         return r;
     }
@@ -229,7 +255,8 @@ public class DatasetContainer {
         DatasetAnnotationLink link = new DatasetAnnotationLinkI();
         link.setChild(new TagAnnotationI(id, false));
         link.setParent(new DatasetI(dataset.getId(), false));
-        IObject r = client.getDm().saveAndReturnObject(client.getCtx(), link);
+        IObject r = client.saveObject(link);
+        client.getCache().invalidate(MetadataCache.Type.ANNOTATION, MetadataCache.Type.TAG);
 
         return r;
     }
@@ -314,15 +341,24 @@ public class DatasetContainer {
         List<Class<? extends AnnotationData>> types = new ArrayList<Class<? extends AnnotationData>>();
         types.add(TagAnnotationData.class);
 
-        List<AnnotationData> annotations = client.getMetadata().getAnnotations(client.getCtx(), dataset, types, userIds);
+        String key = "Dataset:" + dataset.getId() + ":" + TagAnnotationData.class.getSimpleName();
+
+        List<AnnotationData> annotations = client.getCache().get(client, MetadataCache.Type.ANNOTATION, key);
+        if(annotations == null) {
+            annotations = client.getMetadata().getAnnotations(client.getCtx(), dataset, types, userIds);
+            if(annotations != null)
+                annotations = Collections.unmodifiableList(annotations);
+            client.getCache().put(client, MetadataCache.Type.ANNOTATION, key, annotations);
+        }
 
         List<TagAnnotationContainer> tags = new ArrayList<TagAnnotationContainer>();
 
         if(annotations != null) {
             for (AnnotationData annotation : annotations) {
-                TagAnnotationData tagAnnotation = (TagAnnotationData) annotation;
+                // The cached tags are copied so that changes made by the caller do not reach the cache
+                TagAnnotation tagAnnotation = (TagAnnotation) annotation.asIObject().clone();
                 
-                tags.add(new TagAnnotationContainer(tagAnnotation));
+                tags.add(new TagAnnotationContainer(new TagAnnotationData(tagAnnotation)));
             }
         }
 
@@ -373,6 +409,50 @@ public class DatasetContainer {
         return toImagesContainer(images);
     }
 
+    /**
+     * Get all images in the dataset available from OMERO, page by page.
+     * The images are sorted by id and only the current and next pages are held in memory.
+     * 
+     * @param client   The user
+     * @param pageSize Number of images retrieved per page
+     * 
+     * @return ImagePager iterating over the images
+     */
+    public ImagePager getImagesPaged(Client client, 
+                                     int    pageSize)
+    {
+        ParametersI param = new ParametersI();
+        param.addLong("dataset", dataset.getId());
+
+        return new ImagePager(client, 
+                              " and i.id in (select link.child.id from DatasetImageLink as link " + 
+                              "where link.parent.id = :dataset)", 
+                              param, 
+                              pageSize);
+    }
+
+    /**
+     * Get the summaries of all images in the dataset.
+     * Only the id, name, acquisition date, dataset and dimensions are retrieved.
+     * 
+     * @param client The user
+     * 
+     * @return ImageSummary list sorted by image id
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public List<ImageSummary> getImageSummaries(Client client)
+        throws 
+            ServerError,
+            DSOutOfServiceException
+    {
+        ParametersI param = new ParametersI();
+        param.addLong("dataset", dataset.getId());
+
+        return ImageSummary.load(client, "l.parent.id = :dataset", param);
+    }
+
     /**
      * Get all images in the dataset with a certain from OMERO.
      * 
@@ -615,6 +695,33 @@ public class DatasetContainer {
         return iObjects;
     }
 
+    /**
+     * Add a list of image to the dataset in OMERO, sending the links in batches.
+     * The images already in the dataset are skipped.
+     * 
+     * @param client    The user
+     * @param images    Images to add to the dataset
+     * @param batchSize Maximum number of links sent per request
+     * 
+     * @return The ids of the links created
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public List<Long> addImages(Client                     client, 
+                                Collection<ImageContainer> images, 
+                                int                        batchSize)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        List<Long> ids = new ArrayList<Long>(images.size());
+        for(ImageContainer image : images)
+            ids.add(image.getId());
+
+        return client.addImagesToDatasets(Collections.singletonMap(dataset.getId(), ids), batchSize);
+    }
+
     /**
      * Add a single image to the dataset in OMERO
      * 
@@ -639,7 +746,7 @@ public class DatasetContainer {
         link.setChild(image.getImage().asImage());
         link.setParent(new DatasetI(dataset.getId(), false));
 
-        IObject r = client.getDm().saveAndReturnObject(client.getCtx(), link);
+        IObject r = client.saveObject(link);
         return r;
     }
 
@@ -677,6 +784,183 @@ public class DatasetContainer {
         store.logout();
     }
 
+    /**
+     * Import all images candidates in the paths to the dataset in OMERO, several filesets at a time.
+     * Each thread uses its own store and reader, so at most filesets files are being read at once.
+     * A file which fails to import does not stop the others: its list of ids is left empty, the failure is logged
+     * and the thread goes on with a new store and reader, or leaves the remaining files to the other threads if they
+     * cannot be created. Errors are not caught and stop the import.
+     * 
+     * @param client   The user
+     * @param filesets Number of filesets imported at the same time
+     * @param uploads  Number of files of a fileset uploaded at the same time
+     * @param paths    Paths to the images on your computer
+     * 
+     * @return The ids of the images imported from each candidate file, by absolute path, in the order of the candidates
+     * 
+     * @throws IllegalArgumentException The number of filesets or uploads is lower than 1
+     * @throws InterruptedException     The import was interrupted
+     * @throws ExecutionException       A store could not be created
+     */
+    public Map<String, List<Long>> importImages(final Client client,
+                                                int          filesets,
+                                                final int    uploads,
+                                                String...    paths)
+        throws
+            InterruptedException,
+            ExecutionException
+    {
+        if(filesets < 1 || uploads < 1)
+            throw new IllegalArgumentException("Number of filesets and uploads must be strictly positive");
+
+        final ImportConfig config = client.getConfig();
+        final Logger       logger = client.getGateway().getLogger();
+
+        OMEROWrapper     scanner    = new OMEROWrapper(config);
+        ImportCandidates candidates = new ImportCandidates(scanner, paths, new ErrorHandler(config));
+        try {
+            scanner.close();
+        }
+        catch(IOException e) {
+            //The reader was only used to find the candidates
+        }
+
+        final List<ImportContainer>   containers = candidates.getContainers();
+        final Map<String, List<Long>> ids        = new LinkedHashMap<String, List<Long>>();
+        for(ImportContainer container : containers)
+            ids.put(container.getFile().getAbsolutePath(), new ArrayList<Long>());
+
+        final AtomicInteger next = new AtomicInteger(0);
+
+        ExecutorService    executor = Executors.newFixedThreadPool(Math.max(1, Math.min(filesets, containers.size())));
+        List<Future<Void>> workers  = new ArrayList<Future<Void>>();
+        try {
+            for(int i = 0; i < Math.min(filesets, containers.size()); i++) {
+                workers.add(executor.submit(new Callable<Void>() {
+                    private OMEROMetadataStoreClient store;
+                    private OMEROWrapper             reader;
+                    private ImportLibrary            library;
+
+                    public Void call()
+                        throws Exception
+                    {
+                        ExecutorService upload = Executors.newFixedThreadPool(uploads);
+                        try {
+                            open();
+
+                            int index;
+                            while((index = next.getAndIncrement()) < containers.size()) {
+                                ImportContainer container = containers.get(index);
+                                container.setTarget(new DatasetI(dataset.getId(), false));
+
+                                String     path     = container.getFile().getAbsolutePath();
+                                List<Long> imported = ids.get(path);
+                                try {
+                                    for(Pixels pixels : importImage(container, upload, index)) {
+                                        Long id = pixels.getImage().getId().getValue();
+                                        synchronized(imported) {
+                                            if(!imported.contains(id))
+                                                imported.add(id);
+                                        }
+                                    }
+                                }
+                                catch(Exception e) {
+                                    //The file could not be imported: its ids are left empty
+                                    synchronized(imported) {
+                                        imported.clear();
+                                    }
+                                    logger.error(this, "Could not import " + path + ": " + e);
+
+                                    //The reader and the store may be left in any state by the failure
+                                    close();
+                                    try {
+                                        open();
+                                    }
+                                    catch(Exception f) {
+                                        //The other threads import the remaining files
+                                        logger.error(this, "Could not reopen the import store: " + f);
+                                        return null;
+                                    }
+                                }
+                            }
+                        }
+                        finally {
+                            upload.shutdown();
+                            close();
+                        }
+                        return null;
+                    }
+
+                    private List<Pixels> importImage(ImportContainer container,
+                                                     ExecutorService upload,
+                                                     int             index)
+                        throws Exception
+                    {
+                        try {
+                            return library.importImage(container, upload, index);
+                        }
+                        catch(Exception e) {
+                            throw e;
+                        }
+                        catch(Error e) {
+                            throw e;
+                        }
+                        catch(Throwable t) {
+                            throw new ExecutionException(t);
+                        }
+                    }
+
+                    private void open()
+                        throws Exception
+                    {
+                        store  = config.createStore();
+                        reader = new OMEROWrapper(config);
+                        reader.setMetadataOptions(new DefaultMetadataOptions(MetadataLevel.ALL));
+
+                        library = new ImportLibrary(store, reader);
+                        library.addObserver(new LoggingImportMonitor());
+                    }
+
+                    private void close()
+                    {
+                        if(reader != null) {
+                            try {
+                                reader.close();
+                            }
+                            catch(IOException e) {
+                                //The reader is not used anymore
+                            }
+                        }
+                        if(store != null)
+                            store.logout();
+
+                        store   = null;
+                        reader  = null;
+                        library = null;
+                    }
+                }));
+            }
+
+            for(Future<Void> worker : workers) {
+                try {
+                    worker.get();
+                }
+                catch(ExecutionException e) {
+                    if(e.getCause() instanceof Error)
+                        throw (Error) e.getCause();
+                    throw e;
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        client.getCache().invalidateAll();
+
+        return ids;
+    }
+
     /**
      * Link a file to the Dataset
      * 
@@ -719,7 +1003,7 @@ public class DatasetContainer {
         originalFile.setMimetype(omero.rtypes.rstring(FilenameUtils.getExtension(file.getName())));
         originalFile = (OriginalFile) client.getDm().saveAndReturnObject(client.getCtx(), originalFile);
 
-        RawFileStorePrx rawFileStore = client.getGateway().getRawFileService(client.getCtx());
+        RawFileStorePrx rawFileStore = client.createRawFileStore();
 
         long pos = 0;
         int rlen;
@@ -750,6 +1034,7 @@ public class DatasetContainer {
         DatasetAnnotationLink link = new DatasetAnnotationLinkI();
         link.setChild(fa);
         link.setParent(dataset.asDataset());
+        client.getCache().invalidate(MetadataCache.Type.ANNOTATION);
         return client.getDm().saveAndReturnObject(client.getCtx(), link);                      
     }
 
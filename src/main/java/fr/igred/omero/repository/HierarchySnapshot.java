@@ -0,0 +1,531 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.repository;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.igred.omero.Client;
+import fr.igred.omero.util.LongMap;
+import fr.igred.omero.util.LongSet;
+import omero.RLong;
+import omero.RString;
+import omero.RTime;
+import omero.RType;
+import omero.ServerError;
+import omero.api.IQueryPrx;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.sys.ParametersI;
+
+/**
+ * Snapshot of the project/dataset/image hierarchy available to the user.
+ * The snapshot is built with one projection query per object and link type, and then answers
+ * lookups by id, by name and by parent/child relationship locally.
+ * It can be refreshed incrementally: only the objects and links updated since the last refresh are retrieved.
+ * Objects and links deleted in OMERO are only removed from the snapshot by {@link #reload(Client)}.
+ */
+public class HierarchySnapshot {
+
+    /**
+     * Node of the hierarchy: a project, a dataset or an image.
+     * The node is updated by the refreshes of its snapshot, and its getters hold the lock of the snapshot.
+     */
+    public static class Node {
+        ///Snapshot updating the node
+        private final HierarchySnapshot snapshot;
+        ///Object id
+        private final long    id;
+        ///Object name
+        private       String  name;
+        ///Last update time of the object, in milliseconds
+        private       long    updated;
+        ///Ids of the parents
+        private final LongSet parents  = new LongSet();
+        ///Ids of the children
+        private final LongSet children = new LongSet();
+
+        /**
+         * @return the object id
+         */
+        public long getId()
+        {
+            return id;
+        }
+
+        /**
+         * @return the object name
+         */
+        public String getName()
+        {
+            synchronized(snapshot) {
+                return name;
+            }
+        }
+
+        /**
+         * @return the last update time of the object, in milliseconds
+         */
+        public long getUpdated()
+        {
+            synchronized(snapshot) {
+                return updated;
+            }
+        }
+
+        /**
+         * @return the sorted ids of the parents
+         */
+        public long[] getParentIds()
+        {
+            synchronized(snapshot) {
+                return parents.toArray();
+            }
+        }
+
+        /**
+         * @return the sorted ids of the children
+         */
+        public long[] getChildIds()
+        {
+            synchronized(snapshot) {
+                return children.toArray();
+            }
+        }
+
+        /**
+         * Constructor of the Node class.
+         *
+         * @param snapshot Snapshot updating the node
+         * @param id       Object id
+         */
+        private Node(HierarchySnapshot snapshot,
+                     long              id)
+        {
+            this.snapshot = snapshot;
+            this.id       = id;
+        }
+    }
+
+
+
+
+    ///Nodes by id
+    private final LongMap<Node> projects = new LongMap<Node>();
+    private final LongMap<Node> datasets = new LongMap<Node>();
+    private final LongMap<Node> images   = new LongMap<Node>();
+
+    ///Ids by name
+    private final Map<String, LongSet> projectNames = new HashMap<String, LongSet>();
+    private final Map<String, LongSet> datasetNames = new HashMap<String, LongSet>();
+    private final Map<String, LongSet> imageNames   = new HashMap<String, LongSet>();
+
+    ///Time of the most recent update retrieved, in milliseconds
+    private long lastUpdate = 0L;
+
+    /**
+     * Return the time of the most recent update retrieved.
+     *
+     * @return time in milliseconds
+     */
+    public synchronized long getLastUpdate()
+    {
+        return lastUpdate;
+    }
+
+    /**
+     * @return the number of projects in the snapshot
+     */
+    public synchronized int getProjectCount()
+    {
+        return projects.size();
+    }
+
+    /**
+     * @return the number of datasets in the snapshot
+     */
+    public synchronized int getDatasetCount()
+    {
+        return datasets.size();
+    }
+
+    /**
+     * @return the number of images in the snapshot
+     */
+    public synchronized int getImageCount()
+    {
+        return images.size();
+    }
+
+    /**
+     * Return the project with the specified id.
+     *
+     * @param id Project id
+     *
+     * @return the node, null if the project is not in the snapshot
+     */
+    public synchronized Node getProject(long id)
+    {
+        return projects.get(id);
+    }
+
+    /**
+     * Return the dataset with the specified id.
+     *
+     * @param id Dataset id
+     *
+     * @return the node, null if the dataset is not in the snapshot
+     */
+    public synchronized Node getDataset(long id)
+    {
+        return datasets.get(id);
+    }
+
+    /**
+     * Return the image with the specified id.
+     *
+     * @param id Image id
+     *
+     * @return the node, null if the image is not in the snapshot
+     */
+    public synchronized Node getImage(long id)
+    {
+        return images.get(id);
+    }
+
+    /**
+     * Return the ids of the projects with the specified name.
+     *
+     * @param name Project name
+     *
+     * @return sorted ids
+     */
+    public synchronized long[] getProjectIds(String name)
+    {
+        return idsByName(projectNames, name);
+    }
+
+    /**
+     * Return the ids of the datasets with the specified name.
+     *
+     * @param name Dataset name
+     *
+     * @return sorted ids
+     */
+    public synchronized long[] getDatasetIds(String name)
+    {
+        return idsByName(datasetNames, name);
+    }
+
+    /**
+     * Return the ids of the images with the specified name.
+     *
+     * @param name Image name
+     *
+     * @return sorted ids
+     */
+    public synchronized long[] getImageIds(String name)
+    {
+        return idsByName(imageNames, name);
+    }
+
+    /**
+     * Return the ids of the datasets in a project.
+     *
+     * @param projectId Project id
+     *
+     * @return sorted ids
+     */
+    public synchronized long[] getDatasetIds(long projectId)
+    {
+        return childIds(projects, projectId);
+    }
+
+    /**
+     * Return the ids of the images in a dataset.
+     *
+     * @param datasetId Dataset id
+     *
+     * @return sorted ids
+     */
+    public synchronized long[] getImageIds(long datasetId)
+    {
+        return childIds(datasets, datasetId);
+    }
+
+    /**
+     * Return the ids of the images in a project.
+     *
+     * @param projectId Project id
+     *
+     * @return sorted ids, each image appearing once
+     */
+    public synchronized long[] getProjectImageIds(long projectId)
+    {
+        LongSet ids = new LongSet();
+
+        for(long datasetId : childIds(projects, projectId))
+            ids.addAll(childIds(datasets, datasetId));
+
+        return ids.toArray();
+    }
+
+    /**
+     * Return the ids of the images matching a path.
+     *
+     * @param projectName Name of the project
+     * @param datasetName Name of the dataset
+     * @param imageName   Name of the image
+     *
+     * @return sorted ids of the images
+     */
+    public synchronized long[] resolve(String projectName,
+                                       String datasetName,
+                                       String imageName)
+    {
+        LongSet result = new LongSet();
+
+        LongSet datasetIds = datasetNames.get(datasetName);
+        LongSet imageIds   = imageNames.get(imageName);
+
+        if(datasetIds == null || imageIds == null)
+            return new long[0];
+
+        for(long projectId : idsByName(projectNames, projectName)) {
+            for(long datasetId : childIds(projects, projectId)) {
+                if(!datasetIds.contains(datasetId))
+                    continue;
+
+                for(long imageId : childIds(datasets, datasetId))
+                    if(imageIds.contains(imageId))
+                        result.add(imageId);
+            }
+        }
+
+        return result.toArray();
+    }
+
+
+
+
+    /**
+     * Retrieve the objects and links updated since the last refresh.
+     *
+     * @param client The user
+     *
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public synchronized void refresh(Client client)
+        throws
+            ServerError,
+            DSOutOfServiceException
+    {
+        IQueryPrx qs = client.getQueryService();
+
+        long since = lastUpdate;
+
+        loadNodes(qs, "Project", since, projects, projectNames);
+        loadNodes(qs, "Dataset", since, datasets, datasetNames);
+        loadNodes(qs, "Image",   since, images,   imageNames);
+
+        loadLinks(qs, "ProjectDatasetLink", since, projects, datasets);
+        loadLinks(qs, "DatasetImageLink",   since, datasets, images);
+    }
+
+    /**
+     * Clear the snapshot and retrieve the whole hierarchy again.
+     *
+     * @param client The user
+     *
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public synchronized void reload(Client client)
+        throws
+            ServerError,
+            DSOutOfServiceException
+    {
+        projects.clear();
+        datasets.clear();
+        images.clear();
+        projectNames.clear();
+        datasetNames.clear();
+        imageNames.clear();
+        lastUpdate = 0L;
+
+        refresh(client);
+    }
+
+    /**
+     * Retrieve the objects of a type updated since the specified time and update the indexes.
+     *
+     * @param qs    Query service
+     * @param type  Object type
+     * @param since Time in milliseconds
+     * @param nodes Nodes of this type, by id
+     * @param names Ids of this type, by name
+     *
+     * @throws ServerError Server error
+     */
+    private void loadNodes(IQueryPrx            qs,
+                           String               type,
+                           long                 since,
+                           LongMap<Node>        nodes,
+                           Map<String, LongSet> names)
+        throws
+            ServerError
+    {
+        List<List<RType>> rows = qs.projection("select o.id, o.name, o.details.updateEvent.time from " + type + " as o " +
+                                               "where o.details.updateEvent.time >= :since", sinceParameter(since));
+
+        for(List<RType> row : rows) {
+            long    id   = ((RLong) row.get(0)).getValue();
+            RString name = (RString) row.get(1);
+            long    time = ((RTime) row.get(2)).getValue();
+
+            Node node = nodes.get(id);
+            if(node == null) {
+                node = new Node(this, id);
+                nodes.put(id, node);
+            }
+            else if(node.name != null) {
+                LongSet ids = names.get(node.name);
+                if(ids != null) {
+                    ids.remove(id);
+                    if(ids.isEmpty())
+                        names.remove(node.name);
+                }
+            }
+
+            node.name    = name == null ? null : name.getValue();
+            node.updated = time;
+
+            LongSet ids = names.get(node.name);
+            if(ids == null) {
+                ids = new LongSet();
+                names.put(node.name, ids);
+            }
+            ids.add(id);
+
+            lastUpdate = Math.max(lastUpdate, time);
+        }
+    }
+
+    /**
+     * Retrieve the links of a type updated since the specified time and update the adjacency.
+     *
+     * @param qs       Query service
+     * @param type     Link type
+     * @param since    Time in milliseconds
+     * @param parents  Parent nodes, by id
+     * @param children Child nodes, by id
+     *
+     * @throws ServerError Server error
+     */
+    private void loadLinks(IQueryPrx     qs,
+                           String        type,
+                           long          since,
+                           LongMap<Node> parents,
+                           LongMap<Node> children)
+        throws
+            ServerError
+    {
+        List<List<RType>> rows = qs.projection("select l.parent.id, l.child.id, l.details.updateEvent.time from " + type + " as l " +
+                                               "where l.details.updateEvent.time >= :since", sinceParameter(since));
+
+        for(List<RType> row : rows) {
+            long parentId = ((RLong) row.get(0)).getValue();
+            long childId  = ((RLong) row.get(1)).getValue();
+
+            Node parent = parents.get(parentId);
+            Node child  = children.get(childId);
+
+            if(parent != null && child != null) {
+                parent.children.add(childId);
+                child.parents.add(parentId);
+            }
+
+            lastUpdate = Math.max(lastUpdate, ((RTime) row.get(2)).getValue());
+        }
+    }
+
+    /**
+     * Create the query parameters for an update time.
+     *
+     * @param since Time in milliseconds
+     *
+     * @return the parameters
+     */
+    private static ParametersI sinceParameter(long since)
+    {
+        ParametersI param = new ParametersI();
+        param.add("since", omero.rtypes.rtime(since));
+        return param;
+    }
+
+    /**
+     * Return the ids associated to a name.
+     *
+     * @param names Ids by name
+     * @param name  Name searched
+     *
+     * @return sorted ids
+     */
+    private static long[] idsByName(Map<String, LongSet> names,
+                                    String               name)
+    {
+        LongSet ids = names.get(name);
+        return ids == null ? new long[0] : ids.toArray();
+    }
+
+    /**
+     * Return the ids of the children of a node.
+     *
+     * @param nodes Nodes by id
+     * @param id    Id of the parent
+     *
+     * @return sorted ids
+     */
+    private static long[] childIds(LongMap<Node> nodes,
+                                   long          id)
+    {
+        Node node = nodes.get(id);
+        return node == null ? new long[0] : node.children.toArray();
+    }
+
+
+
+
+    /**
+     * Constructor of the HierarchySnapshot class.
+     * Retrieve the whole hierarchy available to the user.
+     *
+     * @param client The user
+     *
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public HierarchySnapshot(Client client)
+        throws
+            ServerError,
+            DSOutOfServiceException
+    {
+        refresh(client);
+    }
+}
@@ -25,6 +25,9 @@ import java.util.concurrent.ExecutionException;
 
 import fr.igred.omero.Client;
 import fr.igred.omero.ImageContainer;
+import fr.igred.omero.ImagePager;
+import fr.igred.omero.ImageSummary;
+import fr.igred.omero.MetadataCache;
 import fr.igred.omero.sort.SortImageContainer;
 import fr.igred.omero.sort.SortTagAnnotationContainer;
 import fr.igred.omero.metadata.annotation.TagAnnotationContainer;
@@ -40,7 +43,9 @@ import omero.model.IObject;
 import omero.model.ProjectAnnotationLink;
 import omero.model.ProjectAnnotationLinkI;
 import omero.model.ProjectI;
+import omero.model.TagAnnotation;
 import omero.model.TagAnnotationI;
+import omero.sys.ParametersI;
 
 /**
  * Class containing a ProjectData
@@ -80,6 +85,16 @@ public class ProjectContainer {
         return project.getDescription();
     }
 
+    /**
+     * Get the id of the group containing the project
+     * 
+     * @return ProjectData group id
+     */
+    public Long getGroupId()
+    {
+        return project.getGroupId();
+    }
+
     /**
      * @return the ProjectData contained
      */
@@ -185,6 +200,30 @@ public class ProjectContainer {
         return r;
     }
 
+    /**
+     * Create multiple datasets in the project, sending the datasets and their links in batches.
+     * 
+     * @param client      The user
+     * @param names       Names of the datasets
+     * @param description Description of the datasets, can be null
+     * @param batchSize   Maximum number of datasets sent per request
+     * 
+     * @return The ids of the datasets created, in the order of the names
+     * 
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     * @throws ServerError             Server error
+     */
+    public List<Long> addDatasets(Client       client, 
+                                  List<String> names, 
+                                  String       description, 
+                                  int          batchSize)
+        throws 
+            DSOutOfServiceException,
+            ServerError
+    {
+        return client.createDatasets(project.getId(), names, description, batchSize);
+    }
+
     /**
      * Private function.
      * Add a dataset to the project.
@@ -207,6 +246,7 @@ public class ProjectContainer {
     {
         datasetData.setProjects(Collections.singleton(project));
         DataObject r = client.getDm().saveAndReturnObject(client.getCtx(), datasetData);
+        client.getCache().invalidate(MetadataCache.Type.PROJECT, MetadataCache.Type.DATASET);
 
         return r;
     }
@@ -291,7 +331,8 @@ public class ProjectContainer {
         link.setChild(tagData.asAnnotation());
         link.setParent(new ProjectI(project.getId(), false));
 
-        IObject r = client.getDm().saveAndReturnObject(client.getCtx(), link);
+        IObject r = client.saveObject(link);
+        client.getCache().invalidate(MetadataCache.Type.ANNOTATION, MetadataCache.Type.TAG);
         return r;
     }
 
@@ -317,7 +358,8 @@ public class ProjectContainer {
         ProjectAnnotationLink link = new ProjectAnnotationLinkI();
         link.setChild(new TagAnnotationI(id, false));
         link.setParent(new ProjectI(project.getId(), false));
-        IObject r = client.getDm().saveAndReturnObject(client.getCtx(), link);
+        IObject r = client.saveObject(link);
+        client.getCache().invalidate(MetadataCache.Type.ANNOTATION, MetadataCache.Type.TAG);
 
         return r;
     }
@@ -402,15 +444,24 @@ public class ProjectContainer {
         List<Class<? extends AnnotationData>> types = new ArrayList<Class<? extends AnnotationData>>();
         types.add(TagAnnotationData.class);
 
-        List<AnnotationData> annotations = client.getMetadata().getAnnotations(client.getCtx(), project, types, userIds);
+        String key = "Project:" + project.getId() + ":" + TagAnnotationData.class.getSimpleName();
+
+        List<AnnotationData> annotations = client.getCache().get(client, MetadataCache.Type.ANNOTATION, key);
+        if(annotations == null) {
+            annotations = client.getMetadata().getAnnotations(client.getCtx(), project, types, userIds);
+            if(annotations != null)
+                annotations = Collections.unmodifiableList(annotations);
+            client.getCache().put(client, MetadataCache.Type.ANNOTATION, key, annotations);
+        }
 
         List<TagAnnotationContainer> tags = new ArrayList<TagAnnotationContainer>();
 
         if(annotations != null) {
             for (AnnotationData annotation : annotations) {
-                TagAnnotationData tagAnnotation = (TagAnnotationData) annotation;
+                // The cached tags are copied so that changes made by the caller do not reach the cache
+                TagAnnotation tagAnnotation = (TagAnnotation) annotation.asIObject().clone();
                 
-                tags.add(new TagAnnotationContainer(tagAnnotation));
+                tags.add(new TagAnnotationContainer(new TagAnnotationData(tagAnnotation)));
             }
         }
 
@@ -469,6 +520,55 @@ public class ProjectContainer {
         return purge(imagesContainer);
     }
 
+    /**
+     * Get all images in the project available from OMERO, page by page.
+     * The images are sorted by id, appear only once, and only the current and next pages are held in memory.
+     * 
+     * @param client   The user
+     * @param pageSize Number of images retrieved per page
+     * 
+     * @return ImagePager iterating over the images
+     */
+    public ImagePager getImagesPaged(Client client, 
+                                     int    pageSize)
+    {
+        ParametersI param = new ParametersI();
+        param.addLong("project", project.getId());
+
+        return new ImagePager(client, 
+                              " and i.id in (select link.child.id from DatasetImageLink as link " + 
+                              "where link.parent.id in (select pdl.child.id from ProjectDatasetLink as pdl " + 
+                              "where pdl.parent.id = :project))", 
+                              param, 
+                              pageSize);
+    }
+
+    /**
+     * Get the summaries of all images in the project.
+     * Only the id, name, acquisition date, dataset and dimensions are retrieved.
+     * An image in several datasets of the project has a single summary, with the smallest of their ids.
+     * 
+     * @param client The user
+     * 
+     * @return ImageSummary list sorted by image id
+     * 
+     * @throws ServerError             Server error
+     * @throws DSOutOfServiceException Cannot connect to OMERO
+     */
+    public List<ImageSummary> getImageSummaries(Client client)
+        throws 
+            ServerError,
+            DSOutOfServiceException
+    {
+        ParametersI param = new ParametersI();
+        param.addLong("project", project.getId());
+
+        return ImageSummary.load(client, 
+                                 "l.parent.id in (select pdl.child.id from ProjectDatasetLink as pdl " + 
+                                 "where pdl.parent.id = :project)", 
+                                 param);
+    }
+
     /**
      * Get all images in the project with a certain from OMERO.
      * 
@@ -0,0 +1,264 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Map with primitive long keys, using open addressing with linear probing.
+ * Avoids boxing the ids when indexing large numbers of objects.
+ *
+ * @param <V> Type of the values
+ */
+public class LongMap<V> {
+
+    ///Keys of the map
+    private long[]    keys;
+    ///Values of the map
+    private Object[]  values;
+    ///Slots in use
+    private boolean[] filled;
+    ///Number of entries
+    private int       size;
+
+    /**
+     * Return the number of entries in the map.
+     *
+     * @return size
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return true if the map is empty
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Check if a key is in the map.
+     *
+     * @param key Key searched
+     *
+     * @return true if the key is in the map
+     */
+    public boolean containsKey(long key)
+    {
+        return filled[find(key)];
+    }
+
+    /**
+     * Return the value associated to a key.
+     *
+     * @param key Key searched
+     *
+     * @return the value, null if the key is not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        int slot = find(key);
+        return filled[slot] ? (V) values[slot] : null;
+    }
+
+    /**
+     * Associate a value to a key.
+     *
+     * @param key   Key
+     * @param value Value
+     *
+     * @return the previous value, null if the key was not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key,
+                 V    value)
+    {
+        int slot = find(key);
+        if(filled[slot]) {
+            V previous = (V) values[slot];
+            values[slot] = value;
+            return previous;
+        }
+
+        keys[slot]   = key;
+        values[slot] = value;
+        filled[slot] = true;
+        size++;
+
+        if(size * 2 > keys.length)
+            resize(keys.length * 2);
+
+        return null;
+    }
+
+    /**
+     * Remove a key from the map.
+     *
+     * @param key Key to remove
+     *
+     * @return the value removed, null if the key was not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key)
+    {
+        int slot = find(key);
+        if(!filled[slot])
+            return null;
+
+        V previous = (V) values[slot];
+        filled[slot] = false;
+        values[slot] = null;
+        size--;
+
+        int mask = keys.length - 1;
+        int next = (slot + 1) & mask;
+        while(filled[next]) {
+            long   k = keys[next];
+            Object v = values[next];
+            filled[next] = false;
+            values[next] = null;
+
+            int target = find(k);
+            keys[target]   = k;
+            values[target] = v;
+            filled[target] = true;
+
+            next = (next + 1) & mask;
+        }
+
+        return previous;
+    }
+
+    /**
+     * Remove all entries from the map.
+     */
+    public void clear()
+    {
+        Arrays.fill(filled, false);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Return the keys of the map, sorted.
+     *
+     * @return sorted array of keys
+     */
+    public long[] keys()
+    {
+        long[] result = new long[size];
+        int n = 0;
+
+        for(int i = 0; i < keys.length; i++)
+            if(filled[i])
+                result[n++] = keys[i];
+
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Return the values of the map, in no particular order.
+     *
+     * @return List of values
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values()
+    {
+        List<V> result = new ArrayList<V>(size);
+
+        for(int i = 0; i < keys.length; i++)
+            if(filled[i])
+                result.add((V) values[i]);
+
+        return result;
+    }
+
+    /**
+     * Return the slot containing the key, or the empty slot where it should be inserted.
+     *
+     * @param key Key searched
+     *
+     * @return slot index
+     */
+    private int find(long key)
+    {
+        int mask = keys.length - 1;
+        int slot = LongSet.hash(key) & mask;
+
+        while(filled[slot] && keys[slot] != key)
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+
+    /**
+     * Change the capacity of the map.
+     *
+     * @param capacity New capacity, a power of 2
+     */
+    private void resize(int capacity)
+    {
+        long[]    oldKeys   = keys;
+        Object[]  oldValues = values;
+        boolean[] oldFilled = filled;
+
+        keys   = new long[capacity];
+        values = new Object[capacity];
+        filled = new boolean[capacity];
+
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldFilled[i]) {
+                int slot = find(oldKeys[i]);
+                keys[slot]   = oldKeys[i];
+                values[slot] = oldValues[i];
+                filled[slot] = true;
+            }
+        }
+    }
+
+    /**
+     * Constructor of the LongMap class.
+     *
+     * @param expected Expected number of entries
+     */
+    public LongMap(int expected)
+    {
+        int capacity = 4;
+        while(capacity < expected * 2)
+            capacity *= 2;
+
+        keys   = new long[capacity];
+        values = new Object[capacity];
+        filled = new boolean[capacity];
+    }
+
+    /**
+     * Constructor of the LongMap class.
+     */
+    public LongMap()
+    {
+        this(4);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *  Copyright (C) 2020 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.util;
+
+import java.util.Arrays;
+
+/**
+ * Set of primitive longs, using open addressing with linear probing.
+ * Avoids boxing the ids when indexing large numbers of objects.
+ */
+public class LongSet {
+
+    ///Keys of the set
+    private long[]    keys;
+    ///Slots in use
+    private boolean[] filled;
+    ///Number of elements
+    private int       size;
+
+    /**
+     * Return the number of elements in the set.
+     *
+     * @return size
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return true if the set is empty
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Check if a value is in the set.
+     *
+     * @param value Value searched
+     *
+     * @return true if the value is in the set
+     */
+    public boolean contains(long value)
+    {
+        return filled[find(value)];
+    }
+
+    /**
+     * Add a value to the set.
+     *
+     * @param value Value to add
+     *
+     * @return true if the value was not already in the set
+     */
+    public boolean add(long value)
+    {
+        int slot = find(value);
+        if(filled[slot])
+            return false;
+
+        keys[slot]   = value;
+        filled[slot] = true;
+        size++;
+
+        if(size * 2 > keys.length)
+            resize(keys.length * 2);
+
+        return true;
+    }
+
+    /**
+     * Add all values of an array to the set.
+     *
+     * @param values Values to add
+     */
+    public void addAll(long... values)
+    {
+        for(long value : values)
+            add(value);
+    }
+
+    /**
+     * Remove a value from the set.
+     *
+     * @param value Value to remove
+     *
+     * @return true if the value was in the set
+     */
+    public boolean remove(long value)
+    {
+        int slot = find(value);
+        if(!filled[slot])
+            return false;
+
+        filled[slot] = false;
+        size--;
+
+        int mask = keys.length - 1;
+        int next = (slot + 1) & mask;
+        while(filled[next]) {
+            long key = keys[next];
+            filled[next] = false;
+
+            int target = find(key);
+            keys[target]   = key;
+            filled[target] = true;
+
+            next = (next + 1) & mask;
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove all values from the set.
+     */
+    public void clear()
+    {
+        Arrays.fill(filled, false);
+        size = 0;
+    }
+
+    /**
+     * Return the values of the set, sorted.
+     *
+     * @return sorted array of values
+     */
+    public long[] toArray()
+    {
+        long[] values = new long[size];
+        int n = 0;
+
+        for(int i = 0; i < keys.length; i++)
+            if(filled[i])
+                values[n++] = keys[i];
+
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * Return the slot containing the value, or the empty slot where it should be inserted.
+     *
+     * @param value Value searched
+     *
+     * @return slot index
+     */
+    private int find(long value)
+    {
+        int mask = keys.length - 1;
+        int slot = hash(value) & mask;
+
+        while(filled[slot] && keys[slot] != value)
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+
+    /**
+     * Change the capacity of the set.
+     *
+     * @param capacity New capacity, a power of 2
+     */
+    private void resize(int capacity)
+    {
+        long[]    oldKeys   = keys;
+        boolean[] oldFilled = filled;
+
+        keys   = new long[capacity];
+        filled = new boolean[capacity];
+
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldFilled[i]) {
+                int slot = find(oldKeys[i]);
+                keys[slot]   = oldKeys[i];
+                filled[slot] = true;
+            }
+        }
+    }
+
+    /**
+     * Mix the bits of a long value.
+     *
+     * @param value Value to hash
+     *
+     * @return hash
+     */
+    static int hash(long value)
+    {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Constructor of the LongSet class.
+     *
+     * @param expected Expected number of elements
+     */
+    public LongSet(int expected)
+    {
+        int capacity = 4;
+        while(capacity < expected * 2)
+            capacity *= 2;
+
+        keys   = new long[capacity];
+        filled = new boolean[capacity];
+    }
+
+    /**
+     * Constructor of the LongSet class.
+     */
+    public LongSet()
+    {
+        this(4);
+    }
+}
@@ -20,16 +20,33 @@ package fr.igred.omero;
 import java.io.File;
 import java.io.FileWriter;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import fr.igred.omero.metadata.ROIContainer;
+import fr.igred.omero.metadata.ROIPager;
+import fr.igred.omero.metadata.ROIRasterizer;
+import fr.igred.omero.metadata.ROIStatistics;
+import fr.igred.omero.metadata.ShapeFilter;
+import fr.igred.omero.metadata.ShapeIndex;
 import fr.igred.omero.metadata.TableContainer;
+import fr.igred.omero.metadata.annotation.AnnotationQuery;
+import fr.igred.omero.metadata.annotation.KeyValueIndex;
 import fr.igred.omero.metadata.annotation.MapAnnotationContainer;
 import fr.igred.omero.metadata.annotation.TagAnnotationContainer;
 import fr.igred.omero.repository.DatasetContainer;
+import fr.igred.omero.repository.HierarchySnapshot;
 import fr.igred.omero.repository.ProjectContainer;
 
 import ij.ImagePlus;
@@ -37,11 +54,24 @@ import ij.ImagePlus;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import omero.cmd.Delete2;
+import omero.cmd.DuplicateResponse;
+import omero.cmd.Response;
 import omero.gateway.exception.DSOutOfServiceException;
 import omero.gateway.model.ImageData;
+import omero.gateway.model.EllipseData;
+import omero.gateway.model.LineData;
+import omero.gateway.model.PointData;
 import omero.gateway.model.RectangleData;
 import omero.gateway.model.ShapeData;
+import omero.gateway.model.TagAnnotationData;
+import omero.model.DatasetI;
+import omero.model.IObject;
+import omero.model.MapAnnotationI;
 import omero.model.NamedValue;
+import omero.model.ProjectI;
+import omero.model.TagAnnotationI;
+import omero.sys.ParametersI;
 
 public class AppTest 
     extends TestCase
@@ -1788,4 +1818,1481 @@ public class AppTest
 
         root.deleteFile(id);
     }
+
+    public void testGetImagesPaged()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        ImagePager pager = root.getImagesPaged(3);
+
+        List<ImageContainer> images = new ArrayList<ImageContainer>();
+        while(pager.hasNext())
+            images.add(pager.next());
+
+        assertEquals(4, images.size());
+
+        for(int i = 1; i < images.size(); i++) {
+            assert(images.get(i - 1).getId() < images.get(i).getId());
+        }
+    }
+
+    public void testGetImagesPagedInDataset()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        DatasetContainer dataset = root.getDataset(1L);
+
+        assertEquals(3, dataset.getImagesPaged(root, 2).stream().count());
+    }
+
+    public void testGetImagesPagedInProject()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        ProjectContainer project = root.getProject(2L);
+
+        assertEquals(project.getImages(root).size(), project.getImagesPaged(root, 1).stream().count());
+    }
+
+    public void testGetImageSummaries()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        List<ImageSummary> summaries = root.getDataset(1L).getImageSummaries(root);
+
+        assertEquals(3, summaries.size());
+
+        for(ImageSummary summary : summaries) {
+            ImageContainer image = root.getImage(summary.getId());
+
+            assertEquals(image.getName(), summary.getName());
+            assertEquals(1L, summary.getDatasetId());
+            assertEquals(image.getPixels().getSizeZ(), summary.getSizeZ());
+            assertEquals(image.getPixels().getSizeT(), summary.getSizeT());
+        }
+    }
+
+    public void testImageSummariesMatchImages()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        DatasetContainer dataset = root.getDataset(2L);
+        ImageContainer   image   = root.getImage(1L);
+        dataset.addImage(root, image);
+
+        List<ImageContainer> images    = root.getImages();
+        List<ImageSummary>   summaries = root.getImageSummaries();
+
+        List<Long> ids = new ArrayList<Long>(images.size());
+        for(ImageContainer i : images)
+            ids.add(i.getId());
+
+        assertEquals(images.size(), summaries.size());
+        for(ImageSummary summary : summaries)
+            assertTrue(ids.contains(summary.getId()));
+
+        ParametersI param = new ParametersI();
+        param.addLong("dataset", 2L);
+        param.addLong("image", 1L);
+        root.deleteObjects(root.getQueryService().findAllByQuery("select l from DatasetImageLink as l " +
+                                                                 "where l.parent.id = :dataset and l.child.id = :image",
+                                                                 param), 0);
+    }
+
+    public void testImageSummariesFootprint()
+        throws Exception
+    {
+        if(!Boolean.getBoolean("benchmark"))
+            return;
+
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        Runtime runtime = Runtime.getRuntime();
+
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        List<ImageContainer> images = root.getImages();
+        System.gc();
+        long full = runtime.totalMemory() - runtime.freeMemory() - before;
+
+        System.gc();
+        before = runtime.totalMemory() - runtime.freeMemory();
+        List<ImageSummary> summaries = root.getImageSummaries();
+        System.gc();
+        long slim = runtime.totalMemory() - runtime.freeMemory() - before;
+
+        assertEquals(images.size(), summaries.size());
+        assertTrue(slim < full);
+    }
+
+    public void testHierarchySnapshot()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        HierarchySnapshot snapshot = root.getHierarchySnapshot();
+
+        assertEquals(2, snapshot.getProjectCount());
+        assertEquals(3, snapshot.getDatasetCount());
+        assertEquals(2, snapshot.getDatasetIds(2L).length);
+        assertEquals(3, snapshot.getImageIds(1L).length);
+        assertEquals(2, snapshot.getDatasetIds("TestDataset").length);
+
+        long[] ids = snapshot.resolve("TestProject", 
+                                      "TestDataset", 
+                                      "8bit-unsigned&pixelType=uint8&sizeZ=3&sizeC=5&sizeT=7&sizeX=512&sizeY=512.fake");
+        assertEquals(3, ids.length);
+    }
+
+    public void testHierarchySnapshotRefresh()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        HierarchySnapshot snapshot = root.getHierarchySnapshot();
+
+        ProjectContainer project = root.getProject(2L);
+        Long datasetId = project.addDataset(root, "SnapshotDataset", "Dataset for snapshot").getId();
+
+        try {
+            snapshot.refresh(root);
+
+            assertEquals(4, snapshot.getDatasetCount());
+            assertEquals(3, snapshot.getDatasetIds(2L).length);
+            assertEquals(datasetId.longValue(), snapshot.getDatasetIds("SnapshotDataset")[0]);
+        }
+        finally {
+            root.deleteDataset(datasetId);
+        }
+    }
+
+    public void testMetadataCache()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        MetadataCache cache = root.getCache();
+        cache.setTimeToLive(60000L);
+
+        assertEquals(2, root.getProjects().size());
+        assertEquals(2, root.getProjects().size());
+        assertEquals(1L, cache.getMisses(MetadataCache.Type.PROJECT));
+        assertEquals(1L, cache.getHits(MetadataCache.Type.PROJECT));
+
+        ImageContainer image = root.getImage(1L);
+        assertEquals(2, image.getTags(root).size());
+        assertEquals(2, image.getTags(root).size());
+        assertEquals(1L, cache.getHits(MetadataCache.Type.ANNOTATION));
+
+        int tags = root.getTags().size();
+
+        TagAnnotationContainer tag = new TagAnnotationContainer(root, "CacheTag", "Tag for cache");
+        assertEquals(0, cache.size(MetadataCache.Type.TAG));
+
+        try {
+            image.addTag(root, tag);
+            assertEquals(0, cache.size(MetadataCache.Type.ANNOTATION));
+            assertEquals(3, image.getTags(root).size());
+            assertEquals(tags + 1, root.getTags().size());
+        }
+        finally {
+            root.deleteTag(tag);
+        }
+
+        assertEquals(tags, root.getTags().size());
+        assertEquals(2, image.getTags(root).size());
+    }
+
+    public void testMetadataCacheExpiration()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        MetadataCache cache = root.getCache();
+        cache.setTimeToLive(MetadataCache.Type.DATASET, 100L);
+        cache.setMaxSize(MetadataCache.Type.DATASET, 1);
+
+        root.getDatasets("TestDataset");
+        root.getDatasets();
+        assertEquals(1, cache.size(MetadataCache.Type.DATASET));
+
+        root.getDatasets();
+        assertEquals(1L, cache.getHits(MetadataCache.Type.DATASET));
+
+        Thread.sleep(200L);
+
+        assertEquals(3, root.getDatasets().size());
+        assertEquals(1L, cache.getHits(MetadataCache.Type.DATASET));
+        assertEquals(3L, cache.getMisses(MetadataCache.Type.DATASET));
+    }
+
+    public void testClientConcurrentAccess()
+        throws Exception
+    {
+        final Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        ImageContainer reference = root.getImage(1L);
+        int expected = reference.getTags(root).size() + reference.getKeyValuePairs(root).size() + root.getProjects().size();
+
+        int nThreads = 16;
+        final int nIterations = 50;
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>(nThreads);
+
+        for(int i = 0; i < nThreads; i++) {
+            results.add(pool.submit(new Callable<Integer>() {
+                public Integer call()
+                    throws Exception
+                {
+                    int count = 0;
+                    for(int j = 0; j < nIterations; j++) {
+                        ImageContainer image = root.getImage(1L);
+                        count += image.getTags(root).size();
+                        count += image.getKeyValuePairs(root).size();
+                        count += root.getProjects().size();
+                        root.getQueryService();
+                        root.getRoiFacility();
+                        root.getTablesFacilitity();
+                    }
+                    return count;
+                }
+            }));
+        }
+
+        pool.shutdown();
+
+        for(Future<Integer> result : results)
+            assertEquals(nIterations * expected, result.get().intValue());
+    }
+
+    public void testClientPool()
+        throws Exception
+    {
+        final ClientPool pool = new ClientPool("omero", 4064, "root", "omero", 3L, 4);
+
+        try {
+            assertEquals(4, pool.getOpenSessions());
+
+            ExecutorService executor = Executors.newFixedThreadPool(16);
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+            for(int i = 0; i < 32; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    public Integer call()
+                        throws Exception
+                    {
+                        return pool.withClient(new ClientPool.Task<Integer>() {
+                            public Integer run(Client client)
+                                throws Exception
+                            {
+                                return client.getImage(1L).getTags(client).size();
+                            }
+                        });
+                    }
+                }));
+            }
+
+            executor.shutdown();
+
+            for(Future<Integer> result : results)
+                assertEquals(2, result.get().intValue());
+
+            long total = 0;
+            for(int i = 0; i < pool.getSize(); i++) {
+                assertEquals(0, pool.getInFlight()[i]);
+                total += pool.getCalls()[i];
+            }
+            assertEquals(32, total);
+
+            pool.setIdleTimeout(0L);
+            pool.checkSessions();
+            assertEquals(0, pool.getOpenSessions());
+
+            Client client = pool.borrow();
+            try {
+                assertEquals(1, pool.getOpenSessions());
+                assertEquals(2, client.getImage(1L).getTags(client).size());
+            }
+            finally {
+                pool.release(client);
+            }
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    public void testReconnect()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        assertTrue(root.ping());
+
+        root.getGateway().disconnect();
+        assertFalse(root.ping());
+
+        int size = root.withReconnect(new ClientPool.Task<Integer>() {
+            public Integer run(Client client)
+                throws Exception
+            {
+                return client.getImage(1L).getTags(client).size();
+            }
+        });
+
+        assertEquals(2, size);
+        assertEquals(1L, root.getReconnectCount());
+        assertTrue(root.ping());
+    }
+
+    public void testKeepAlive()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        root.startKeepAlive(100, TimeUnit.MILLISECONDS);
+        try {
+            root.getGateway().disconnect();
+            Thread.sleep(2000);
+
+            assertEquals(1L, root.getReconnectCount());
+            assertEquals(2, root.getImage(1L).getTags(root).size());
+        }
+        finally {
+            root.disconnect();
+        }
+    }
+
+    public void testJoinSession()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        String sessionKey = root.getSessionKey();
+
+        Client joined = new Client();
+        joined.joinSession("omero", 4064, sessionKey);
+
+        assertEquals(root.getId(), joined.getId());
+        assertEquals(sessionKey, joined.getSessionKey());
+        assertEquals(2, joined.getImage(1L).getTags(joined).size());
+    }
+
+    public void testSessionCache()
+        throws Exception
+    {
+        File file = File.createTempFile("sessions", ".properties");
+        file.delete();
+
+        SessionCache sessions = new SessionCache(file);
+
+        try {
+            Client first = new Client();
+            first.connect("omero", 4064, "root", "omero", 3L, sessions);
+
+            String sessionKey = first.getSessionKey();
+            assertEquals(sessionKey, sessions.get("omero", 4064, "root", 3L));
+            first.disconnect();
+
+            Client second = new Client();
+            second.connect("omero", 4064, "root", "omero", 3L, sessions);
+            assertEquals(sessionKey, second.getSessionKey());
+            assertEquals(2, second.getImage(1L).getTags(second).size());
+            second.disconnect();
+
+            sessions.put("omero", 4064, "root", 3L, "expired");
+
+            Client third = new Client();
+            third.connect("omero", 4064, "root", "omero", 3L, sessions);
+            assertFalse("expired".equals(third.getSessionKey()));
+            assertEquals(third.getSessionKey(), sessions.get("omero", 4064, "root", 3L));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    public void testGetImagesAllGroups()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        assertTrue(root.getUserGroupIds().contains(3L));
+
+        List<ImageContainer> images = root.getImagesAllGroups();
+
+        int inGroup = 0;
+        for(ImageContainer image : images)
+            if(image.getGroupId() == 3L)
+                inGroup++;
+
+        assertEquals(root.getImages().size(), inGroup);
+    }
+
+    public void testGetTagsAllGroups()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        root.setGroupParallelism(2);
+
+        List<TagAnnotationContainer> tags = root.getTagsAllGroups();
+
+        int inGroup = 0;
+        for(TagAnnotationContainer tag : tags)
+            if(tag.getGroupId() == 3L)
+                inGroup++;
+
+        assertEquals(root.getTags().size(), inGroup);
+        assertEquals(root.getProjects().size(), root.inGroup(3L).getProjects().size());
+    }
+
+    public void testSudoCache()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        Client test = root.SudoGetUser("testUser");
+
+        assertSame(test, root.SudoGetUser("testUser"));
+        assertSame(test, root.SudoGetUser(test.getId()));
+
+        root.clearSudoUsers();
+        assertTrue(root.prefetchSudoUsers() >= 2);
+
+        Client prefetched = root.SudoGetUser("testUser");
+        assertNotSame(test, prefetched);
+        assertEquals(test.getId(), prefetched.getId());
+        assertEquals(test.getImages().size(), prefetched.getImages().size());
+    }
+
+    public void testDeleteObjects()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        ProjectContainer project = root.getProject(2L);
+
+        List<IObject> objects = new ArrayList<IObject>();
+        for(int i = 0; i < 3; i++) {
+            Long id = project.addDataset(root, "DeleteDataset" + i, "Dataset to delete").getId();
+            objects.add(new DatasetI(id, false));
+        }
+
+        TagAnnotationContainer tag = new TagAnnotationContainer(root, "DeleteTag", "Tag to delete");
+        objects.add(new TagAnnotationI(tag.getId(), false));
+
+        assertEquals(6, root.getDatasets().size());
+
+        final List<Integer> steps = new ArrayList<Integer>();
+        Response response = root.deleteObjectsAsync(objects, 60000L, new CommandWatcher.ProgressListener() {
+            public void progress(int step, int total)
+            {
+                steps.add(step);
+            }
+        }).get();
+
+        assertNotNull(response);
+        assertFalse(steps.isEmpty());
+        assertEquals(3, root.getDatasets().size());
+        assertEquals(3, root.getTags().size());
+    }
+
+    public void testDuplicateAndMove()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        TagAnnotationContainer tag = new TagAnnotationContainer(root, "DuplicateTag", "Tag to duplicate");
+
+        List<IObject> objects = new ArrayList<IObject>();
+        objects.add(new TagAnnotationI(tag.getId(), false));
+
+        DuplicateResponse response = (DuplicateResponse) root.duplicate(objects, 60000L).get();
+        List<Long> copies = new ArrayList<Long>();
+        for(List<Long> ids : response.duplicates.values())
+            copies.addAll(ids);
+        assertEquals(1, copies.size());
+        assertEquals(5, root.getTags().size());
+
+        objects.add(new TagAnnotationI(copies.get(0), false));
+        root.moveToGroup(objects, 3L, 60000L).get();
+
+        root.deleteObjects(objects, 60000L);
+        assertEquals(3, root.getTags().size());
+    }
+
+    public void testTagImages()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        List<ImageContainer> images = root.getDataset(1L).getImages(root);
+
+        TagAnnotationContainer tag1 = new TagAnnotationContainer(root, "BulkTag1", "Bulk tag");
+        TagAnnotationContainer tag2 = new TagAnnotationContainer(root, "BulkTag2", "Bulk tag");
+
+        images.get(0).addTag(root, tag1);
+
+        List<TagAnnotationContainer> tags = new ArrayList<TagAnnotationContainer>();
+        tags.add(tag1);
+        tags.add(tag2);
+
+        List<Long> links = root.tagImages(images, tags);
+        assertEquals(images.size() * 2 - 1, links.size());
+        assertEquals(0, root.tagImages(images, tags).size());
+
+        assertEquals(images.size(), root.getImagesTagged(tag1).size());
+        assertEquals(images.size(), root.getImagesTagged(tag2).size());
+
+        root.deleteTag(tag1);
+        root.deleteTag(tag2);
+    }
+
+    public void testAddKeyValuePairsBulk()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        List<ImageContainer> images = root.getDataset(1L).getImages(root);
+
+        Map<Long, List<NamedValue>> pairs = new HashMap<Long, List<NamedValue>>();
+        for(ImageContainer image : images) {
+            List<NamedValue> result = new ArrayList<NamedValue>();
+            result.add(new NamedValue("BulkKey1", "Value1"));
+            result.add(new NamedValue("BulkKey2", "Value2"));
+            pairs.put(image.getId(), result);
+        }
+
+        Map<Long, Long> annotations = root.addKeyValuePairs(pairs, "test.bulk");
+        assertEquals(images.size(), annotations.size());
+
+        for(List<NamedValue> result : pairs.values()) {
+            result.clear();
+            result.add(new NamedValue("BulkKey2", "Value3"));
+            result.add(new NamedValue("BulkKey3", "Value4"));
+        }
+
+        assertEquals(annotations, root.addKeyValuePairs(pairs, "test.bulk", true));
+
+        for(ImageContainer image : images) {
+            assertEquals("Value1", image.getValue(root, "BulkKey1"));
+            assertEquals("Value3", image.getValue(root, "BulkKey2"));
+            assertEquals("Value4", image.getValue(root, "BulkKey3"));
+        }
+
+        List<IObject> objects = new ArrayList<IObject>();
+        for(Long id : annotations.values())
+            objects.add(new MapAnnotationI(id, false));
+        root.deleteObjects(objects, 60000L);
+    }
+
+    public void testAnnotationQuery()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        List<ImageContainer> images = root.getDataset(1L).getImages(root);
+
+        Map<Long, List<TagAnnotationContainer>> tags  = root.getImagesTags(images);
+        Map<Long, List<NamedValue>>             pairs = root.getImagesKeyValuePairs(images);
+        assertEquals(images.size(), tags.size());
+        assertEquals(images.size(), pairs.size());
+
+        for(ImageContainer image : images) {
+            assertEquals(image.getTags(root).size(), tags.get(image.getId()).size());
+            assertEquals(image.getKeyValuePairs(root).size(), pairs.get(image.getId()).size());
+        }
+
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(1L);
+
+        AnnotationQuery query = new AnnotationQuery("Image");
+        query.setBatchSize(1);
+        query.setNamespaces("no.such.namespace");
+        assertTrue(query.getAnnotations(root, ids).get(1L).isEmpty());
+    }
+
+    public void testKeyValueIndex()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        DatasetContainer     dataset = root.getDataset(1L);
+        List<ImageContainer> images  = dataset.getImages(root);
+
+        Map<Long, List<NamedValue>> pairs = new HashMap<Long, List<NamedValue>>();
+        for(int i = 0; i < images.size(); i++) {
+            List<NamedValue> result = new ArrayList<NamedValue>();
+            result.add(new NamedValue("IndexSize", String.valueOf(10 * i)));
+            result.add(new NamedValue("IndexParity", i % 2 == 0 ? "even" : "odd"));
+            pairs.put(images.get(i).getId(), result);
+        }
+        Map<Long, Long> annotations = root.addKeyValuePairs(pairs, "test.index");
+
+        KeyValueIndex index = new KeyValueIndex(root, dataset);
+        assertEquals(images.size(), index.size());
+        assertEquals(images.size(), index.getImagesKey("IndexSize").length);
+        assertEquals(0, index.getImagesKey("NoSuchKey").length);
+
+        long[] even  = index.getImagesPairKeyValue("IndexParity", "even");
+        long[] small = index.getImagesInRange("IndexSize", 0, 15);
+        assertEquals(2, small.length);
+        assertEquals(1, KeyValueIndex.and(even, small).length);
+        assertEquals(images.size(), KeyValueIndex.or(even, small).length);
+
+        Long first = images.get(0).getId();
+        Map<Long, List<NamedValue>> update = new HashMap<Long, List<NamedValue>>();
+        List<NamedValue> result = new ArrayList<NamedValue>();
+        result.add(new NamedValue("IndexSize", "100"));
+        update.put(first, result);
+        root.addKeyValuePairs(update, "test.index", true);
+
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(first);
+        index.refresh(root, ids);
+        assertEquals(1, index.getImagesInRange("IndexSize", 0, 15).length);
+        assertEquals(first.longValue(), index.getImagesInRange("IndexSize", 50, 150)[0]);
+
+        List<IObject> objects = new ArrayList<IObject>();
+        for(Long id : annotations.values())
+            objects.add(new MapAnnotationI(id, false));
+        root.deleteObjects(objects, 60000L);
+    }
+
+    public void testGetOrCreateTags()
+        throws Exception
+    {
+        final Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        int count = root.getTags().size();
+
+        TagAnnotationContainer existing = new TagAnnotationContainer(root, "FindTag", "Existing tag");
+
+        final List<String> names = new ArrayList<String>();
+        names.add("FindTag");
+        names.add("CreateTag1");
+        names.add("CreateTag2");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Map<String, Long>>> futures = new ArrayList<Future<Map<String, Long>>>();
+        for(int i = 0; i < 4; i++) {
+            futures.add(executor.submit(new Callable<Map<String, Long>>() {
+                public Map<String, Long> call()
+                    throws Exception
+                {
+                    return root.getOrCreateTags(names, "Created tag");
+                }
+            }));
+        }
+        executor.shutdown();
+
+        Map<String, Long> ids = futures.get(0).get();
+        for(Future<Map<String, Long>> future : futures)
+            assertEquals(ids, future.get());
+
+        assertEquals(existing.getId(), ids.get("FindTag"));
+        assertEquals(count + 3, root.getTags().size());
+        assertEquals(ids, root.getOrCreateTags(names, null));
+
+        for(Long id : ids.values())
+            root.deleteTag(id);
+        assertEquals(count, root.getTags().size());
+    }
+
+    public void testBulkDatasets()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        List<String> names = new ArrayList<String>();
+        names.add("BulkProject");
+        List<Long> projects = root.createProjects(names, "Bulk project", 10);
+        assertEquals(1, projects.size());
+
+        ProjectContainer project = root.getProject(projects.get(0));
+
+        names.clear();
+        for(int i = 0; i < 5; i++)
+            names.add("BulkDataset" + i);
+        List<Long> datasets = project.addDatasets(root, names, null, 2);
+        assertEquals(5, datasets.size());
+        assertEquals(5, root.getProject(projects.get(0)).getDatasets().size());
+
+        List<ImageContainer> images = root.getDataset(1L).getImages(root);
+        DatasetContainer     dataset = root.getDataset(datasets.get(0));
+
+        assertEquals(images.size(), dataset.addImages(root, images, 2).size());
+        assertEquals(0, dataset.addImages(root, images, 2).size());
+
+        Map<Long, List<Long>> content = new HashMap<Long, List<Long>>();
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(images.get(0).getId());
+        content.put(datasets.get(0), ids);
+        content.put(datasets.get(1), ids);
+        assertEquals(1, root.addImagesToDatasets(content, 10).size());
+        assertEquals(images.size(), dataset.getImages(root).size());
+
+        List<IObject> objects = new ArrayList<IObject>();
+        for(Long id : datasets)
+            objects.add(new DatasetI(id, false));
+        objects.add(new ProjectI(projects.get(0), false));
+        root.deleteObjects(objects, 60000L);
+
+        assertEquals(images.size(), root.getDataset(1L).getImages(root).size());
+    }
+
+    public void testWriteBatch()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        List<ImageContainer> images = root.getDataset(1L).getImages(root);
+
+        TagAnnotationContainer tag = new TagAnnotationContainer(root, "BatchTag", "Tag added in a batch");
+
+        List<IObject> links = new ArrayList<IObject>();
+        WriteBatch batch = root.batch(2, 0);
+        try {
+            for(ImageContainer image : images)
+                links.add(image.addTag(root, tag.getId()));
+
+            assertEquals(images.size() % 2, batch.size());
+            assertEquals(images.size() - images.size() % 2, batch.getSaved());
+        }
+        finally {
+            batch.close();
+        }
+
+        assertNull(root.getBatch());
+        assertFalse(batch.hasFailures());
+        assertEquals(images.size(), batch.getSaved());
+        for(IObject link : links)
+            assertNotNull(link.getId());
+        assertEquals(images.size(), root.getImagesTagged(tag).size());
+
+        batch = root.batch();
+        try {
+            images.get(0).addTag(root, tag.getId());
+        }
+        finally {
+            batch.close();
+        }
+        assertTrue(batch.hasFailures());
+        assertEquals(1, batch.getFailures().size());
+
+        root.deleteTag(tag);
+    }
+
+    public void testSaveROIs()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        ImageContainer image1 = root.getImage(1L);
+        ImageContainer image2 = root.getImage(2L);
+
+        Map<Long, List<ROIContainer>> rois = new HashMap<Long, List<ROIContainer>>();
+        for(ImageContainer image : new ImageContainer[]{image1, image2}) {
+            List<ROIContainer> list = new ArrayList<ROIContainer>();
+            for(int i = 0; i < 5; i++) {
+                RectangleData rectangle = new RectangleData(i, i, 10, 10);
+                rectangle.setZ(0);
+                rectangle.setT(0);
+                rectangle.setC(0);
+
+                ROIContainer roi = new ROIContainer();
+                roi.addShape(rectangle);
+                list.add(roi);
+            }
+            rois.put(image.getId(), list);
+        }
+
+        Map<Long, List<Long>> ids = root.saveROIs(rois, 3);
+        assertEquals(5, ids.get(image1.getId()).size());
+        assertEquals(rois.get(image1.getId()).get(0).getId(), ids.get(image1.getId()).get(0));
+        assertEquals(5, image1.getROIs(root).size());
+        assertEquals(5, image2.getROIs(root).size());
+
+        List<ROIContainer> more = new ArrayList<ROIContainer>();
+        RectangleData rectangle = new RectangleData(0, 0, 5, 5);
+        ROIContainer roi = new ROIContainer();
+        roi.addShape(rectangle);
+        more.add(roi);
+        assertEquals(1, image1.saveROIs(root, more, 10).size());
+
+        for(ImageContainer image : new ImageContainer[]{image1, image2})
+            for(ROIContainer r : image.getROIs(root))
+                root.deleteROI(r);
+
+        assertEquals(0, image1.getROIs(root).size());
+    }
+
+    public void testROIPager()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        ImageContainer image = root.getImage(1L);
+
+        List<ROIContainer> rois = new ArrayList<ROIContainer>();
+        for(int i = 0; i < 7; i++) {
+            ROIContainer roi = new ROIContainer();
+
+            RectangleData rectangle = new RectangleData(10 * i, 10 * i, 5, 5);
+            rectangle.setZ(i % 2);
+            rectangle.setT(0);
+            rectangle.setC(0);
+            roi.addShape(rectangle);
+
+            EllipseData ellipse = new EllipseData(10 * i, 10 * i, 3, 3);
+            ellipse.setZ(0);
+            ellipse.setT(0);
+            ellipse.setC(0);
+            roi.addShape(ellipse);
+
+            rois.add(roi);
+        }
+        image.saveROIs(root, rois, 10);
+
+        ShapeFilter filter = new ShapeFilter();
+        assertEquals(7, image.countROIs(root, filter));
+
+        filter.setTypes(RectangleData.class);
+        filter.setPlane(1, 0, 0);
+        assertEquals(3, image.countROIs(root, filter));
+
+        ROIPager pager = image.getROIsPaged(root, filter, 2);
+        int count = 0;
+        while(pager.hasNext()) {
+            ROIContainer roi = pager.next();
+            assertEquals(1, roi.getShapes().size());
+            assertTrue(roi.getShapes().get(0) instanceof RectangleData);
+            count++;
+        }
+        assertEquals(3, count);
+
+        filter.setBounds(0, 0, 25, 25);
+        assertEquals(1, image.getROIsPaged(root, filter, 2).stream().count());
+
+        for(ROIContainer roi : image.getROIs(root))
+            root.deleteROI(roi);
+    }
+
+    public void testROIRasterizer()
+        throws Exception
+    {
+        ROIContainer roi1 = new ROIContainer();
+        RectangleData rectangle = new RectangleData(2, 2, 4, 3);
+        rectangle.setZ(0);
+        rectangle.setT(0);
+        rectangle.setC(0);
+        roi1.addShape(rectangle);
+
+        ROIContainer roi2 = new ROIContainer();
+        roi2.addShape(new LineData(0, 9, 9, 9));
+
+        List<ROIContainer> rois = new ArrayList<ROIContainer>();
+        rois.add(roi1);
+        rois.add(roi2);
+
+        ROIRasterizer rasterizer = new ROIRasterizer(10, 10, 2, 1, 1);
+        Map<Integer, int[]> labels = rasterizer.toLabels(rois);
+
+        assertEquals(2, labels.size());
+        int[] plane = labels.get(rasterizer.getPlaneIndex(0, 0, 0));
+        assertEquals(1, plane[3 * 10 + 4]);
+        assertEquals(0, plane[6 * 10 + 4]);
+        assertEquals(2, plane[9 * 10 + 5]);
+        assertEquals(0, labels.get(rasterizer.getPlaneIndex(1, 0, 0))[3 * 10 + 4]);
+
+        Map<Integer, BitSet> masks = rasterizer.toMasks(rois);
+        assertEquals(4 * 3 + 10, masks.get(rasterizer.getPlaneIndex(0, 0, 0)).cardinality());
+        assertEquals(10, masks.get(rasterizer.getPlaneIndex(1, 0, 0)).cardinality());
+    }
+
+    public void testROIRasterizerBenchmark()
+        throws Exception
+    {
+        if(!Boolean.getBoolean("benchmark"))
+            return;
+
+        final int sizeX  = 1024;
+        final int sizeY  = 1024;
+        final int sizeZ  = 10;
+        final int shapes = 100000;
+
+        java.util.Random random = new java.util.Random(42L);
+
+        List<ROIContainer> rois = new ArrayList<ROIContainer>(shapes);
+        for(int i = 0; i < shapes; i++) {
+            double x = random.nextDouble() * sizeX;
+            double y = random.nextDouble() * sizeY;
+
+            ShapeData shape;
+            switch(i % 4) {
+                case 0:
+                    shape = new RectangleData(x, y, 10, 10);
+                    break;
+                case 1:
+                    shape = new EllipseData(x, y, 5, 5);
+                    break;
+                case 2:
+                    shape = new LineData(x, y, x + 10, y + 10);
+                    break;
+                default:
+                    shape = new PointData(x, y);
+                    break;
+            }
+            shape.setZ(i % sizeZ);
+            shape.setT(0);
+            shape.setC(0);
+
+            ROIContainer roi = new ROIContainer();
+            roi.addShape(shape);
+            rois.add(roi);
+        }
+
+        ROIRasterizer rasterizer = new ROIRasterizer(sizeX, sizeY, sizeZ, 1, 1);
+        rasterizer.toLabels(rois);
+
+        long start = System.nanoTime();
+        Map<Integer, int[]> labels = rasterizer.toLabels(rois);
+        long parallel = System.nanoTime() - start;
+
+        rasterizer.setThreads(1);
+        start = System.nanoTime();
+        rasterizer.toLabels(rois);
+        long sequential = System.nanoTime() - start;
+
+        assertEquals(sizeZ, labels.size());
+        assertEquals(sizeX * sizeY, labels.get(0).length);
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(parallel) < 1);
+        if(Runtime.getRuntime().availableProcessors() > 1)
+            assertTrue(parallel < sequential);
+    }
+
+    public void testShapeIndex()
+        throws Exception
+    {
+        ROIContainer roi1 = new ROIContainer();
+        RectangleData rectangle = new RectangleData(0, 0, 10, 10);
+        rectangle.setZ(0);
+        rectangle.setT(0);
+        roi1.addShape(rectangle);
+
+        ROIContainer roi2 = new ROIContainer();
+        EllipseData ellipse = new EllipseData(100, 100, 10, 10);
+        ellipse.setZ(1);
+        ellipse.setT(0);
+        roi2.addShape(ellipse);
+
+        ROIContainer roi3 = new ROIContainer();
+        roi3.addShape(new PointData(200, 200));
+
+        ShapeIndex index = new ShapeIndex(16);
+        index.add(roi1);
+        index.add(roi2);
+        index.add(roi3);
+        assertEquals(3, index.size());
+
+        assertEquals(1, index.findContaining(5, 5, 0, 0).size());
+        assertEquals(0, index.findContaining(5, 5, 1, 0).size());
+        assertEquals(1, index.findContaining(100, 100, 1, 0).size());
+        assertEquals(0, index.findContaining(91, 91, 1, 0).size());
+        assertEquals(roi3, index.findContaining(200, 200, 5, 3).get(0));
+
+        assertEquals(2, index.findIntersecting(0, 0, 200, 200, 0, 0).size());
+        assertEquals(2, index.findIntersecting(50, 50, 200, 200, 1, 0).size());
+
+        List<ROIContainer> nearest = index.findNearest(120, 120, 1, 0, 2);
+        assertEquals(roi2, nearest.get(0));
+        assertEquals(roi3, nearest.get(1));
+
+        try {
+            index.findNearest(120, 120, 1, 0, 0);
+            assert(false);
+        }
+        catch(IllegalArgumentException e) {
+            assert(true);
+        }
+
+        assertTrue(index.remove(roi2));
+        assertFalse(index.remove(roi2));
+        assertEquals(0, index.findContaining(100, 100, 1, 0).size());
+
+        rectangle.setZ(1);
+        index.update(roi1);
+        assertEquals(0, index.findContaining(5, 5, 0, 0).size());
+        assertEquals(1, index.findContaining(5, 5, 1, 0).size());
+    }
+
+    public void testShapeIndexBenchmark()
+        throws Exception
+    {
+        if(!Boolean.getBoolean("benchmark"))
+            return;
+
+        final int size    = 10000;
+        final int shapes  = 100000;
+        final int queries = 10000;
+
+        java.util.Random random = new java.util.Random(42L);
+
+        List<ROIContainer> rois = new ArrayList<ROIContainer>(shapes);
+        for(int i = 0; i < shapes; i++) {
+            RectangleData rectangle = new RectangleData(random.nextDouble() * size, random.nextDouble() * size, 20, 20);
+            rectangle.setZ(i % 2);
+            rectangle.setT(0);
+
+            ROIContainer roi = new ROIContainer();
+            roi.addShape(rectangle);
+            rois.add(roi);
+        }
+
+        long start = System.nanoTime();
+        ShapeIndex index = new ShapeIndex(32);
+        index.addAll(rois);
+        long build = System.nanoTime() - start;
+
+        int found = 0;
+        for(int i = 0; i < queries; i++)
+            found += index.findNearest(random.nextDouble() * size, random.nextDouble() * size, i % 2, 0, 5).size();
+
+        found = 0;
+        start = System.nanoTime();
+        for(int i = 0; i < queries; i++) {
+            double x = random.nextDouble() * size;
+            double y = random.nextDouble() * size;
+            found += index.findContaining(x, y, i % 2, 0).size();
+            found += index.findIntersecting(x, y, 100, 100, i % 2, 0).size();
+            found += index.findNearest(x, y, i % 2, 0, 5).size();
+        }
+        long query = System.nanoTime() - start;
+
+        assertTrue(found >= 5 * queries);
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(build) < 5);
+        assertTrue(query / (3L * queries) < TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    public void testROIStatistics()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        ImageContainer image = root.getImage(1L);
+
+        ROIContainer roi = new ROIContainer();
+        for(int i = 0; i < 2; i++) {
+            RectangleData rectangle = new RectangleData(10 * i, 10 * i, 10, 10);
+            rectangle.setZ(0);
+            rectangle.setT(0);
+            roi.addShape(rectangle);
+        }
+        image.saveROI(root, roi);
+
+        ROIStatistics shapes = image.getROIStatistics(root, 0, 0, false, 0);
+        assertEquals(2, shapes.size());
+        assertEquals(100, shapes.getPointsCount(0));
+        assertTrue(shapes.getMin(0) <= shapes.getMean(0));
+        assertTrue(shapes.getMean(0) <= shapes.getMax(0));
+
+        ROIStatistics rois = shapes.perROI();
+        assertEquals(1, rois.size());
+        assertEquals(-1L, rois.getShapeId(0));
+        assertEquals(200, rois.getPointsCount(0));
+        assertEquals(shapes.getSum(0) + shapes.getSum(1), rois.getSum(0), 1e-6);
+
+        TableContainer table = shapes.toTable("Statistics");
+        assertEquals(9, table.getColumnCount());
+        assertEquals(2, table.getRowCount());
+
+        for(ROIContainer r : image.getROIs(root))
+            root.deleteROI(r);
+    }
+
+    public void testImportImagesParallel()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        DatasetContainer dataset = root.getDataset(2L);
+
+        String[] paths = new String[6];
+        for(int i = 0; i < paths.length; i++) {
+            paths[i] = "./parallel-" + i + "&pixelType=uint8&sizeZ=3&sizeC=2&sizeT=2&sizeX=256&sizeY=256.fake";
+            new File(paths[i]).createNewFile();
+        }
+
+        long sequential = Long.MAX_VALUE;
+        if(Boolean.getBoolean("benchmark")) {
+            long start = System.currentTimeMillis();
+            dataset.importImages(root, paths);
+            sequential = System.currentTimeMillis() - start;
+
+            for(ImageContainer image : dataset.getImages(root))
+                root.deleteImage(image);
+        }
+
+        long start = System.currentTimeMillis();
+        Map<String, List<Long>> ids = dataset.importImages(root, 3, 2, paths);
+        long parallel = System.currentTimeMillis() - start;
+
+        assertTrue(parallel < sequential);
+        assertEquals(paths.length, ids.size());
+        for(List<Long> imported : ids.values())
+            assertEquals(1, imported.size());
+        assertEquals(paths.length, dataset.getImages(root).size());
+
+        for(ImageContainer image : dataset.getImages(root))
+            root.deleteImage(image);
+
+        for(String path : paths)
+            new File(path).delete();
+    }
+
+    public void testGetTagsDoesNotChangeCache()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        TagAnnotationContainer tag       = root.getTags().get(0);
+        String                 namespace = tag.getTag().getNameSpace();
+
+        assertEquals(tag.getName(), root.getTags(tag.getName()).get(0).getTag().getNameSpace());
+        tag.getTag().setNameSpace("changed");
+
+        assertEquals(namespace, root.getTags().get(0).getTag().getNameSpace());
+    }
+
+    public void testContainerTagsDoNotChangeCache()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+        root.getCache().setTimeToLive(60000L);
+
+        ImageContainer image = root.getImage(1L);
+
+        List<TagAnnotationContainer> tags = image.getTags(root);
+        String namespace = tags.get(0).getTag().getNameSpace();
+        tags.get(0).getTag().setNameSpace("changed");
+
+        List<NamedValue> pairs = image.getKeyValuePairs(root);
+        if(!pairs.isEmpty())
+            pairs.get(0).value = "changed";
+
+        assertEquals(2L, root.getCache().getMisses(MetadataCache.Type.ANNOTATION));
+        assertEquals(namespace, image.getTags(root).get(0).getTag().getNameSpace());
+        for(NamedValue pair : image.getKeyValuePairs(root))
+            assertFalse("changed".equals(pair.value));
+        assertEquals(2L, root.getCache().getHits(MetadataCache.Type.ANNOTATION));
+    }
+
+    public void testReconnectJoinedSession()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        Client joined = new Client();
+        joined.joinSession("omero", 4064, root.getSessionKey());
+        joined.setReconnectPolicy(6, 1000, 1000);
+
+        root.disconnect();
+
+        long start = System.currentTimeMillis();
+        try {
+            joined.reconnect();
+            fail("A closed session cannot be joined again");
+        }
+        catch(DSOutOfServiceException e) {
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        }
+    }
+
+    public void testCancelCommand()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        List<IObject> tags = new ArrayList<IObject>();
+        for(int i = 0; i < 200; i++) {
+            TagAnnotationI tag = new TagAnnotationI();
+            tag.setTextValue(omero.rtypes.rstring("CancelTag" + i));
+            tags.add(tag);
+        }
+        tags = root.saveObjects(tags, 100);
+
+        List<Long> ids = new ArrayList<Long>(tags.size());
+        for(IObject tag : tags)
+            ids.add(tag.getId().getValue());
+
+        Delete2 delete = new Delete2();
+        delete.targetObjects = new HashMap<String, List<Long>>();
+        delete.targetObjects.put("TagAnnotation", ids);
+
+        int open = CommandWatcher.getOpenCallbacks();
+
+        CompletableFuture<Response> future = root.submit(delete, 0, null);
+        future.cancel(true);
+        assertTrue(future.isDone());
+
+        long end = System.currentTimeMillis() + 5000;
+        while(CommandWatcher.getOpenCallbacks() > open && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertEquals(open, CommandWatcher.getOpenCallbacks());
+
+        List<IObject> remaining = new ArrayList<IObject>();
+        for(TagAnnotationContainer tag : root.getTags())
+            if(tag.getName().startsWith("CancelTag"))
+                remaining.add(new TagAnnotationI(tag.getId(), false));
+        if(!remaining.isEmpty())
+            root.deleteObjects(remaining, 60000L);
+    }
+
+    public void testAddKeyValuePairsUpsertWithoutNamespace()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        Map<Long, List<NamedValue>> pairs = new HashMap<Long, List<NamedValue>>();
+        List<NamedValue> result = new ArrayList<NamedValue>();
+        result.add(new NamedValue("UpsertKey", "Value"));
+        pairs.put(1L, result);
+
+        try {
+            root.addKeyValuePairs(pairs, null, true);
+            assert(false);
+        }
+        catch(IllegalArgumentException e) {
+            assert(true);
+        }
+    }
+
+    public void testShapeIndexNearestOutsideShapes()
+        throws Exception
+    {
+        ShapeIndex index = new ShapeIndex(16);
+        for(int i = 0; i < 3; i++) {
+            RectangleData rectangle = new RectangleData(20 * i, 20 * i, 10, 10);
+            rectangle.setZ(0);
+            rectangle.setT(0);
+
+            ROIContainer roi = new ROIContainer();
+            roi.addShape(rectangle);
+            index.add(roi);
+        }
+
+        long start = System.currentTimeMillis();
+        assertEquals(3, index.findNearest(25, 25, 0, 0, 10).size());
+        assertEquals(3, index.findNearest(1e6, 1e6, 0, 0, 10).size());
+        assertEquals(1, index.findNearest(1e6, 1e6, 0, 0, 1).size());
+        assertEquals(0, index.findNearest(1e6, 1e6, 1, 0, 1).size());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    public void testReconnectUpdatesSessionCache()
+        throws Exception
+    {
+        File file = File.createTempFile("sessions", ".properties");
+        file.delete();
+
+        SessionCache sessions = new SessionCache(file);
+
+        try {
+            Client root = new Client();
+            root.connect("omero", 4064, "root", "omero", 3L, sessions);
+
+            String lost  = root.getSessionKey();
+            long   group = root.getCtx().getGroupID();
+
+            root.getGateway().disconnect();
+            root.reconnect();
+
+            String sessionKey = root.getSessionKey();
+            assertFalse(lost.equals(sessionKey));
+            assertEquals(sessionKey, sessions.get("omero", 4064, "root", 3L));
+            assertEquals(group, root.getCtx().getGroupID());
+            root.disconnect();
+
+            Client second = new Client();
+            second.connect("omero", 4064, "root", "omero", 3L, sessions);
+            assertEquals(sessionKey, second.getSessionKey());
+            second.disconnect(false);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    public void testSudoAfterReconnect()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        Client test  = root.SudoGetUser("testUser");
+        Client group = root.inGroup(3L);
+
+        String query  = "select t from TagAnnotation as t";
+        int    tags   = test.getQueryService().findAllByQuery(query, null).size();
+        int    images = group.getImages().size();
+
+        root.getGateway().disconnect();
+        root.reconnect();
+
+        assertSame(test, root.SudoGetUser("testUser"));
+        assertEquals(tags, root.SudoGetUser("testUser").getQueryService().findAllByQuery(query, null).size());
+        assertEquals(images, group.getImages().size());
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testDefaultTileSize()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        ImageContainer image = root.getImage(1L);
+        assertEquals(PixelContainer.DEFAULT_MAX_DIST, image.getPixels().getMaxDist());
+
+        PixelContainer.maxDist = 100;
+        try {
+            PixelContainer pixels = image.getPixels();
+            assertEquals(100, pixels.getMaxDist());
+
+            pixels.setMaxDist(50);
+            assertEquals(50, pixels.getMaxDist());
+            assertEquals(100, image.getPixels().getMaxDist());
+        }
+        finally {
+            PixelContainer.maxDist = PixelContainer.DEFAULT_MAX_DIST;
+        }
+    }
+
+    public void testImagesTagsOwner()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        Client         test  = root.SudoGetUser("testUser");
+        ImageContainer image = test.getImages().get(0);
+
+        TagAnnotationContainer tag = new TagAnnotationContainer(test, "Other user tag", "tag owned by another user");
+        image.addTag(test, tag);
+
+        try {
+            List<ImageContainer> images = new ArrayList<ImageContainer>();
+            images.add(image);
+
+            List<TagAnnotationContainer> tags = root.getImagesTags(images).get(image.getId());
+            for(TagAnnotationContainer t : tags)
+                assertFalse(tag.getId().equals(t.getId()));
+            assertEquals(image.getTags(root).size(), tags.size());
+        }
+        finally {
+            test.deleteTag(tag);
+        }
+    }
+
+    public void testPairKeyValueInBatch()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        String path = "./batch-pairs&pixelType=uint8&sizeX=64&sizeY=64.fake";
+        File   f    = new File(path);
+        f.createNewFile();
+
+        DatasetContainer dataset = root.getDataset(2L);
+        dataset.importImages(root, path);
+
+        ImageContainer image = dataset.getImages(root).get(0);
+
+        List<NamedValue> result = new ArrayList<NamedValue>();
+        result.add(new NamedValue("Batch key1", "Batch value1"));
+
+        WriteBatch batch = root.batch();
+        try {
+            image.addMapAnnotation(root, new MapAnnotationContainer(result));
+            image.addPairKeyValue(root, "Batch key2", "Batch value2");
+            assertEquals(2, batch.size());
+        }
+        finally {
+            batch.close();
+        }
+
+        assertFalse(batch.hasFailures());
+        assertEquals("Batch value1", image.getValue(root, "Batch key1"));
+        assertEquals("Batch value2", image.getValue(root, "Batch key2"));
+
+        root.deleteImage(image);
+        f.delete();
+    }
+
+    public void testGetOrCreateTagsIgnoresTagSets()
+        throws Exception
+    {
+        Client root = new Client();
+        root.connect("omero", 4064, "root", "omero", 3L);
+
+        TagAnnotationI tagSet = new TagAnnotationI();
+        tagSet.setTextValue(omero.rtypes.rstring("TagSetName"));
+        tagSet.setNs(omero.rtypes.rstring(TagAnnotationData.INSIGHT_TAGSET_NS));
+        Long tagSetId = root.saveObject(tagSet).getId().getValue();
+
+        List<String> names = new ArrayList<String>();
+        names.add("TagSetName");
+
+        Map<String, Long> ids = root.getOrCreateTags(names, null);
+        Long tagId = ids.get("TagSetName");
+
+        assertNotNull(tagId);
+        assertFalse(tagSetId.equals(tagId));
+
+        root.deleteTag(tagId);
+        root.deleteTag(tagSetId);
+    }
 }